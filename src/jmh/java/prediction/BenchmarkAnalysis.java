@@ -10,9 +10,7 @@ import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.infra.Blackhole;
 import reconstruction.HillasParametrization;
-import reconstruction.TailCut;
 import reconstruction.containers.Moments;
-import reconstruction.containers.ShowerImage;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,8 +47,7 @@ public class BenchmarkAnalysis {
     public void testPrediction(Blackhole bh) throws IOException, URISyntaxException {
 
         ImageReader.Event event = events.get(random.nextInt(events.size()));
-        List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
-        List<Moments> moments = HillasParametrization.fromShowerImages(showerImages);
+        List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
 
         int numberOfTelescopes = moments.size();
 
@@ -85,8 +82,7 @@ public class BenchmarkAnalysis {
 
 
         events.parallelStream().forEach(event -> {
-            List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
-            List<Moments> moments = HillasParametrization.fromShowerImages(showerImages);
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
 
             int numberOfTelescopes = moments.size();
 
@@ -0,0 +1,70 @@
+package prediction;
+
+import ml.TreeEnsemblePredictor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Predict 4096 samples in blocks of the given size, walking each tree for all samples of a block
+ * at once. A block size of 1 calls the single sample predictProba for each sample instead.
+ * The samples have 12 features. The iris model only looks at the first four of them.
+ */
+@State(Scope.Thread)
+public class BenchmarkBlockPrediction {
+
+    private static final int NUMBER_OF_SAMPLES = 4096;
+    private static final int NUMBER_OF_FEATURES = 12;
+
+    @Param({"iris", "large"})
+    String model;
+
+    @Param({"1", "16", "64", "256", "1024"})
+    int blockSize;
+
+    TreeEnsemblePredictor predictor;
+    float[][] rows;
+    float[][] blocks;
+    float[][] probabilities;
+
+    @Setup
+    public void prepare() throws IOException {
+        Random random = new Random(0);
+        if (model.equals("iris")) {
+            predictor = new TreeEnsemblePredictor(BenchmarkBlockPrediction.class.getResourceAsStream("/iris_rf.json"));
+        } else {
+            predictor = SyntheticForests.forest(100, 12, NUMBER_OF_FEATURES, 2, random);
+        }
+
+        rows = SyntheticForests.samples(NUMBER_OF_SAMPLES, NUMBER_OF_FEATURES, random);
+        blocks = new float[NUMBER_OF_SAMPLES / blockSize][blockSize * NUMBER_OF_FEATURES];
+        probabilities = new float[blocks.length][blockSize * predictor.getNumberOfClasses()];
+        for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+            for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+                // spread the values over the range of the iris features
+                rows[i][f] *= model.equals("iris") ? 8 : 1;
+            }
+            System.arraycopy(rows[i], 0, blocks[i / blockSize], (i % blockSize) * NUMBER_OF_FEATURES, NUMBER_OF_FEATURES);
+        }
+    }
+
+    @Benchmark
+    public float[][] predictProba() {
+        if (blockSize == 1) {
+            for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+                probabilities[i] = predictor.predictProba(rows[i]);
+            }
+            return probabilities;
+        }
+
+        for (int b = 0; b < blocks.length; b++) {
+            predictor.predictProba(blocks[b], blockSize, NUMBER_OF_FEATURES, probabilities[b]);
+        }
+        return probabilities;
+    }
+}
@@ -0,0 +1,131 @@
+package prediction;
+
+import ml.TreeEnsemblePredictor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Predict a block of samples one after another with the iris model, with a random forest of
+ * the size used for gamma hadron separation (100 trees of depth up to 12 on 12 features) and
+ * with a forest of 200 shallow trees (depth up to 6) which is evaluated by the QuickScorer. The
+ * agreeing forest has the size of the large one, but its trees agree on most samples, see
+ * {@link SyntheticForests#agreeingForest}.
+ *
+ * Run with -prof gc to compare the allocation rates of the methods.
+ *
+ * The trees are either walked by the interpreter, by compiled code, see
+ * {@link TreeEnsemblePredictor#compiled()}, or on quantized samples, see
+ * {@link TreeEnsemblePredictor#quantized()}, or in place in a memory mapped file. The JIT needs about a minute to compile the
+ * generated code of the large forest on a single core, so use at least -wi 40 for it.
+ */
+@State(Scope.Thread)
+public class BenchmarkForest {
+
+    @Param({"iris", "large", "shallow", "agreeing"})
+    String model;
+
+    @Param({"interpreted", "compiled", "quantized", "mapped"})
+    String engine;
+
+    TreeEnsemblePredictor predictor;
+    float[][] samples;
+    float[] probabilities;
+
+    @Setup
+    public void prepare() throws IOException {
+        if (model.equals("iris")) {
+            predictor = new TreeEnsemblePredictor(BenchmarkForest.class.getResourceAsStream("/iris_rf.json"));
+            samples = irisSamples();
+        } else if (model.equals("large")) {
+            Random random = new Random(0);
+            predictor = SyntheticForests.forest(100, 12, 12, 2, random);
+            samples = SyntheticForests.samples(1024, 12, random);
+        } else if (model.equals("agreeing")) {
+            Random random = new Random(0);
+            predictor = SyntheticForests.agreeingForest(100, 12, 12, random);
+            samples = SyntheticForests.samples(1024, 12, random);
+        } else {
+            Random random = new Random(0);
+            predictor = SyntheticForests.forest(200, 6, 12, 2, random);
+            samples = SyntheticForests.samples(1024, 12, random);
+        }
+        if (engine.equals("compiled")) {
+            predictor = predictor.compiled();
+        } else if (engine.equals("quantized")) {
+            predictor = predictor.quantized();
+        } else if (engine.equals("mapped")) {
+            Path file = Files.createTempFile("forest", ".bin");
+            predictor.write(file);
+            predictor = new TreeEnsemblePredictor(file);
+            // the mapping stays valid, the file is removed when the fork exits
+            file.toFile().deleteOnExit();
+        }
+        probabilities = new float[predictor.getNumberOfClasses()];
+    }
+
+    private static float[][] irisSamples() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                BenchmarkForest.class.getResourceAsStream("/python_predictions_iris.csv")));
+        return reader.lines()
+                .skip(1)
+                .map(line -> {
+                    String[] values = line.split(",");
+                    float[] sample = new float[4];
+                    for (int i = 0; i < 4; i++) {
+                        sample[i] = Float.parseFloat(values[i].trim());
+                    }
+                    return sample;
+                })
+                .toArray(float[][]::new);
+    }
+
+    @Benchmark
+    public void predictProba(Blackhole bh) {
+        for (float[] sample : samples) {
+            bh.consume(predictor.predictProba(sample));
+        }
+    }
+
+    @Benchmark
+    public void predict(Blackhole bh) {
+        for (float[] sample : samples) {
+            bh.consume(predictor.predict(sample));
+        }
+    }
+
+    @Benchmark
+    public void predictProbaIntoBuffer(Blackhole bh) {
+        for (float[] sample : samples) {
+            predictor.predictProba(sample, probabilities);
+            bh.consume(probabilities[0]);
+        }
+    }
+
+    /**
+     * Stops once 80 percent of the trees agree, compare to predictProbaIntoBuffer.
+     */
+    @Benchmark
+    public void predictProbaWithConfidence(Blackhole bh) {
+        for (float[] sample : samples) {
+            bh.consume(predictor.predictProba(sample, probabilities, 0.8f));
+        }
+    }
+
+    @Benchmark
+    public void predictProbability(Blackhole bh) {
+        for (float[] sample : samples) {
+            bh.consume(predictor.predictProbability(sample, 0));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package prediction;
+
+import ml.TreeEnsemblePredictor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Open a random forest of the size used for gamma hadron separation (100 trees of depth up to 12
+ * on 12 features) from json and from the binary format written by
+ * {@link TreeEnsemblePredictor#write(Path)}. The files stay in the page cache, so this measures
+ * parsing against mapping and not the disk.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkModelLoading {
+
+    @Param({"json", "binary"})
+    String format;
+
+    Path file;
+
+    @Setup
+    public void prepare() throws IOException {
+        byte[] json = SyntheticForests.json(100, 12, 12, 2, new Random(0));
+        file = Files.createTempFile("forest", "." + format);
+        if (format.equals("json")) {
+            Files.write(file, json);
+        } else {
+            Path jsonFile = Files.createTempFile("forest", ".json");
+            Files.write(jsonFile, json);
+            new TreeEnsemblePredictor(jsonFile).write(file);
+            Files.delete(jsonFile);
+        }
+    }
+
+    @TearDown
+    public void delete() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public TreeEnsemblePredictor load() throws IOException {
+        return new TreeEnsemblePredictor(file);
+    }
+}
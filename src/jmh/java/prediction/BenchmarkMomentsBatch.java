@@ -0,0 +1,91 @@
+package prediction;
+
+import hexmap.TelescopeArray;
+import io.ImageReader;
+import ml.MomentsBatchPredictor;
+import ml.TreeEnsemblePredictor;
+import ml.Vectorizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import reconstruction.DirectionReconstruction;
+import reconstruction.HillasParametrization;
+import reconstruction.ImageKernel;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Compare processing all sample events one Moments object at a time to processing them as one
+ * MomentsBatch. Both variants parametrize, reconstruct and classify every event.
+ * The iris model is used as classifier since it has the same structure as the real one.
+ */
+@State(Scope.Thread)
+public class BenchmarkMomentsBatch {
+
+    TreeEnsemblePredictor model;
+    MomentsBatchPredictor predictor;
+    List<ImageReader.Event> events;
+    ImageKernel kernel;
+    MomentsBatch batch;
+
+    @Setup
+    public void prepare() throws IOException {
+        InputStream stream = BenchmarkMomentsBatch.class.getResourceAsStream("/iris_rf.json");
+        model = new TreeEnsemblePredictor(stream);
+        predictor = new MomentsBatchPredictor(model);
+
+        ImageReader r = ImageReader.fromInputStream(BenchmarkMomentsBatch.class.getResourceAsStream("/images.json.gz"));
+        events = r.stream().collect(Collectors.toList());
+
+        kernel = new ImageKernel();
+        batch = new MomentsBatch();
+    }
+
+    @Benchmark
+    public void objects(Blackhole bh) {
+        for (ImageReader.Event event : events) {
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event, kernel);
+            bh.consume(DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az));
+
+            int numberOfTelescopes = moments.size();
+            double prediction = moments.stream()
+                    .map(m ->
+                            new Vectorizer().of(
+                                    numberOfTelescopes,
+                                    m.numberOfPixel,
+                                    m.width,
+                                    m.length,
+                                    m.skewness,
+                                    m.kurtosis,
+                                    m.phi,
+                                    m.miss,
+                                    m.size,
+                                    TelescopeArray.cta().telescopeFromId(m.telescopeID).telescopeType.ordinal()
+                            ).createFloatVector()
+                    )
+                    .mapToDouble(f -> (double) model.predictProba(f)[0])
+                    .average()
+                    .orElse(0);
+            bh.consume(prediction);
+        }
+    }
+
+    @Benchmark
+    public void batch(Blackhole bh) {
+        batch.clear();
+        for (ImageReader.Event event : events) {
+            HillasParametrization.fromImagesInEvent(event, kernel, batch);
+        }
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            bh.consume(DirectionReconstruction.fromBatch(batch, e));
+            bh.consume(predictor.predictParticleType(batch, e));
+        }
+    }
+}
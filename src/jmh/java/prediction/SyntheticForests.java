@@ -0,0 +1,149 @@
+package prediction;
+
+import com.google.gson.Gson;
+import ml.TreeEnsemblePredictor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Creates random forests in the json format written by convert_tree.py. The iris model in the
+ * resources is much smaller than the forests used for gamma hadron separation, so a forest with
+ * a similar shape is generated instead. Features and thresholds are uniform in [0, 1).
+ */
+class SyntheticForests {
+
+    /**
+     * Create a random forest. Each inner node is split further with a probability of 0.9 until
+     * the maximum depth is reached.
+     *
+     * @param numberOfTrees    the number of trees in the forest
+     * @param maxDepth         the maximum depth of each tree
+     * @param numberOfFeatures the length of the feature vectors
+     * @param numberOfClasses  the number of classes
+     * @param random           source of randomness
+     * @return the forest
+     */
+    static TreeEnsemblePredictor forest(int numberOfTrees, int maxDepth, int numberOfFeatures,
+                                        int numberOfClasses, Random random) throws IOException {
+        return forest(numberOfTrees, maxDepth, numberOfFeatures, numberOfClasses, false, random);
+    }
+
+    /**
+     * Create a random forest whose trees mostly agree. The class of a leaf depends on the range
+     * of the first feature leading to it: class 1 if the middle of the range is above 0.5, class
+     * 0 otherwise, and a random class for one leaf in ten. So most trees vote for the same class
+     * unless the first feature of a sample is close to 0.5, like for the clear events of a well
+     * trained model.
+     */
+    static TreeEnsemblePredictor agreeingForest(int numberOfTrees, int maxDepth, int numberOfFeatures,
+                                                Random random) throws IOException {
+        return forest(numberOfTrees, maxDepth, numberOfFeatures, 2, true, random);
+    }
+
+    private static TreeEnsemblePredictor forest(int numberOfTrees, int maxDepth, int numberOfFeatures,
+                                                int numberOfClasses, boolean agreeing, Random random) throws IOException {
+        byte[] json = json(numberOfTrees, maxDepth, numberOfFeatures, numberOfClasses, agreeing, random);
+        return new TreeEnsemblePredictor(new ByteArrayInputStream(json));
+    }
+
+    /**
+     * Create the json of a random forest, see {@link #forest(int, int, int, int, Random)}.
+     */
+    static byte[] json(int numberOfTrees, int maxDepth, int numberOfFeatures, int numberOfClasses, Random random) {
+        return json(numberOfTrees, maxDepth, numberOfFeatures, numberOfClasses, false, random);
+    }
+
+    private static byte[] json(int numberOfTrees, int maxDepth, int numberOfFeatures, int numberOfClasses,
+                               boolean agreeing, Random random) {
+        List<Map<String, Object>> trees = new ArrayList<>();
+        for (int t = 0; t < numberOfTrees; t++) {
+            Tree tree = new Tree();
+            tree.agreeing = agreeing;
+            tree.grow(0, maxDepth, numberOfFeatures, numberOfClasses, 0, 1, random);
+            trees.add(tree.toJson());
+        }
+        return new Gson().toJson(trees).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create uniformly distributed samples.
+     *
+     * @param numberOfSamples  the number of rows
+     * @param numberOfFeatures the length of each row
+     * @param random           source of randomness
+     * @return the samples
+     */
+    static float[][] samples(int numberOfSamples, int numberOfFeatures, Random random) {
+        float[][] samples = new float[numberOfSamples][numberOfFeatures];
+        for (float[] sample : samples) {
+            for (int i = 0; i < numberOfFeatures; i++) {
+                sample[i] = random.nextFloat();
+            }
+        }
+        return samples;
+    }
+
+    private static class Tree {
+        List<Float> thresholds = new ArrayList<>();
+        List<Integer> attributes = new ArrayList<>();
+        List<Integer> left = new ArrayList<>();
+        List<Integer> right = new ArrayList<>();
+        List<float[]> distributions = new ArrayList<>();
+
+        boolean agreeing;
+
+        /**
+         * Grow the subtree below a new node which is reached by values of the first feature
+         * between low and high.
+         */
+        int grow(int depth, int maxDepth, int numberOfFeatures, int numberOfClasses, float low, float high, Random random) {
+            int node = thresholds.size();
+            thresholds.add(-2f);
+            attributes.add(-2);
+            left.add(-1);
+            right.add(-1);
+            float[] distribution = new float[numberOfClasses];
+            for (int c = 0; c < numberOfClasses; c++) {
+                distribution[c] = random.nextInt(20);
+            }
+            if (agreeing && random.nextInt(10) != 0) {
+                Arrays.fill(distribution, 0);
+                distribution[(low + high) / 2 > 0.5f ? 1 : 0] = 1;
+            }
+            distributions.add(distribution);
+
+            if (depth < maxDepth && (depth == 0 || random.nextDouble() < 0.9)) {
+                float threshold = random.nextFloat();
+                int attribute = random.nextInt(numberOfFeatures);
+                if (agreeing && attribute == 0) {
+                    threshold = low + (high - low) * threshold;
+                }
+                thresholds.set(node, threshold);
+                attributes.set(node, attribute);
+                float leftHigh = attribute == 0 ? Math.min(threshold, high) : high;
+                float rightLow = attribute == 0 ? Math.max(threshold, low) : low;
+                left.set(node, grow(depth + 1, maxDepth, numberOfFeatures, numberOfClasses, low, leftHigh, random));
+                right.set(node, grow(depth + 1, maxDepth, numberOfFeatures, numberOfClasses, rightLow, high, random));
+            }
+            return node;
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new HashMap<>();
+            json.put("thresholds", thresholds);
+            json.put("attributes", attributes);
+            json.put("children_left", left);
+            json.put("children_right", right);
+            json.put("node_distributions", distributions);
+            return json;
+        }
+    }
+}
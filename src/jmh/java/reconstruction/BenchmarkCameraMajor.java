@@ -0,0 +1,58 @@
+package reconstruction;
+
+import io.ImageReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import reconstruction.containers.MomentsBatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clean and parametrize a block of events either event by event or grouped by camera type.
+ * The block consists of the sample events repeated until it holds the given number of events.
+ *
+ * Run with -prof perfnorm to see the L1 and LLC misses per block on Linux.
+ */
+@State(Scope.Thread)
+public class BenchmarkCameraMajor {
+
+    @Param({"64", "512"})
+    int blockSize;
+
+    List<ImageReader.Event> events;
+    ImageKernel kernel = new ImageKernel();
+    CameraMajorScheduler scheduler = new CameraMajorScheduler(new ImageKernel());
+    MomentsBatch batch = new MomentsBatch();
+
+    @Setup
+    public void prepare() throws IOException {
+        List<ImageReader.Event> sample = new ArrayList<>();
+        ImageReader.fromInputStream(BenchmarkCameraMajor.class.getResourceAsStream("/images.json.gz")).forEach(sample::add);
+
+        events = new ArrayList<>(blockSize);
+        for (int i = 0; i < blockSize; i++) {
+            events.add(sample.get(i % sample.size()));
+        }
+    }
+
+    @Benchmark
+    public MomentsBatch eventMajor() {
+        batch.clear();
+        for (ImageReader.Event event : events) {
+            HillasParametrization.fromImagesInEvent(event, kernel, batch);
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public MomentsBatch cameraMajor() {
+        batch.clear();
+        scheduler.parametrize(events, batch);
+        return batch;
+    }
+}
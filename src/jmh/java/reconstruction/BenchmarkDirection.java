@@ -0,0 +1,56 @@
+package reconstruction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.atan2;
+import static java.lang.Math.hypot;
+
+/**
+ * Direction and core reconstruction of a single event for different numbers of triggered
+ * telescopes. The sample data holds only small events so the image parameters are random.
+ */
+@State(Scope.Thread)
+public class BenchmarkDirection {
+
+    @Param({"4", "20", "50", "194"})
+    int multiplicity;
+
+    List<Moments> moments;
+
+    @Setup
+    public void prepare() {
+        Random random = new Random(multiplicity);
+        moments = new ArrayList<>();
+        for (int telescopeId = 1; telescopeId <= multiplicity; telescopeId++) {
+            double meanX = random.nextDouble() - 0.5;
+            double meanY = random.nextDouble() - 0.5;
+            double delta = (random.nextDouble() - 0.5) * PI;
+            double length = 0.05 + 0.05 * random.nextDouble();
+            double width = 0.01 + 0.02 * random.nextDouble();
+            double size = 100 + 900 * random.nextDouble();
+            moments.add(new Moments(1, telescopeId, telescopeId, 50, width, length, delta,
+                    0, 0, atan2(meanY, meanX), 0, hypot(meanX, meanY), meanX, meanY, size));
+        }
+    }
+
+    @Benchmark
+    public ReconstrucedEvent fromMoments() {
+        return DirectionReconstruction.fromMoments(moments, 1.2, 0.1);
+    }
+
+    @Benchmark
+    public ReconstrucedEvent fromMomentsLeastSquares() {
+        return DirectionReconstruction.fromMoments(moments, 1.2, 0.1, DirectionReconstruction.Method.LEAST_SQUARES);
+    }
+}
@@ -0,0 +1,76 @@
+package reconstruction;
+
+import hexmap.TelescopeArray;
+import io.ImageReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Latency of a single large event processed on the calling thread compared to processing its
+ * images in parallel. The sample data has no large events, so the images of all sample events
+ * are combined into one. Each image is moved to a free telescope with the same camera.
+ */
+@State(Scope.Thread)
+public class BenchmarkEventProcessor {
+
+    @Param({"sequential", "parallel"})
+    String mode;
+
+    ForkJoinPool pool;
+    EventProcessor processor;
+    ImageReader.Event event;
+
+    @Setup
+    public void prepare() throws IOException {
+        TelescopeArray mapping = TelescopeArray.cta();
+        ImageReader reader = ImageReader.fromInputStream(BenchmarkEventProcessor.class.getResourceAsStream("/images.json.gz"));
+
+        List<ImageReader.Event> events = new ArrayList<>();
+        reader.forEach(events::add);
+
+        Map<Integer, double[]> images = new LinkedHashMap<>();
+        Set<Integer> used = new HashSet<>();
+        for (ImageReader.Event e : events) {
+            for (Map.Entry<Integer, double[]> entry : e.images.entrySet()) {
+                String camera = mapping.telescopeFromId(entry.getKey()).cameraName;
+                for (int id = 1; id <= 194; id++) {
+                    if (!used.contains(id) && mapping.telescopeFromId(id).cameraName.equals(camera)) {
+                        used.add(id);
+                        images.put(id, entry.getValue());
+                        break;
+                    }
+                }
+            }
+        }
+        event = events.get(0);
+        event.images = images;
+
+        pool = new ForkJoinPool();
+        int threshold = mode.equals("parallel") ? 1 : Integer.MAX_VALUE;
+        processor = new EventProcessor(pool, threshold, ImageKernel::new);
+    }
+
+    @TearDown
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public ReconstrucedEvent reconstruct() {
+        return processor.reconstruct(event, DirectionReconstruction.Method.PAIRWISE);
+    }
+}
@@ -0,0 +1,92 @@
+package reconstruction;
+
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ShowerImage;
+
+import java.util.Random;
+
+/**
+ * Hillas parametrization of a single cleaned image for each camera type in the array.
+ */
+@State(Scope.Thread)
+public class BenchmarkHillas {
+
+    /**
+     * One telescope per camera type: LSTCam, NectarCam, CHEC, FlashCam and DigiCam.
+     */
+    @Param({"1", "5", "30", "100", "125"})
+    int telescopeId;
+
+    double[] image;
+    ImageKernel kernelWithFeatures = ImageKernel.withDefaultFeatures();
+    ImageKernel secondOrderKernel = new ImageKernel(2);
+    ShowerImage showerImage;
+    int[] pixelIds;
+    double[] weights;
+    int n;
+    CameraGeometry geometry;
+
+    @Setup
+    public void prepare() {
+        image = SyntheticImages.ellipse(telescopeId, new Random(telescopeId));
+        geometry = TelescopeArray.cta().cameraFromId(telescopeId);
+        showerImage = TailCut.selectShowerFromImage(1, telescopeId, image);
+
+        n = showerImage.signalPixels.size();
+        pixelIds = new int[n];
+        weights = new double[n];
+        double[] cleaned = (double[]) showerImage.toMap().get("image");
+        int i = 0;
+        for (int pixelId = 0; pixelId < cleaned.length; pixelId++) {
+            if (cleaned[pixelId] > 0) {
+                pixelIds[i] = pixelId;
+                weights[i] = cleaned[pixelId];
+                i++;
+            }
+        }
+    }
+
+    @Benchmark
+    public Moments showerImage() {
+        return HillasParametrization.fromShowerImage(showerImage);
+    }
+
+    @Benchmark
+    public Moments primitiveArrays() {
+        return HillasParametrization.fromPixels(1, telescopeId, pixelIds, weights, n);
+    }
+
+    @Benchmark
+    public Moments cleanThenParametrize() {
+        return HillasParametrization.fromShowerImage(TailCut.selectShowerFromImage(1, telescopeId, image));
+    }
+
+    @Benchmark
+    public Moments fusedKernel() {
+        return ImageKernel.get().parametrize(1, telescopeId, image);
+    }
+
+    @Benchmark
+    public Moments fusedKernelWithFeatures() {
+        return kernelWithFeatures.parametrize(1, telescopeId, image);
+    }
+
+    @Benchmark
+    public Moments fusedKernelSecondOrder() {
+        return secondOrderKernel.parametrize(1, telescopeId, image);
+    }
+
+    @Benchmark
+    public Moments primitiveArraysSecondOrder() {
+        HillasKernel kernel = new HillasKernel(2);
+        kernel.add(pixelIds, weights, n, geometry.pixelXPositions, geometry.pixelYPositions);
+        return kernel.toMoments(1, telescopeId);
+    }
+}
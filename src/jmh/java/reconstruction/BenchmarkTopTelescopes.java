@@ -0,0 +1,69 @@
+package reconstruction;
+
+import io.ImageReader;
+import ml.MomentsBatchPredictor;
+import ml.TreeEnsemblePredictor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import reconstruction.containers.MomentsBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reconstruct and classify all sample events using only the best images of each event.
+ * A value of 0 uses all images.
+ *
+ * The parametrized events are copied into the batch for each invocation since selecting the
+ * best images changes the batch.
+ */
+@State(Scope.Thread)
+public class BenchmarkTopTelescopes {
+
+    @Param({"0", "2", "4", "8"})
+    int maxTelescopes;
+
+    MomentsBatch parametrized;
+    MomentsBatch batch;
+    MomentsBatchPredictor predictor;
+
+    @Setup
+    public void prepare() throws IOException {
+        InputStream stream = BenchmarkTopTelescopes.class.getResourceAsStream("/iris_rf.json");
+        predictor = new MomentsBatchPredictor(new TreeEnsemblePredictor(stream));
+
+        ImageReader events = ImageReader.fromInputStream(BenchmarkTopTelescopes.class.getResourceAsStream("/images.json.gz"));
+        parametrized = new MomentsBatch();
+        for (ImageReader.Event event : events) {
+            HillasParametrization.fromImagesInEvent(event, ImageKernel.get(), parametrized);
+        }
+        batch = new MomentsBatch();
+    }
+
+    @Benchmark
+    public void reconstructAndClassify(Blackhole bh) {
+        batch.clear();
+        for (int e = 0; e < parametrized.numberOfEvents(); e++) {
+            batch.startEvent(parametrized.eventId(e), parametrized.altitude(e), parametrized.azimuth(e));
+            for (int row = parametrized.eventStart(e); row < parametrized.eventEnd(e); row++) {
+                batch.add(parametrized.eventID[row], parametrized.telescopeID[row], parametrized.numberOfPixel[row],
+                        parametrized.width[row], parametrized.length[row], parametrized.delta[row],
+                        parametrized.skewness[row], parametrized.kurtosis[row], parametrized.phi[row],
+                        parametrized.miss[row], parametrized.r[row], parametrized.meanX[row],
+                        parametrized.meanY[row], parametrized.size[row]);
+            }
+        }
+
+        if (maxTelescopes > 0) {
+            batch.keepBestTelescopes(maxTelescopes);
+        }
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            bh.consume(DirectionReconstruction.fromBatch(batch, e));
+            bh.consume(predictor.predictParticleType(batch, e));
+        }
+    }
+}
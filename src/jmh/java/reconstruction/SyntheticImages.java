@@ -0,0 +1,47 @@
+package reconstruction;
+
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+
+import java.util.Random;
+
+/**
+ * Creates simple elliptical shower images for benchmarking. The sample data does not contain
+ * images for all camera types so the images are generated from the camera geometry instead.
+ */
+class SyntheticImages {
+
+    /**
+     * Create an image with a gaussian ellipse on top of some uniform noise.
+     *
+     * @param telescopeId the telescope to create the image for
+     * @param random      source of randomness
+     * @return the image in estimated number of photons per pixel
+     */
+    static double[] ellipse(int telescopeId, Random random) {
+        CameraGeometry geometry = TelescopeArray.cta().cameraFromId(telescopeId);
+
+        double radius = 0;
+        for (int i = 0; i < geometry.numberOfPixel; i++) {
+            radius = Math.max(radius, Math.hypot(geometry.pixelXPositions[i], geometry.pixelYPositions[i]));
+        }
+
+        double angle = random.nextDouble() * 2 * Math.PI;
+        double cx = 0.3 * radius * Math.cos(angle);
+        double cy = 0.3 * radius * Math.sin(angle);
+        double psi = random.nextDouble() * Math.PI;
+        double length = 0.1 * radius;
+        double width = 0.03 * radius;
+
+        double[] image = new double[geometry.numberOfPixel];
+        for (int i = 0; i < image.length; i++) {
+            double dx = geometry.pixelXPositions[i] - cx;
+            double dy = geometry.pixelYPositions[i] - cy;
+            double l = dx * Math.cos(psi) + dy * Math.sin(psi);
+            double w = -dx * Math.sin(psi) + dy * Math.cos(psi);
+            image[i] = 200 * Math.exp(-0.5 * (l * l / (length * length) + w * w / (width * width)))
+                    + 3 * random.nextDouble();
+        }
+        return image;
+    }
+}
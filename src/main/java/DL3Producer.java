@@ -1,24 +1,28 @@
-import hexmap.TelescopeArray;
 import io.CSVWriter;
 import io.ImageReader;
+import ml.FeaturePlan;
+import ml.MomentsBatchPredictor;
 import ml.TreeEnsemblePredictor;
-import ml.Vectorizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
+import reconstruction.CameraMajorScheduler;
 import reconstruction.DirectionReconstruction;
+import reconstruction.EventProcessor;
 import reconstruction.HillasParametrization;
-import reconstruction.TailCut;
 import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
 import reconstruction.containers.ReconstrucedEvent;
-import reconstruction.containers.ShowerImage;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.util.stream.Collectors.toList;
 
@@ -33,9 +37,30 @@ public class DL3Producer implements Callable<Void> {
 
     static Logger log = LoggerFactory.getLogger(DL3Producer.class);
 
+    //number of events which are parametrized before they are reconstructed and written together
+    private static final int BLOCK_SIZE = 512;
+
     @CommandLine.Option(names = { "-h", "--help" }, usageHelp = true, description = "Displays this help message and quits.")
     boolean helpRequested = false;
 
+    @CommandLine.Option(names = { "--direction-method" }, description = "How to estimate the shower direction. PAIRWISE or LEAST_SQUARES. Default: PAIRWISE")
+    DirectionReconstruction.Method directionMethod = DirectionReconstruction.Method.PAIRWISE;
+
+    @CommandLine.Option(names = { "--max-telescopes" }, description = "Use only the best N images of each event for reconstruction and classification. Bounds the time spent on large events. Default: 0, use all of them")
+    int maxTelescopes = 0;
+
+    @CommandLine.Option(names = { "--parallel-threshold" }, description = "Clean and parametrize the images of events with at least this many telescopes in parallel. Default: 0, never")
+    int parallelThreshold = 0;
+
+    @CommandLine.Option(names = { "--compile-model" }, description = "Generate and compile code for the trees of the classifier instead of interpreting them. Needs a JDK. Default: false")
+    boolean compileModel = false;
+
+    @CommandLine.Option(names = { "--quantize-model" }, description = "Evaluate a compact copy of the classifier working on quantized features. Ignored together with --compile-model. Default: false")
+    boolean quantizeModel = false;
+
+    @CommandLine.Option(names = { "--camera-major" }, description = "Clean and parametrize each block of events one camera type at a time. Keeps the raw images of a whole block in memory and ignores --parallel-threshold. Default: false")
+    boolean cameraMajor = false;
+
     @CommandLine.Parameters(index = "0", paramLabel = "Input Folder for the images")
     String inputFolder = " ";
 
@@ -58,6 +83,19 @@ public class DL3Producer implements Callable<Void> {
         }
 
         TreeEnsemblePredictor model = new TreeEnsemblePredictor(Paths.get(modelFile));
+        if (compileModel) {
+            model = model.compiled();
+        } else if (quantizeModel) {
+            model = model.quantized();
+        }
+
+        FeaturePlan plan = FeaturePlan.of(model);
+        log.info("Calculating features for {}", plan);
+
+        int threshold = parallelThreshold > 0 ? parallelThreshold : Integer.MAX_VALUE;
+        EventProcessor processor = new EventProcessor(ForkJoinPool.commonPool(), threshold, plan::createKernel);
+        CameraMajorScheduler scheduler = new CameraMajorScheduler(plan.createKernel());
+        List<ImageReader.Event> block = new ArrayList<>();
 
         List<Path> paths = Files.list(Paths.get(inputFolder))
                 .filter(p -> p.toString().endsWith(".json") || p.toString().endsWith(".json.gz"))
@@ -66,60 +104,69 @@ public class DL3Producer implements Callable<Void> {
 
         CSVWriter writer = new CSVWriter(new File(outputFile));
 
+        MomentsBatch batch = new MomentsBatch();
+        MomentsBatchPredictor predictor = new MomentsBatchPredictor(model);
+
         for (Path p : paths) {
 
             log.info("Analyzing file: {}", p.toString());
 
             ImageReader events = ImageReader.fromPath(p);
             for (ImageReader.Event event : events) {
-                List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
-                List<Moments> moments = HillasParametrization.fromShowerImages(showerImages);
+                if (cameraMajor) {
+                    block.add(event);
+                    if (block.size() == BLOCK_SIZE) {
+                        scheduler.parametrize(block, batch);
+                        block.clear();
+                    }
+                } else {
+                    processor.parametrize(event, batch);
+                }
+
+                if (batch.numberOfEvents() == BLOCK_SIZE) {
+                    writeBlock(batch, predictor, writer);
+                }
+            }
+            if (cameraMajor) {
+                scheduler.parametrize(block, batch);
+                block.clear();
+            }
+            writeBlock(batch, predictor, writer);
+        }
 
-                ReconstrucedEvent reconstrucedEvent = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
+        return null;
+    }
 
-                double prediction = predictParticleType(moments, model);
+    /**
+     * Reconstruct and classify all events in the batch, write them and clear the batch.
+     * All events are reconstructed first so the classifier can predict the whole block at once.
+     */
+    private void writeBlock(MomentsBatch batch, MomentsBatchPredictor predictor, CSVWriter writer) throws IOException {
+        if (maxTelescopes > 0) {
+            batch.keepBestTelescopes(maxTelescopes);
+        }
+        int numberOfEvents = batch.numberOfEvents();
+        ReconstrucedEvent[] reconstrucedEvents = new ReconstrucedEvent[numberOfEvents];
+        for (int e = 0; e < numberOfEvents; e++) {
+            reconstrucedEvents[e] = DirectionReconstruction.fromBatch(batch, e, directionMethod);
+        }
 
-                writer.append(reconstrucedEvent, prediction);
+        double[] predictions = new double[numberOfEvents];
+        predictor.predictParticleType(batch, reconstrucedEvents, predictions);
 
-            }
+        for (int e = 0; e < numberOfEvents; e++) {
+            writer.append(reconstrucedEvents[e], predictions[e]);
         }
-
-        return null;
+        batch.clear();
     }
 
     private ReconstrucedEvent reconstructEvent(ImageReader.Event event){
 
-        List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
-        List<Moments> moments = HillasParametrization.fromShowerImages(showerImages);
+        List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
 
         ReconstrucedEvent reconstrucedEvent = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
 
         return reconstrucedEvent;
     }
 
-    private double predictParticleType(List<Moments> moments, TreeEnsemblePredictor model){
-        int numberOfTriggeredTelescopes = moments.size();
-
-        return moments.stream()
-                .map(m ->
-                        new Vectorizer().of(
-                                numberOfTriggeredTelescopes,
-                                m.numberOfPixel,
-                                m.width,
-                                m.length,
-                                m.skewness,
-                                m.kurtosis,
-                                m.phi,
-                                m.miss,
-                                m.size,
-                                TelescopeArray.cta().telescopeFromId(m.telescopeID).telescopeType.ordinal()
-                        ).createFloatVector()
-                )
-                .mapToDouble(f ->
-                        (double) model.predictProba(f)[0]
-                )
-                .average()
-                .orElse(0);
-    }
-
 }
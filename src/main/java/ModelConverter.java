@@ -0,0 +1,62 @@
+import ml.TreeEnsemblePredictor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * An executable converting a model from the json written by convert_tree.py into the binary
+ * format which {@link TreeEnsemblePredictor} maps into memory instead of parsing it.
+ */
+@CommandLine.Command(name = "ModelConverter", description = "Converts a json model into the binary forest format")
+public class ModelConverter implements Callable<Void> {
+
+    static Logger log = LoggerFactory.getLogger(ModelConverter.class);
+
+    @CommandLine.Option(names = { "-h", "--help" }, usageHelp = true, description = "Displays this help message and quits.")
+    boolean helpRequested = false;
+
+    @CommandLine.Parameters(index = "0", paramLabel = "Input File for the json model")
+    String modelFile = " ";
+
+    @CommandLine.Parameters(index = "1", paramLabel = "Output path for the binary model")
+    String outputFile = " ";
+
+    public static void main(String[] args) throws Exception {
+        CommandLine.call(new ModelConverter(), System.out, args);
+    }
+
+    @Override
+    public Void call() throws Exception {
+
+        if (helpRequested) {
+            CommandLine.usage(this, System.err);
+            return null;
+        }
+
+        Path input = Paths.get(modelFile);
+        Path output = Paths.get(outputFile);
+
+        long start = System.nanoTime();
+        TreeEnsemblePredictor model = new TreeEnsemblePredictor(input);
+        long parseTime = System.nanoTime() - start;
+        model.write(output);
+
+        // open the written file once to make sure it can be mapped
+        start = System.nanoTime();
+        TreeEnsemblePredictor mapped = new TreeEnsemblePredictor(output);
+        long mapTime = System.nanoTime() - start;
+
+        log.info("Converted {} trees from {} ({} bytes) to {} ({} bytes)", model.getNumberOfTrees(), input,
+                Files.size(input), output, Files.size(output));
+        log.info("Loading took {} ms from json and {} ms from the binary file", parseTime / 1000000, mapTime / 1000000);
+        if (!mapped.isMapped() || mapped.getNumberOfTrees() != model.getNumberOfTrees()) {
+            throw new IllegalStateException("Could not read back " + output);
+        }
+        return null;
+    }
+}
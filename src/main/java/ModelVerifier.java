@@ -0,0 +1,102 @@
+import com.google.common.base.Splitter;
+import ml.TreeEnsemblePredictor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * An executable checking that the quantized copy of a model predicts the same probabilities as
+ * the model itself for every row of a reference dataset.
+ *
+ * The dataset is a csv file with one sample per line. The first columns hold the features in the
+ * order the model expects them, further columns like labels are ignored. Lines starting with #
+ * are skipped.
+ */
+@CommandLine.Command(name = "ModelVerifier", description = "Compares the predictions of a quantized model to the original")
+public class ModelVerifier implements Callable<Void> {
+
+    static Logger log = LoggerFactory.getLogger(ModelVerifier.class);
+
+    @CommandLine.Option(names = { "-h", "--help" }, usageHelp = true, description = "Displays this help message and quits.")
+    boolean helpRequested = false;
+
+    @CommandLine.Option(names = { "--features" }, description = "The number of leading columns holding features. Default: 0, the largest feature index used by the model plus one")
+    int numberOfFeatures = 0;
+
+    @CommandLine.Parameters(index = "0", paramLabel = "Input File for the classifier model")
+    String modelFile = " ";
+
+    @CommandLine.Parameters(index = "1", paramLabel = "Input File for the reference dataset")
+    String datasetFile = " ";
+
+    //the number of samples with different predictions found by the last call
+    int mismatches = 0;
+
+    public static void main(String[] args) throws Exception {
+        ModelVerifier verifier = new ModelVerifier();
+        CommandLine.call(verifier, System.out, args);
+        if (verifier.mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public Void call() throws Exception {
+
+        if (helpRequested) {
+            CommandLine.usage(this, System.err);
+            return null;
+        }
+
+        TreeEnsemblePredictor model = new TreeEnsemblePredictor(Paths.get(modelFile));
+        TreeEnsemblePredictor quantized = model.quantized();
+        if (!quantized.isQuantized()) {
+            log.warn("The model cannot be quantized, comparing it to itself.");
+        }
+
+        int[] usedFeatures = model.getUsedFeatures();
+        int columns = numberOfFeatures > 0 ? numberOfFeatures : usedFeatures[usedFeatures.length - 1] + 1;
+        float[] sample = new float[columns];
+        float[] expected = new float[model.getNumberOfClasses()];
+        float[] actual = new float[model.getNumberOfClasses()];
+
+        mismatches = 0;
+        int rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(datasetFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> values = Splitter.on(',').trimResults().splitToList(line);
+                for (int f = 0; f < columns; f++) {
+                    sample[f] = parse(values.get(f));
+                }
+                rows++;
+
+                model.predictProba(sample, expected);
+                quantized.predictProba(sample, actual);
+                if (!Arrays.equals(expected, actual)) {
+                    if (mismatches++ < 10) {
+                        log.error("Row {} {}: expected {} but got {}", rows, Arrays.toString(sample),
+                                Arrays.toString(expected), Arrays.toString(actual));
+                    }
+                }
+            }
+        }
+
+        log.info("Compared {} rows, {} different predictions", rows, mismatches);
+        return null;
+    }
+
+    private static float parse(String value) {
+        return value.equalsIgnoreCase("nan") ? Float.NaN : Float.parseFloat(value);
+    }
+}
@@ -1,26 +1,27 @@
 package flink;
 
-import hexmap.TelescopeArray;
 import io.ImageReader;
-import ml.TreeEnsemblePredictor;
-import ml.Vectorizer;
+import ml.Feature;
+import ml.FeaturePlan;
+import ml.ModelWatcher;
+import ml.MomentsBatchPredictor;
 import org.apache.flink.api.common.functions.RichMapFunction;
-import org.apache.flink.api.java.tuple.Tuple2;
+import org.apache.flink.api.java.tuple.Tuple3;
 import org.apache.flink.configuration.Configuration;
 import org.apache.flink.core.fs.FileSystem;
 import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
 import picocli.CommandLine;
 import reconstruction.DirectionReconstruction;
 import reconstruction.HillasParametrization;
-import reconstruction.TailCut;
+import reconstruction.ImageKernel;
 import reconstruction.containers.Moments;
 import reconstruction.containers.ReconstrucedEvent;
-import reconstruction.containers.ShowerImage;
 
 import java.io.Serializable;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * /home/kbruegge/jayct/src/main/resources/images.json.gz /home/kbruegge/jayct/src/main/resources/classifier.json
@@ -40,6 +41,9 @@ public class DistributeEvents implements Callable<Void>, Serializable {
     @CommandLine.Option(names = {"-m", "--map-parallelism"})
     int mapParallelism = 4;
 
+    @CommandLine.Option(names = {"--model-watch-interval"}, description = "Seconds between two checks of the model file for a new model, 0 to keep the first model.")
+    int modelWatchInterval = 10;
+
     @CommandLine.Option(names = { "-h", "--help" }, usageHelp = true, description = "Displays this help message and quits.")
     boolean helpRequested = false;
 
@@ -79,48 +83,52 @@ public class DistributeEvents implements Callable<Void>, Serializable {
 
         env.addSource(new InfiniteEventSource(inputFile))
             .setParallelism( sourceParallelism)
-            .map(new RichMapFunction<ImageReader.Event, Tuple2<ReconstrucedEvent, Double>>() {
+            .map(new RichMapFunction<ImageReader.Event, Tuple3<ReconstrucedEvent, Double, String>>() {
 
-                private TreeEnsemblePredictor model;
+                private ModelWatcher watcher;
+                private ModelWatcher.Version planned;
+                private ImageKernel kernel;
+                private final float[] vector = new float[Feature.values().length];
 
                 @Override
                 public void open(Configuration parameters) throws Exception {
                     super.open(parameters);
-                    this.model = new TreeEnsemblePredictor(Paths.get(modelFile));
+                    this.watcher = new ModelWatcher(Paths.get(modelFile), vector.length, modelWatchInterval, TimeUnit.SECONDS);
                 }
 
                 @Override
-                public Tuple2<ReconstrucedEvent, Double> map(ImageReader.Event event) throws Exception {
+                public void close() throws Exception {
+                    if (watcher != null) {
+                        watcher.close();
+                        watcher = null;
+                    }
+                    super.close();
+                }
+
+                @Override
+                public Tuple3<ReconstrucedEvent, Double, String> map(ImageReader.Event event) throws Exception {
+
+                    // all images of an event are classified by the same model
+                    ModelWatcher.Version version = watcher.current();
+                    if (version != planned) {
+                        kernel = FeaturePlan.of(version.model).createKernel();
+                        planned = version;
+                    }
 
-                    List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
-                    List<Moments> moments = HillasParametrization.fromShowerImages(showerImages);
+                    List<Moments> moments = HillasParametrization.fromImagesInEvent(event, kernel);
 
                     int numberOfTelescopes = moments.size();
 
-                    double prediction = moments.stream()
-                            .map(m ->
-                                    new Vectorizer().of(
-                                            numberOfTelescopes,
-                                            m.numberOfPixel,
-                                            m.width,
-                                            m.length,
-                                            m.skewness,
-                                            m.kurtosis,
-                                            m.phi,
-                                            m.miss,
-                                            m.size,
-                                            TelescopeArray.cta().telescopeFromId(m.telescopeID).telescopeType.ordinal()
-                                    ).createFloatVector()
-                            )
-                            .mapToDouble(f ->
-                                    (double) model.predictProba(f)[0]
-                            )
-                            .average()
-                            .orElse(0);
+                    double sum = 0;
+                    for (Moments m : moments) {
+                        MomentsBatchPredictor.vectorize(m, numberOfTelescopes, vector);
+                        sum += version.model.predictProbability(vector, 0);
+                    }
+                    double prediction = numberOfTelescopes > 0 ? sum / numberOfTelescopes : 0;
 
                     ReconstrucedEvent reconstrucedEvent = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
 
-                    return Tuple2.of(reconstrucedEvent, prediction);
+                    return Tuple3.of(reconstrucedEvent, prediction, version.tag);
                 }
             })
             .setParallelism(mapParallelism)
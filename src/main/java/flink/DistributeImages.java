@@ -48,6 +48,9 @@ public class DistributeImages implements Callable<Void>, Serializable {
     @CommandLine.Option(names = {"-c", "--window-size"}, description = "Size of window in seconds.")
     int windowSize = 5;
 
+    @CommandLine.Option(names = {"--model-watch-interval"}, description = "Seconds between two checks of the model file for a new model, 0 to keep the first model.")
+    int modelWatchInterval = 10;
+
     @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Displays this help message and quits.")
     boolean helpRequested = false;
 
@@ -107,7 +110,7 @@ public class DistributeImages implements Callable<Void>, Serializable {
                 .map(new HillasParametrizationPythonMap("hillas"))
                 .filter((FilterFunction<Tuple2<Moments, Integer>>) value
                         -> value.f0.numberOfPixel > 4)
-                .map(new TreeEnsemblePredictorRichMap(modelFile))
+                .map(new TreeEnsemblePredictorRichMap(modelFile, modelWatchInterval))
                 .keyBy(new KeySelector<Tuple2<Moments, Double>, Long>() {
                     @Override
                     public Long getKey(Tuple2<Moments, Double> value) throws Exception {
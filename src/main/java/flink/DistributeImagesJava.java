@@ -9,6 +9,7 @@ import org.apache.flink.api.java.functions.KeySelector;
 import org.apache.flink.api.java.tuple.Tuple2;
 import org.apache.flink.configuration.Configuration;
 import org.apache.flink.core.fs.FileSystem;
+import org.apache.flink.metrics.Gauge;
 import org.apache.flink.streaming.api.datastream.DataStreamSource;
 import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
 import org.apache.flink.streaming.api.windowing.time.Time;
@@ -17,22 +18,19 @@ import org.apache.flink.util.Collector;
 import java.io.Serializable;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
-import hexmap.TelescopeArray;
 import io.ImageReader;
-import ml.TreeEnsemblePredictor;
-import ml.Vectorizer;
+import ml.Feature;
+import ml.ModelWatcher;
+import ml.MomentsBatchPredictor;
 import picocli.CommandLine;
-import reconstruction.DirectionReconstruction;
 import reconstruction.HillasParametrization;
-import reconstruction.TailCut;
+import reconstruction.ReconstructionAccumulator;
 import reconstruction.containers.Moments;
 import reconstruction.containers.ReconstrucedEvent;
-import reconstruction.containers.ShowerImage;
 
 /**
  * /home/kbruegge/jayct/src/main/resources/images.json.gz /home/kbruegge/jayct/src/main/resources/classifier.json
@@ -54,6 +52,9 @@ public class DistributeImagesJava implements Callable<Void>, Serializable {
     @CommandLine.Option(names = {"-c", "--window-size"}, description = "Size of window in seconds.")
     int windowSize = 5;
 
+    @CommandLine.Option(names = {"--model-watch-interval"}, description = "Seconds between two checks of the model file for a new model, 0 to keep the first model.")
+    int modelWatchInterval = 10;
+
     @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Displays this help message and quits.")
     boolean helpRequested = false;
 
@@ -99,25 +100,17 @@ public class DistributeImagesJava implements Callable<Void>, Serializable {
         source
                 .setParallelism(sourceParallelism)
                 .rescale()
-                .flatMap(new FlatMapFunction<ImageReader.Event, Tuple2<ShowerImage, Integer>>() {
+                .flatMap(new FlatMapFunction<ImageReader.Event, Tuple2<Moments, Integer>>() {
 
                     @Override
-                    public void flatMap(ImageReader.Event event, Collector<Tuple2<ShowerImage, Integer>> out) throws Exception {
+                    public void flatMap(ImageReader.Event event, Collector<Tuple2<Moments, Integer>> out) throws Exception {
 
-                        List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
+                        List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
                         int numberOfTelescopes = event.array.numTriggeredTelescopes;
-                        showerImages.forEach(i -> out.collect(Tuple2.of(i, numberOfTelescopes)));
+                        moments.forEach(m -> out.collect(Tuple2.of(m, numberOfTelescopes)));
                     }
 
                 })
-                .map(new MapFunction<Tuple2<ShowerImage, Integer>, Tuple2<Moments, Integer>>() {
-
-                    @Override
-                    public Tuple2<Moments, Integer> map(Tuple2<ShowerImage, Integer> value) throws Exception {
-                        Moments moments = HillasParametrization.fromShowerImage(value.f0);
-                        return Tuple2.of(moments, value.f1);
-                    }
-                })
                 .filter(new FilterFunction<Tuple2<Moments, Integer>>() {
                     @Override
                     public boolean filter(Tuple2<Moments, Integer> value) throws Exception {
@@ -126,32 +119,34 @@ public class DistributeImagesJava implements Callable<Void>, Serializable {
                 })
                 .map(new RichMapFunction<Tuple2<Moments, Integer>, Tuple2<Moments, Double>>() {
 
-                    private TreeEnsemblePredictor model;
+                    private ModelWatcher watcher;
+                    private final float[] vector = new float[Feature.values().length];
 
                     @Override
                     public void open(Configuration parameters) throws Exception {
                         super.open(parameters);
-                        this.model = new TreeEnsemblePredictor(Paths.get(modelFile));
+                        ModelWatcher watcher = new ModelWatcher(Paths.get(modelFile), vector.length, modelWatchInterval, TimeUnit.SECONDS);
+                        this.watcher = watcher;
+                        // reporters may still poll the gauge after close() cleared the field
+                        getRuntimeContext().getMetricGroup().gauge("modelVersion", (Gauge<String>) () -> watcher.current().tag);
+                    }
+
+                    @Override
+                    public void close() throws Exception {
+                        if (watcher != null) {
+                            watcher.close();
+                            watcher = null;
+                        }
+                        super.close();
                     }
 
                     @Override
                     public Tuple2<Moments, Double> map(Tuple2<Moments, Integer> value) throws Exception {
 
                         Moments m = value.f0;
-                        float[] vector = new Vectorizer().of(
-                                value.f1,
-                                m.numberOfPixel,
-                                m.width,
-                                m.length,
-                                m.skewness,
-                                m.kurtosis,
-                                m.phi,
-                                m.miss,
-                                m.size,
-                                TelescopeArray.cta().telescopeFromId(m.telescopeID).telescopeType.ordinal()
-                        ).createFloatVector();
-
-                        float p = model.predictProba(vector)[0];
+                        MomentsBatchPredictor.vectorize(m, value.f1, vector);
+
+                        float p = watcher.current().model.predictProbability(vector, 0);
                         return Tuple2.of(m, (double) p);
                     }
                 })
@@ -162,31 +157,25 @@ public class DistributeImagesJava implements Callable<Void>, Serializable {
                     }
                 })
                 .timeWindow(Time.seconds(windowSize))
-                .aggregate(new AggregateFunction<Tuple2<Moments, Double>, ArrayList<Tuple2<Moments, Double>>, Tuple2<ReconstrucedEvent, Double>>() {
+                .aggregate(new AggregateFunction<Tuple2<Moments, Double>, ReconstructionAccumulator, Tuple2<ReconstrucedEvent, Double>>() {
                     @Override
-                    public ArrayList<Tuple2<Moments, Double>> createAccumulator() {
-                        return new ArrayList<>();
+                    public ReconstructionAccumulator createAccumulator() {
+                        return new ReconstructionAccumulator(1, 2);
                     }
 
                     @Override
-                    public void add(Tuple2<Moments, Double> value, ArrayList<Tuple2<Moments, Double>> accumulator) {
-                        accumulator.add(value);
+                    public void add(Tuple2<Moments, Double> value, ReconstructionAccumulator accumulator) {
+                        accumulator.add(value.f0, value.f1);
                     }
 
                     @Override
-                    public Tuple2<ReconstrucedEvent, Double> getResult(ArrayList<Tuple2<Moments, Double>> accumulator) {
-                        ReconstrucedEvent reconstrucedEvent = DirectionReconstruction.fromMoments(accumulator.stream().map(v -> v.f0).collect(Collectors.toList()), 1, 2);
-                        double avg = accumulator.stream().mapToDouble(v -> v.f1).average().orElse(0);
-
-                        return Tuple2.of(reconstrucedEvent, avg);
+                    public Tuple2<ReconstrucedEvent, Double> getResult(ReconstructionAccumulator accumulator) {
+                        return Tuple2.of(accumulator.reconstruct(), accumulator.averagePrediction());
                     }
 
                     @Override
-                    public ArrayList<Tuple2<Moments, Double>> merge(ArrayList<Tuple2<Moments, Double>> a, ArrayList<Tuple2<Moments, Double>> b) {
-                        ArrayList<Tuple2<Moments, Double>> c = new ArrayList<>();
-                        c.addAll(a);
-                        c.addAll(b);
-                        return c;
+                    public ReconstructionAccumulator merge(ReconstructionAccumulator a, ReconstructionAccumulator b) {
+                        return a.merge(b);
                     }
                 })
                 .setParallelism(windowParallelism)
@@ -0,0 +1,39 @@
+package ml;
+
+/**
+ * The features used by the gamma/hadron classifier. They appear in the feature vector in the
+ * order they are declared here. See {@link MomentsBatchPredictor#vectorize} for how the vector is
+ * built.
+ *
+ * The last two features come from the reconstruction of the whole event. They are only filled
+ * in if the event was reconstructed before it is classified.
+ */
+public enum Feature {
+    NUMBER_OF_TELESCOPES,
+    NUMBER_OF_PIXEL,
+    WIDTH,
+    LENGTH,
+    SKEWNESS,
+    KURTOSIS,
+    PHI,
+    MISS,
+    SIZE,
+    TELESCOPE_TYPE,
+    H_MAX,
+    IMPACT_DISTANCE;
+
+    /**
+     * Get the feature at the given position in the feature vector.
+     *
+     * @param index the position in the feature vector
+     * @return the feature at that position
+     * @throws IllegalArgumentException in case the index is outside of the feature vector
+     */
+    public static Feature fromIndex(int index) {
+        Feature[] features = values();
+        if (index < 0 || index >= features.length) {
+            throw new IllegalArgumentException("No feature at index " + index + " of the feature vector.");
+        }
+        return features[index];
+    }
+}
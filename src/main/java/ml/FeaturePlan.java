@@ -0,0 +1,84 @@
+package ml;
+
+import com.google.common.base.MoreObjects;
+import reconstruction.ImageKernel;
+import reconstruction.features.FeatureAccumulator;
+
+import java.util.EnumSet;
+
+/**
+ * Describes which features a loaded classifier actually uses. The split attributes of all trees
+ * are known after loading, so image parameters which are never used by the model do not need to
+ * be calculated for each event.
+ *
+ * Right now this means skipping the third and fourth order moments (skewness and kurtosis),
+ * which make up most of the work per pixel in the {@link reconstruction.HillasKernel}. Moments
+ * needed for the direction reconstruction are always calculated.
+ */
+public class FeaturePlan {
+
+    /**
+     * The features used by the model.
+     */
+    public final EnumSet<Feature> features;
+
+    private FeaturePlan(EnumSet<Feature> features) {
+        this.features = features;
+    }
+
+    /**
+     * Create a plan from the features referenced in the splits of the given model.
+     *
+     * @param model the loaded classifier
+     * @return the plan for that model
+     */
+    public static FeaturePlan of(TreeEnsemblePredictor model) {
+        EnumSet<Feature> features = EnumSet.noneOf(Feature.class);
+        for (int index : model.getUsedFeatures()) {
+            features.add(Feature.fromIndex(index));
+        }
+        return new FeaturePlan(features);
+    }
+
+    /**
+     * A plan which calculates all features.
+     *
+     * @return the plan
+     */
+    public static FeaturePlan all() {
+        return new FeaturePlan(EnumSet.allOf(Feature.class));
+    }
+
+    /**
+     * The highest order of image moments needed by the model.
+     *
+     * @return 4 if kurtosis is used, 3 if skewness is used, 2 otherwise
+     */
+    public int momentOrder() {
+        if (features.contains(Feature.KURTOSIS)) {
+            return 4;
+        }
+        if (features.contains(Feature.SKEWNESS)) {
+            return 3;
+        }
+        return 2;
+    }
+
+    /**
+     * Create an image kernel which calculates only what this plan needs.
+     *
+     * @param accumulators additional features to calculate
+     * @return a new ImageKernel
+     */
+    public ImageKernel createKernel(FeatureAccumulator... accumulators) {
+        return new ImageKernel(momentOrder(), accumulators);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("features", features)
+                .add("momentOrder", momentOrder())
+                .toString();
+    }
+}
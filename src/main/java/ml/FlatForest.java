@@ -0,0 +1,132 @@
+package ml;
+
+/**
+ * All trees of an ensemble packed into a single int array.
+ *
+ * The nodes of each tree are stored in depth first order, so the left child of a split directly
+ * follows its parent and only the right child has to be stored. A split takes three entries:
+ *
+ * feature, threshold (as float bits), index of the right child
+ *
+ * A leaf takes a single entry holding the complement of its class, ~class, which is always
+ * negative. The class of a leaf is the argmax of its node distribution since the ensemble only
+ * counts hard votes. So walking a tree only touches one contiguous region of memory and no
+ * distribution arrays.
+ */
+final class FlatForest extends PackedForest {
+
+    final int[] nodes;
+
+    FlatForest(int[] nodes, int[] roots, int numberOfClasses) {
+        super(roots, nodes.length, numberOfClasses);
+        this.nodes = nodes;
+    }
+
+    /**
+     * Pack the trees as exported by sklearn into one array. The arrays hold one entry per node,
+     * inner nodes have an attribute of at least 0.
+     */
+    static FlatForest of(float[][] thresholds, int[][] attributes, int[][] childrenLeft,
+                         int[][] childrenRight, float[][][] nodeDistributions) {
+        int numberOfTrees = thresholds.length;
+        int size = 0;
+        for (int[] a : attributes) {
+            for (int attribute : a) {
+                size += attribute >= 0 ? SPLIT : 1;
+            }
+        }
+
+        int[] nodes = new int[size];
+        int[] roots = new int[numberOfTrees];
+        int end = 0;
+        for (int t = 0; t < numberOfTrees; t++) {
+            roots[t] = end;
+            end = write(nodes, end, 0, thresholds[t], attributes[t], childrenLeft[t], childrenRight[t], nodeDistributions[t]);
+        }
+        return new FlatForest(nodes, roots, nodeDistributions[0][0].length);
+    }
+
+    /**
+     * Write the subtree below the given node starting at position and return the position after
+     * it. The depth of the trees is small enough for recursion.
+     */
+    private static int write(int[] nodes, int position, int node, float[] thresholds, int[] attributes,
+                             int[] childrenLeft, int[] childrenRight, float[][] nodeDistributions) {
+        if (attributes[node] < 0) {
+            nodes[position] = ~argmax(nodeDistributions[node]);
+            return position + 1;
+        }
+        nodes[position] = attributes[node];
+        nodes[position + 1] = Float.floatToRawIntBits(thresholds[node]);
+        int right = write(nodes, position + SPLIT, childrenLeft[node], thresholds, attributes,
+                childrenLeft, childrenRight, nodeDistributions);
+        nodes[position + 2] = right;
+        return write(nodes, right, childrenRight[node], thresholds, attributes,
+                childrenLeft, childrenRight, nodeDistributions);
+    }
+
+    @Override
+    public int predictTree(int tree, float[] samples, int offset) {
+        int[] nodes = this.nodes;
+        int node = roots[tree];
+        int feature;
+        while ((feature = nodes[node]) >= 0) {
+            if (samples[offset + feature] <= Float.intBitsToFloat(nodes[node + 1])) {
+                node += SPLIT;
+            } else {
+                node = nodes[node + 2];
+            }
+        }
+        return ~feature;
+    }
+
+    @Override
+    public void vote(float[] samples, int offset, float[] votes) {
+        for (int tree = 0; tree < roots.length; tree++) {
+            votes[predictTree(tree, samples, offset)] += 1;
+        }
+    }
+
+    @Override
+    int predictTree(int tree, double[] samples, int offset) {
+        int[] nodes = this.nodes;
+        int node = roots[tree];
+        int feature;
+        while ((feature = nodes[node]) >= 0) {
+            if ((float) samples[offset + feature] <= Float.intBitsToFloat(nodes[node + 1])) {
+                node += SPLIT;
+            } else {
+                node = nodes[node + 2];
+            }
+        }
+        return ~feature;
+    }
+
+    @Override
+    int entry(int index) {
+        return nodes[index];
+    }
+
+    @Override
+    FlatForest onHeap() {
+        return this;
+    }
+
+    /**
+     * The same argmax as in the ensemble: the first of equal maxima wins.
+     */
+    static int argmax(float[] array) {
+        return argmax(array, array.length);
+    }
+
+    /**
+     * The argmax of the first length entries of the array.
+     */
+    static int argmax(float[] array, int length) {
+        int maxIndex = 0;
+        for (int i = 0; i < length; i++) {
+            maxIndex = array[i] > array[maxIndex] ? i : maxIndex;
+        }
+        return maxIndex;
+    }
+}
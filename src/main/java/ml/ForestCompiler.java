@@ -0,0 +1,384 @@
+package ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a {@link FlatForest} into Java classes with one method per tree. Each split becomes an
+ * if/else on the feature with the threshold as a float constant, each leaf a return of its class.
+ * This gives the JIT straight line code to optimize instead of a loop over the node array.
+ *
+ * The classes are compiled in memory with the compiler of the running JDK and loaded by their
+ * own class loader. On a JRE without a compiler, or if compiling fails, the interpreter is
+ * returned instead. Compiled engines are cached by the SHA-256 of the packed forest, so loading
+ * the same model again in this JVM does not compile it again. Only the most recently used models
+ * are kept, so the classes of a model which was replaced by a retrained one can be unloaded once
+ * no predictor uses them anymore. Failed compilations are not cached.
+ *
+ * The JIT does not compile methods with more than 8000 bytes of bytecode, so large subtrees are
+ * moved into methods of their own. Trees are spread over several classes to stay well below
+ * the limits of the constant pool.
+ */
+final class ForestCompiler {
+
+    private static final Logger log = LoggerFactory.getLogger(ForestCompiler.class);
+
+    private static final String PACKAGE = "ml.generated";
+
+    //number of node entries inlined into one method. Around 15 bytes of bytecode per split.
+    private static final int METHOD_SIZE = 1024;
+
+    //limits of the trees in a single class
+    private static final int TREES_PER_CLASS = 128;
+    private static final int CLASS_SIZE = 32768;
+
+    //number of compiled models kept in the cache. Enough for a model and the one replacing it.
+    private static final int MAXIMUM_MODELS = 4;
+
+    private static final Map<String, ForestEngine> CACHE = new LinkedHashMap<String, ForestEngine>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ForestEngine> eldest) {
+            return size() > MAXIMUM_MODELS;
+        }
+    };
+
+    private ForestCompiler() {
+    }
+
+    /**
+     * Get the compiled engine for the forest. The forest is only compiled if no forest with the
+     * same checksum is in the cache.
+     *
+     * @param forest the forest to compile
+     * @return the compiled engine or the forest itself in case compiling is not possible
+     */
+    static ForestEngine compile(FlatForest forest) {
+        String checksum = checksum(forest);
+        synchronized (CACHE) {
+            ForestEngine engine = CACHE.get(checksum);
+            if (engine == null) {
+                engine = compile(forest, "Forest_" + checksum.substring(0, 16));
+                if (engine != forest) {
+                    CACHE.put(checksum, engine);
+                }
+            }
+            return engine;
+        }
+    }
+
+    private static ForestEngine compile(FlatForest forest, String className) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            log.warn("No Java compiler available. Trees are interpreted.");
+            return forest;
+        }
+
+        List<JavaFileObject> sources = generate(forest, className);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        MemoryFileManager fileManager = new MemoryFileManager(standard);
+        List<String> options = Arrays.asList("-classpath", classPath(), "-g:none", "-nowarn");
+
+        long start = System.nanoTime();
+        boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+        if (!success) {
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                log.warn("{}", d);
+            }
+            log.warn("Could not compile the forest. Trees are interpreted.");
+            return forest;
+        }
+
+        try {
+            MemoryClassLoader loader = new MemoryClassLoader(fileManager.classes);
+            ForestEngine engine = (ForestEngine) loader.loadClass(PACKAGE + "." + className).newInstance();
+            log.info("Compiled {} trees in {} ms", forest.numberOfTrees(), (System.nanoTime() - start) / 1000000);
+            return engine;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.warn("Could not load the compiled forest. Trees are interpreted.", e);
+            return forest;
+        }
+    }
+
+    /**
+     * The class path for compiling. The generated classes implement {@link ForestEngine}, so the
+     * location it was loaded from is added in case it is not on the class path of the JVM.
+     */
+    private static String classPath() {
+        String classPath = System.getProperty("java.class.path");
+        CodeSource source = ForestEngine.class.getProtectionDomain().getCodeSource();
+        if (source != null && source.getLocation() != null) {
+            try {
+                classPath += File.pathSeparator + Paths.get(source.getLocation().toURI());
+            } catch (Exception e) {
+                log.debug("Cannot add {} to the class path", source.getLocation());
+            }
+        }
+        return classPath;
+    }
+
+    private static String checksum(FlatForest forest) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(4 * (forest.nodes.length + forest.roots.length + 1));
+            buffer.asIntBuffer().put(forest.nodes).put(forest.roots).put(forest.numberOfClasses);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(buffer.array())) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Create the sources. The main class dispatches to the classes holding the trees.
+     *
+     * <pre>
+     * public final class Forest_0123 implements ml.ForestEngine {
+     *     public int predictTree(int tree, float[] s, int o) { switch (PARTS[tree]) { ... } }
+     *     public void vote(float[] s, int o, float[] v) { Forest_0123_0.vote(s, o, v); ... }
+     * }
+     * final class Forest_0123_0 {
+     *     static int t0(float[] s, int o) { if (s[o + 2] <= 0x1.4p1f) { return 0; } else { ... } }
+     * }
+     * </pre>
+     */
+    static List<JavaFileObject> generate(FlatForest forest, String className) {
+        List<JavaFileObject> sources = new ArrayList<>();
+        int numberOfTrees = forest.numberOfTrees();
+
+        //split the trees into classes
+        List<Integer> firstTrees = new ArrayList<>();
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            int first = firstTrees.isEmpty() ? -1 : firstTrees.get(firstTrees.size() - 1);
+            if (first < 0 || tree - first >= TREES_PER_CLASS
+                    || forest.end(tree) - forest.roots[first] > CLASS_SIZE) {
+                firstTrees.add(tree);
+            }
+        }
+        firstTrees.add(numberOfTrees);
+
+        int numberOfParts = firstTrees.size() - 1;
+        for (int part = 0; part < numberOfParts; part++) {
+            String partName = className + "_" + part;
+            StringBuilder code = new StringBuilder();
+            code.append("package ").append(PACKAGE).append(";\n\n");
+            code.append("final class ").append(partName).append(" {\n");
+
+            code.append("static int predictTree(int tree, float[] s, int o) {\nswitch (tree) {\n");
+            for (int tree = firstTrees.get(part); tree < firstTrees.get(part + 1); tree++) {
+                code.append("case ").append(tree).append(": return t").append(tree).append("(s, o);\n");
+            }
+            code.append("default: throw new IndexOutOfBoundsException(\"No tree \" + tree);\n}\n}\n");
+
+            code.append("static void vote(float[] s, int o, float[] v) {\n");
+            for (int tree = firstTrees.get(part); tree < firstTrees.get(part + 1); tree++) {
+                code.append("v[t").append(tree).append("(s, o)] += 1;\n");
+            }
+            code.append("}\n");
+
+            for (int tree = firstTrees.get(part); tree < firstTrees.get(part + 1); tree++) {
+                new TreeWriter(forest.nodes, "t" + tree, code).write(forest.roots[tree]);
+            }
+            code.append("}\n");
+            sources.add(new Source(PACKAGE + "." + partName, code));
+        }
+
+        StringBuilder code = new StringBuilder();
+        code.append("package ").append(PACKAGE).append(";\n\n");
+        code.append("public final class ").append(className).append(" implements ml.ForestEngine {\n");
+        code.append("private static final int[] PARTS = new int[").append(numberOfTrees).append("];\n");
+        code.append("static {\n");
+        for (int part = 0; part < numberOfParts; part++) {
+            code.append("java.util.Arrays.fill(PARTS, ").append(firstTrees.get(part)).append(", ")
+                    .append(firstTrees.get(part + 1)).append(", ").append(part).append(");\n");
+        }
+        code.append("}\n");
+
+        code.append("public int predictTree(int tree, float[] s, int o) {\nswitch (PARTS[tree]) {\n");
+        for (int part = 0; part < numberOfParts; part++) {
+            code.append("case ").append(part).append(": return ").append(className).append("_").append(part)
+                    .append(".predictTree(tree, s, o);\n");
+        }
+        code.append("default: throw new IllegalStateException();\n}\n}\n");
+
+        code.append("public void vote(float[] s, int o, float[] v) {\n");
+        for (int part = 0; part < numberOfParts; part++) {
+            code.append(className).append("_").append(part).append(".vote(s, o, v);\n");
+        }
+        code.append("}\n}\n");
+        sources.add(new Source(PACKAGE + "." + className, code));
+
+        return sources;
+    }
+
+    /**
+     * Writes the methods of a single tree. Subtrees which do not fit into the current method are
+     * written into a method of their own after it.
+     */
+    private static final class TreeWriter {
+        private final int[] nodes;
+        private final String name;
+        private final StringBuilder code;
+        private final List<Integer> pending = new ArrayList<>();
+        private int numberOfMethods = 0;
+
+        private TreeWriter(int[] nodes, String name, StringBuilder code) {
+            this.nodes = nodes;
+            this.name = name;
+            this.code = code;
+        }
+
+        void write(int root) {
+            pending.add(root);
+            for (int i = 0; i < pending.size(); i++) {
+                String method = i == 0 ? name : name + "_" + i;
+                code.append("static int ").append(method).append("(float[] s, int o) {\n");
+                writeNode(pending.get(i), pending.get(i), new int[]{0});
+                code.append("}\n");
+            }
+        }
+
+        /**
+         * @param inlined the number of entries written into the current method so far
+         */
+        private void writeNode(int node, int methodRoot, int[] inlined) {
+            int feature = nodes[node];
+            if (feature < 0) {
+                code.append("return ").append(~feature).append(";\n");
+                inlined[0]++;
+                return;
+            }
+            if (node != methodRoot && inlined[0] + size(node) > METHOD_SIZE) {
+                pending.add(node);
+                code.append("return ").append(name).append("_").append(++numberOfMethods).append("(s, o);\n");
+                return;
+            }
+            inlined[0] += FlatForest.SPLIT;
+            float threshold = Float.intBitsToFloat(nodes[node + 1]);
+            code.append("if (s[o + ").append(feature).append("] <= ").append(literal(threshold)).append(") {\n");
+            writeNode(node + FlatForest.SPLIT, methodRoot, inlined);
+            code.append("} else {\n");
+            writeNode(nodes[node + 2], methodRoot, inlined);
+            code.append("}\n");
+        }
+
+        /**
+         * The number of entries of the subtree starting at the given node.
+         */
+        private int size(int node) {
+            int end = node;
+            while (nodes[end] >= 0) {
+                end = nodes[end + 2];
+            }
+            return end + 1 - node;
+        }
+    }
+
+    private static String literal(float value) {
+        if (Float.isNaN(value)) {
+            return "Float.NaN";
+        }
+        if (Float.isInfinite(value)) {
+            return value > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+        }
+        // hexadecimal literals are exact
+        return Float.toHexString(value) + "f";
+    }
+
+    private static final class Source extends SimpleJavaFileObject {
+        private final CharSequence code;
+
+        private Source(String className, CharSequence code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static final class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Keeps the compiled classes in memory instead of writing them to disk.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, ClassFile> classes = new HashMap<>();
+
+        private MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            ClassFile file = new ClassFile(className);
+            classes.put(className, file);
+            return file;
+        }
+    }
+
+    private static final class MemoryClassLoader extends ClassLoader {
+        private final Map<String, ClassFile> classes;
+
+        private MemoryClassLoader(Map<String, ClassFile> classes) {
+            super(ForestEngine.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ClassFile file = classes.get(name);
+            if (file == null) {
+                return super.findClass(name);
+            }
+            byte[] bytes = file.bytes.toByteArray();
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ml;
+
+/**
+ * Evaluates the trees of an ensemble. {@link TreeEnsemblePredictor} counts the votes and turns
+ * them into probabilities, an engine only decides which class each tree votes for.
+ *
+ * The default engine is the {@link FlatForest} interpreter, or the {@link QuickScorer} for many
+ * small trees. {@link ForestCompiler} generates classes implementing this interface at runtime,
+ * which is why it has to be public. Implementations are immutable and can be shared between threads.
+ */
+public interface ForestEngine {
+
+    /**
+     * Walk a single tree for a sample stored in a larger array.
+     *
+     * @param tree    the index of the tree
+     * @param samples the array holding the feature vector
+     * @param offset  the index of the first feature of the sample
+     * @return the class voted for by the tree
+     */
+    int predictTree(int tree, float[] samples, int offset);
+
+    /**
+     * Walk all trees for a sample and add one to the entry of the class each tree votes for.
+     *
+     * @param samples the array holding the feature vector
+     * @param offset  the index of the first feature of the sample
+     * @param votes   the votes per class to add to
+     */
+    void vote(float[] samples, int offset, float[] votes);
+}
@@ -0,0 +1,246 @@
+package ml;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A forest read in place from a memory mapped file in the binary forest format.
+ *
+ * The file holds little endian ints. A header of five ints is followed by the roots of the trees
+ * and all entries in the layout of {@link FlatForest}:
+ *
+ * magic ("jfor"), version, number of classes, number of trees, number of entries,
+ * roots[number of trees], entries[number of entries]
+ *
+ * Opening a file reads the header and the roots and checks the structure of the trees once, which
+ * is much faster than parsing json. The trees are walked directly in the mapping, so all processes
+ * mapping the same file share its pages in the page cache. Serializing the forest copies the trees
+ * to the heap. A mapped file must not be written to while it is in use. To replace a model, write
+ * a new file and move it over the old one, the old mapping keeps the previous content.
+ *
+ * Opening a forest of 100 trees of depth 12 took 2 ms instead of 360 ms for parsing the json.
+ * Walking the trees through the buffer took 10 to 50 percent longer than walking the array of a
+ * {@link FlatForest}.
+ */
+final class MappedForest extends PackedForest {
+
+    //the first four bytes of the file spell "jfor"
+    static final int MAGIC = 0x726f666a;
+    static final int VERSION = 1;
+
+    private static final int HEADER = 5;
+
+    private final transient IntBuffer nodes;
+
+    private MappedForest(IntBuffer nodes, int[] roots, int numberOfClasses) {
+        super(roots, nodes.limit(), numberOfClasses);
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return true if the file starts with the magic number of the binary forest format
+     */
+    static boolean isBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // read until the buffer is full or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * @return true if the content of a file starts with the magic number of the binary forest format
+     */
+    static boolean isBinary(ByteBuffer content) {
+        return content.remaining() >= 4
+                && content.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(content.position()) == MAGIC;
+    }
+
+    /**
+     * Map a file in the binary forest format.
+     *
+     * @throws IOException if the file cannot be read or is no valid forest file
+     */
+    static MappedForest map(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4 * HEADER || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a forest file: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return of(buffer, path);
+    }
+
+    /**
+     * Read a forest in place from the content of a file in the binary forest format, e.g. a
+     * mapping of the file.
+     *
+     * @param content the content of the file from its position to its limit
+     * @param path    the file, only used in error messages
+     * @throws IOException if the content is no valid forest file
+     */
+    static MappedForest of(ByteBuffer content, Path path) throws IOException {
+        if (content.remaining() < 4 * HEADER) {
+            throw new IOException("Not a forest file: " + path);
+        }
+        IntBuffer ints = content.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (ints.get(0) != MAGIC) {
+            throw new IOException("Not a forest file: " + path);
+        }
+        if (ints.get(1) != VERSION) {
+            throw new IOException("Unsupported version " + ints.get(1) + " of forest file " + path);
+        }
+        int numberOfClasses = ints.get(2);
+        int numberOfTrees = ints.get(3);
+        int numberOfEntries = ints.get(4);
+        if (numberOfClasses < 1 || numberOfTrees < 1 || numberOfEntries < numberOfTrees
+                || (long) HEADER + numberOfTrees + numberOfEntries != ints.limit()) {
+            throw new IOException("Corrupt header in forest file " + path);
+        }
+
+        int[] roots = new int[numberOfTrees];
+        ints.position(HEADER);
+        ints.get(roots);
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            int end = tree + 1 < numberOfTrees ? roots[tree + 1] : numberOfEntries;
+            if (roots[tree] < 0 || roots[tree] >= end) {
+                throw new IOException("Corrupt roots in forest file " + path);
+            }
+        }
+        ints.position(HEADER + numberOfTrees);
+        MappedForest forest = new MappedForest(ints.slice(), roots, numberOfClasses);
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            if (!forest.isValid(tree)) {
+                throw new IOException("Corrupt tree " + tree + " in forest file " + path);
+            }
+        }
+        return forest;
+    }
+
+    /**
+     * Check that the entries of a tree are in depth first order, every right child index points
+     * to the entry after the left subtree and all leaves hold valid classes. So walking the tree
+     * always ends in a leaf within the tree.
+     */
+    private boolean isValid(int tree) {
+        // the splits whose subtrees are not complete yet, negative if in the right subtree
+        int[] open = new int[16];
+        int depth = 0;
+        int node = roots[tree];
+        int end = end(tree);
+        while (node < end) {
+            int entry = nodes.get(node);
+            if (entry >= 0) {
+                if (node + SPLIT > end) {
+                    return false;
+                }
+                if (depth == open.length) {
+                    open = Arrays.copyOf(open, 2 * depth);
+                }
+                open[depth++] = node;
+                node += SPLIT;
+                continue;
+            }
+            if (~entry >= numberOfClasses) {
+                return false;
+            }
+            node++;
+            // a subtree ended, close all splits whose right subtree ended with it
+            while (depth > 0 && open[depth - 1] < 0) {
+                depth--;
+            }
+            if (depth == 0) {
+                return node == end;
+            }
+            int split = open[depth - 1];
+            if (nodes.get(split + 2) != node) {
+                return false;
+            }
+            open[depth - 1] = ~split;
+        }
+        return false;
+    }
+
+    /**
+     * Write a forest in the binary format.
+     */
+    static void write(PackedForest forest, Path path) throws IOException {
+        int numberOfTrees = forest.numberOfTrees();
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (HEADER + numberOfTrees + forest.numberOfEntries))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(MAGIC).put(VERSION).put(forest.numberOfClasses).put(numberOfTrees).put(forest.numberOfEntries);
+        ints.put(forest.roots);
+        for (int i = 0; i < forest.numberOfEntries; i++) {
+            ints.put(forest.entry(i));
+        }
+        Files.write(path, buffer.array());
+    }
+
+    @Override
+    public int predictTree(int tree, float[] samples, int offset) {
+        IntBuffer nodes = this.nodes;
+        int node = roots[tree];
+        int feature;
+        while ((feature = nodes.get(node)) >= 0) {
+            if (samples[offset + feature] <= Float.intBitsToFloat(nodes.get(node + 1))) {
+                node += SPLIT;
+            } else {
+                node = nodes.get(node + 2);
+            }
+        }
+        return ~feature;
+    }
+
+    @Override
+    public void vote(float[] samples, int offset, float[] votes) {
+        for (int tree = 0; tree < roots.length; tree++) {
+            votes[predictTree(tree, samples, offset)] += 1;
+        }
+    }
+
+    @Override
+    int predictTree(int tree, double[] samples, int offset) {
+        IntBuffer nodes = this.nodes;
+        int node = roots[tree];
+        int feature;
+        while ((feature = nodes.get(node)) >= 0) {
+            if ((float) samples[offset + feature] <= Float.intBitsToFloat(nodes.get(node + 1))) {
+                node += SPLIT;
+            } else {
+                node = nodes.get(node + 2);
+            }
+        }
+        return ~feature;
+    }
+
+    @Override
+    int entry(int index) {
+        return nodes.get(index);
+    }
+
+    @Override
+    FlatForest onHeap() {
+        int[] entries = new int[numberOfEntries];
+        nodes.duplicate().get(entries);
+        return new FlatForest(entries, roots, numberOfClasses);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return onHeap();
+    }
+}
@@ -0,0 +1,201 @@
+package ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shares the models loaded by all operators of a JVM. A Flink task manager runs one instance of
+ * an operator per slot, and each of them used to load its own copy of the model in open().
+ *
+ * Models are identified by the absolute path and the SHA-256 checksum of the file, so a file
+ * replaced with a new model is loaded again instead of returning the old one. Each call of
+ * {@link #acquire(Path)} has to be matched by a call of {@link #release(TreeEnsemblePredictor)},
+ * usually in close(). A model is removed from the registry once it was released as often as it
+ * was acquired. The predictors are immutable and can be used by several threads at once.
+ */
+public final class ModelRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ModelRegistry.class);
+
+    //guarded by themselves
+    private static final Map<Key, Entry> models = new HashMap<>();
+    private static final Map<TreeEnsemblePredictor, Entry> entries = new IdentityHashMap<>();
+
+    private ModelRegistry() {
+    }
+
+    private static final class Key {
+        final Path path;
+        final String checksum;
+
+        Key(Path path, String checksum) {
+            this.path = path;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return path.equals(key.path) && checksum.equals(key.checksum);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, checksum);
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        int references = 0;
+        TreeEnsemblePredictor model;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Load the model on first use from the content the checksum was computed from. Other
+         * threads acquiring the same model wait for it, while models for other keys are loaded in
+         * parallel.
+         */
+        synchronized TreeEnsemblePredictor load(ByteBuffer content) throws IOException {
+            if (model == null) {
+                long start = System.nanoTime();
+                model = TreeEnsemblePredictor.fromContent(content, key.path);
+                log.info("Loaded model {} in {} ms", key.path, (System.nanoTime() - start) / 1000000);
+                synchronized (entries) {
+                    entries.put(model, this);
+                }
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Get the model stored in the given file, loading it if no operator of this JVM uses it yet.
+     * The model has to be handed back with {@link #release(TreeEnsemblePredictor)}.
+     *
+     * @param path path to a json or binary model file
+     * @return the shared predictor
+     * @throws IOException in case the file cannot be read
+     */
+    public static TreeEnsemblePredictor acquire(Path path) throws IOException {
+        ByteBuffer content = read(path);
+        Key key = new Key(path.toAbsolutePath().normalize(), checksum(content));
+        Entry entry;
+        synchronized (models) {
+            entry = models.computeIfAbsent(key, Entry::new);
+            entry.references++;
+        }
+        try {
+            return entry.load(content);
+        } catch (IOException | RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Hand back a model returned by {@link #acquire(Path)}. It is evicted when no one else
+     * acquired it.
+     *
+     * @param model the predictor returned by acquire
+     * @throws IllegalArgumentException if the model was not acquired from the registry
+     */
+    public static void release(TreeEnsemblePredictor model) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(model);
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("The model was not acquired from the registry.");
+        }
+        release(entry);
+    }
+
+    private static void release(Entry entry) {
+        synchronized (models) {
+            if (--entry.references > 0) {
+                return;
+            }
+            models.remove(entry.key);
+        }
+        synchronized (entries) {
+            if (entry.model != null) {
+                entries.remove(entry.model);
+            }
+        }
+        log.info("Evicted model {}", entry.key.path);
+    }
+
+    /**
+     * @return the SHA-256 checksum of the file the given model was loaded from, or null if the
+     * model was not acquired from the registry
+     */
+    static String checksum(TreeEnsemblePredictor model) {
+        synchronized (entries) {
+            Entry entry = entries.get(model);
+            return entry == null ? null : entry.key.checksum;
+        }
+    }
+
+    /**
+     * @return the number of models currently held by the registry
+     */
+    public static int size() {
+        synchronized (models) {
+            return models.size();
+        }
+    }
+
+    /**
+     * Read the file once for both the checksum and the model, so a file replaced in between cannot
+     * end up under the checksum of the previous one. Binary files are mapped, json files are
+     * copied to the heap so writing to them in place does not change the content either.
+     */
+    private static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Model file too large: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (MappedForest.isBinary(mapping)) {
+                return mapping;
+            }
+            ByteBuffer copy = ByteBuffer.allocate((int) size);
+            copy.put(mapping);
+            copy.flip();
+            return copy;
+        }
+    }
+
+    private static String checksum(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.duplicate());
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
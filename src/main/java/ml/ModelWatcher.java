@@ -0,0 +1,193 @@
+package ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the model of a running operator up to date with its model file. A retrained model is
+ * deployed by moving the new file over the old one, the job keeps running.
+ *
+ * A background thread checks the modification time and size of the file periodically. When they
+ * change, the new model is loaded through the {@link ModelRegistry} and validated. It replaces the
+ * current model only if it has the same number of classes, uses no feature beyond the vectors of
+ * the operator and predicts a sample without errors. Otherwise it is logged and ignored until the
+ * file changes again.
+ *
+ * Operators get the current {@link Version} once per record and use its model for the whole
+ * record. Getting it is a single volatile read, so the throughput is the same as with a fixed
+ * model. Records already being processed finish with the previous model.
+ */
+public final class ModelWatcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ModelWatcher.class);
+
+    //one thread checks the files of all watchers in this JVM
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "model-watcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A model together with a tag identifying it. The tag is a prefix of the checksum of the model
+     * file, so it is the same on all machines running the same model.
+     */
+    public static final class Version {
+        public final TreeEnsemblePredictor model;
+        public final String tag;
+
+        private Version(TreeEnsemblePredictor model, String tag) {
+            this.model = model;
+            this.tag = tag;
+        }
+
+        @Override
+        public String toString() {
+            return tag;
+        }
+    }
+
+    private final Path path;
+    private final int numberOfFeatures;
+    private final ScheduledFuture<?> task;
+
+    private volatile Version current;
+
+    //guarded by this
+    private Object stamp;
+    private boolean closed = false;
+
+    /**
+     * Load the model and check the file for new models in the given interval.
+     *
+     * @param path path to a json or binary model file
+     * @param numberOfFeatures the length of the feature vectors passed to the model
+     * @param interval the time between two checks of the file, 0 to never check it
+     * @param unit the unit of the interval
+     * @throws IOException in case the file cannot be read
+     */
+    public ModelWatcher(Path path, int numberOfFeatures, long interval, TimeUnit unit) throws IOException {
+        this.path = path;
+        this.numberOfFeatures = numberOfFeatures;
+        this.stamp = stamp(path);
+        TreeEnsemblePredictor model = ModelRegistry.acquire(path);
+        this.current = new Version(model, tag(model));
+        log.info("Using model {} from {}", current, path);
+        this.task = interval > 0 ? scheduler.scheduleWithFixedDelay(this::poll, interval, interval, unit) : null;
+    }
+
+    /**
+     * @return the model to use for the next record
+     */
+    public Version current() {
+        return current;
+    }
+
+    private void poll() {
+        try {
+            update();
+        } catch (RuntimeException e) {
+            // an exception would cancel all further checks
+            log.error("Could not check model file " + path, e);
+        }
+    }
+
+    /**
+     * Check the file now and swap in the model it holds if it changed and is valid. This is
+     * called periodically by the background thread.
+     *
+     * @return true if a new model is used from now on
+     */
+    public synchronized boolean update() {
+        if (closed) {
+            return false;
+        }
+        Object stamp;
+        try {
+            stamp = stamp(path);
+        } catch (IOException e) {
+            // the file is being replaced, check it again next time
+            return false;
+        }
+        if (stamp.equals(this.stamp)) {
+            return false;
+        }
+        this.stamp = stamp;
+
+        TreeEnsemblePredictor model;
+        try {
+            model = ModelRegistry.acquire(path);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not load new model from {}, keeping model {}.", path, current, e);
+            return false;
+        }
+        Version previous = current;
+        if (model == previous.model) {
+            // same content, e.g. the file was touched
+            ModelRegistry.release(model);
+            return false;
+        }
+        String error = validate(model, previous.model);
+        if (error != null) {
+            log.warn("Rejected new model from {}: {}. Keeping model {}.", path, error, previous);
+            ModelRegistry.release(model);
+            return false;
+        }
+
+        current = new Version(model, tag(model));
+        ModelRegistry.release(previous.model);
+        log.info("Swapped model {} for model {} from {}", previous, current, path);
+        return true;
+    }
+
+    private String validate(TreeEnsemblePredictor model, TreeEnsemblePredictor previous) {
+        if (model.getNumberOfClasses() != previous.getNumberOfClasses()) {
+            return "expected " + previous.getNumberOfClasses() + " classes but found " + model.getNumberOfClasses();
+        }
+        int[] usedFeatures = model.getUsedFeatures();
+        if (usedFeatures.length > 0 && usedFeatures[usedFeatures.length - 1] >= numberOfFeatures) {
+            return "feature " + usedFeatures[usedFeatures.length - 1] + " is not in the vectors of "
+                    + numberOfFeatures + " features";
+        }
+        try {
+            model.predictProba(new float[numberOfFeatures]);
+        } catch (RuntimeException e) {
+            return "prediction failed with " + e;
+        }
+        return null;
+    }
+
+    /**
+     * Stop checking the file and release the current model.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (task != null) {
+            task.cancel(false);
+        }
+        ModelRegistry.release(current.model);
+    }
+
+    private static String tag(TreeEnsemblePredictor model) {
+        return ModelRegistry.checksum(model).substring(0, 12);
+    }
+
+    private static Object stamp(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+    }
+}
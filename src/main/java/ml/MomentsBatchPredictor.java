@@ -0,0 +1,247 @@
+package ml;
+
+import hexmap.TelescopeArray;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+import reconstruction.containers.ReconstrucedEvent;
+
+/**
+ * Predicts the particle type for all events in a {@link MomentsBatch}. The feature vector of each
+ * row is written straight from the columns of the batch into a single scratch array instead of
+ * going through a {@link Vectorizer}.
+ *
+ * The predictions for a whole batch are made in blocks of rows with
+ * {@link TreeEnsemblePredictor#predictProba(float[], int, int, float[])}, which walks each tree
+ * for all rows of a block at once.
+ *
+ * An instance is not thread safe.
+ */
+public class MomentsBatchPredictor {
+
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    //number of rows predicted together. The feature vectors of a block fit into the L1 cache.
+    private static final int ROWS_PER_BLOCK = 256;
+
+    private final TreeEnsemblePredictor model;
+    private final float[] vector = new float[Feature.values().length];
+
+    // scratch space for a block of rows and the event each row belongs to
+    private final float[] samples = new float[ROWS_PER_BLOCK * vector.length];
+    private final int[] sampleEvents = new int[ROWS_PER_BLOCK];
+    private final float[] probabilities;
+
+    public MomentsBatchPredictor(TreeEnsemblePredictor model) {
+        this.model = model;
+        this.probabilities = new float[ROWS_PER_BLOCK * model.getNumberOfClasses()];
+    }
+
+    /**
+     * Write the feature vector of a single row into the given array. The layout is the one
+     * described by {@link Feature}.
+     *
+     * @param batch  the batch holding the moments
+     * @param row    the row to vectorize
+     * @param numberOfTelescopes the number of telescopes in the event of that row
+     * @param vector the array to write to
+     */
+    public static void vectorize(MomentsBatch batch, int row, int numberOfTelescopes, float[] vector) {
+        vectorize(batch, row, numberOfTelescopes, Double.NaN, Double.NaN, vector);
+    }
+
+    /**
+     * Write the feature vector of a single row including the features taken from the
+     * reconstructed event into the given array.
+     *
+     * @param batch  the batch holding the moments
+     * @param row    the row to vectorize
+     * @param numberOfTelescopes the number of telescopes in the event of that row
+     * @param hMax   the height of the shower maximum of the event
+     * @param impactDistance the distance of the telescope of that row to the shower axis
+     * @param vector the array to write to
+     */
+    public static void vectorize(MomentsBatch batch, int row, int numberOfTelescopes, double hMax,
+                                 double impactDistance, float[] vector) {
+        vectorize(batch, row, numberOfTelescopes, hMax, impactDistance, vector, 0);
+    }
+
+    /**
+     * Write the feature vector of a single image into the given array. The features of the
+     * reconstruction are set to NaN.
+     *
+     * @param m      the moments of the image
+     * @param numberOfTelescopes the number of telescopes in the event of the image
+     * @param vector the array to write to
+     */
+    public static void vectorize(Moments m, int numberOfTelescopes, float[] vector) {
+        vector[0] = numberOfTelescopes;
+        vector[1] = m.numberOfPixel;
+        vector[2] = (float) m.width;
+        vector[3] = (float) m.length;
+        vector[4] = (float) m.skewness;
+        vector[5] = (float) m.kurtosis;
+        vector[6] = (float) m.phi;
+        vector[7] = (float) m.miss;
+        vector[8] = (float) m.size;
+        vector[9] = MAPPING.telescopeFromId(m.telescopeID).telescopeType.ordinal();
+        vector[10] = Float.NaN;
+        vector[11] = Float.NaN;
+    }
+
+    /**
+     * Same as {@link #vectorize(MomentsBatch, int, int, double, double, float[])} but writes the
+     * vector into a larger array holding a block of vectors.
+     *
+     * @param offset the index of the first feature of the vector in the array
+     */
+    public static void vectorize(MomentsBatch batch, int row, int numberOfTelescopes, double hMax,
+                                 double impactDistance, float[] vectors, int offset) {
+        vectors[offset] = numberOfTelescopes;
+        vectors[offset + 1] = batch.numberOfPixel[row];
+        vectors[offset + 2] = (float) batch.width[row];
+        vectors[offset + 3] = (float) batch.length[row];
+        vectors[offset + 4] = (float) batch.skewness[row];
+        vectors[offset + 5] = (float) batch.kurtosis[row];
+        vectors[offset + 6] = (float) batch.phi[row];
+        vectors[offset + 7] = (float) batch.miss[row];
+        vectors[offset + 8] = (float) batch.size[row];
+        vectors[offset + 9] = MAPPING.telescopeFromId(batch.telescopeID[row]).telescopeType.ordinal();
+        vectors[offset + 10] = (float) hMax;
+        vectors[offset + 11] = (float) impactDistance;
+    }
+
+    /**
+     * The prediction for a single event. Same as averaging the probability of the first class
+     * over all images in the event.
+     * If {@link MomentsBatch#keepBestTelescopes(int)} was called, only the remaining images are used.
+     *
+     * @param batch the batch holding the moments
+     * @param event the index of the event within the batch
+     * @return the average probability of the first class or 0 for an empty event
+     */
+    public double predictParticleType(MomentsBatch batch, int event) {
+        int start = batch.eventStart(event);
+        int end = batch.eventEnd(event);
+        int multiplicity = end - start;
+        if (multiplicity == 0) {
+            return 0;
+        }
+
+        // the classifier was trained with the number of all telescopes in the event, even if
+        // only the best of them are left in the batch.
+        int numberOfTelescopes = batch.numberOfTelescopes(event);
+        double sum = 0;
+        for (int row = start; row < end; row++) {
+            vectorize(batch, row, numberOfTelescopes, vector);
+            sum += model.predictProbability(vector, 0);
+        }
+        return sum / multiplicity;
+    }
+
+    /**
+     * The prediction for a single event which was reconstructed before. In addition to the
+     * image parameters the classifier gets the height of the shower maximum and the impact
+     * distance of each telescope.
+     *
+     * @param batch the batch holding the moments
+     * @param event the index of the event within the batch
+     * @param reconstructed the reconstruction of that event
+     * @return the average probability of the first class or 0 for an empty event
+     */
+    public double predictParticleType(MomentsBatch batch, int event, ReconstrucedEvent reconstructed) {
+        int start = batch.eventStart(event);
+        int end = batch.eventEnd(event);
+        int multiplicity = end - start;
+        if (multiplicity == 0) {
+            return 0;
+        }
+
+        int numberOfTelescopes = batch.numberOfTelescopes(event);
+        double sum = 0;
+        for (int row = start; row < end; row++) {
+            double impactDistance = impactDistance(batch, row, start, reconstructed);
+            vectorize(batch, row, numberOfTelescopes, reconstructed.hMax, impactDistance, vector);
+            sum += model.predictProbability(vector, 0);
+        }
+        return sum / multiplicity;
+    }
+
+    private static double impactDistance(MomentsBatch batch, int row, int start, ReconstrucedEvent reconstructed) {
+        // the reconstruction usually lists the telescopes in the order of the rows
+        int[] telescopeIds = reconstructed.telescopeIds;
+        int i = row - start;
+        return i < telescopeIds.length && telescopeIds[i] == batch.telescopeID[row]
+                ? reconstructed.impactDistances[i]
+                : reconstructed.impactDistance(batch.telescopeID[row]);
+    }
+
+    /**
+     * The predictions for all events in the batch.
+     *
+     * @param batch the batch holding the moments
+     * @return one prediction per event, see {@link #predictParticleType(MomentsBatch, int)}
+     */
+    public double[] predictParticleType(MomentsBatch batch) {
+        double[] predictions = new double[batch.numberOfEvents()];
+        predictAll(batch, null, predictions);
+        return predictions;
+    }
+
+    /**
+     * The predictions for all events in the batch which were reconstructed before, see
+     * {@link #predictParticleType(MomentsBatch, int, ReconstrucedEvent)}. The results are the same
+     * as predicting each event on its own.
+     *
+     * @param batch         the batch holding the moments
+     * @param reconstructed the reconstruction of each event in the batch
+     * @param predictions   the array to write one prediction per event to
+     */
+    public void predictParticleType(MomentsBatch batch, ReconstrucedEvent[] reconstructed, double[] predictions) {
+        predictAll(batch, reconstructed, predictions);
+    }
+
+    /**
+     * Vectorize the rows of all events block by block and predict each block at once. The
+     * probabilities of the first class are summed up per event in the order of the rows, just
+     * like the single event methods do.
+     */
+    private void predictAll(MomentsBatch batch, ReconstrucedEvent[] reconstructed, double[] predictions) {
+        int numberOfFeatures = vector.length;
+        int n = 0;
+        for (int event = 0; event < batch.numberOfEvents(); event++) {
+            predictions[event] = 0;
+            int start = batch.eventStart(event);
+            int end = batch.eventEnd(event);
+            int numberOfTelescopes = batch.numberOfTelescopes(event);
+            double hMax = reconstructed == null ? Double.NaN : reconstructed[event].hMax;
+            for (int row = start; row < end; row++) {
+                double impactDistance = reconstructed == null
+                        ? Double.NaN
+                        : impactDistance(batch, row, start, reconstructed[event]);
+                vectorize(batch, row, numberOfTelescopes, hMax, impactDistance, samples, n * numberOfFeatures);
+                sampleEvents[n++] = event;
+                if (n == ROWS_PER_BLOCK) {
+                    predictBlock(n, predictions);
+                    n = 0;
+                }
+            }
+        }
+        predictBlock(n, predictions);
+
+        for (int event = 0; event < batch.numberOfEvents(); event++) {
+            int multiplicity = batch.eventMultiplicity(event);
+            predictions[event] = multiplicity == 0 ? 0 : predictions[event] / multiplicity;
+        }
+    }
+
+    private void predictBlock(int numberOfSamples, double[] predictions) {
+        if (numberOfSamples == 0) {
+            return;
+        }
+        int numberOfClasses = model.getNumberOfClasses();
+        model.predictProba(samples, numberOfSamples, vector.length, probabilities);
+        for (int i = 0; i < numberOfSamples; i++) {
+            predictions[sampleEvents[i]] += probabilities[i * numberOfClasses];
+        }
+    }
+}
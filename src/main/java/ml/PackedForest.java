@@ -0,0 +1,114 @@
+package ml;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The trees of an ensemble packed into int entries in the layout described in {@link FlatForest}.
+ * The entries are either stored in an array on the heap, see {@link FlatForest}, or read in place
+ * from a mapped file, see {@link MappedForest}. The roots and tiles of the trees are always kept
+ * on the heap.
+ */
+abstract class PackedForest implements ForestEngine, Serializable {
+
+    static final int SPLIT = 3;
+
+    //the number of entries of the trees in a tile. 16 KB fit into the L1 cache next to the samples.
+    private static final int TILE_SIZE = 4096;
+
+    final int[] roots;
+    final int numberOfEntries;
+    final int numberOfClasses;
+
+    /**
+     * Consecutive trees grouped into tiles of at most {@link #TILE_SIZE} entries. Tile t holds the
+     * trees tiles[t] until (exclusive) tiles[t + 1]. A tree larger than that forms a tile on its own.
+     */
+    final int[] tiles;
+
+    PackedForest(int[] roots, int numberOfEntries, int numberOfClasses) {
+        this.roots = roots;
+        this.numberOfEntries = numberOfEntries;
+        this.numberOfClasses = numberOfClasses;
+
+        int[] tiles = new int[roots.length + 1];
+        int n = 0;
+        for (int tree = 0; tree < roots.length; tree++) {
+            if (tree == 0 || end(tree) - roots[tiles[n - 1]] > TILE_SIZE) {
+                tiles[n++] = tree;
+            }
+        }
+        tiles[n++] = roots.length;
+        this.tiles = Arrays.copyOf(tiles, n);
+    }
+
+    /**
+     * @return the entry at the given index
+     */
+    abstract int entry(int index);
+
+    /**
+     * Same as {@link #predictTree(int, float[], int)} for a sample of doubles. Each value is
+     * rounded to float before the comparison, so the result is the same as for the rounded sample.
+     */
+    abstract int predictTree(int tree, double[] samples, int offset);
+
+    /**
+     * @return the trees in an array on the heap, which is needed to build the other engines
+     */
+    abstract FlatForest onHeap();
+
+    /**
+     * @return the index after the last entry of the given tree
+     */
+    int end(int tree) {
+        return tree + 1 < roots.length ? roots[tree + 1] : numberOfEntries;
+    }
+
+    int numberOfTrees() {
+        return roots.length;
+    }
+
+    /**
+     * @return the number of leaves of the given tree
+     */
+    int numberOfLeaves(int tree) {
+        int leaves = 0;
+        for (int node = roots[tree], end = end(tree); node < end; ) {
+            if (entry(node) < 0) {
+                leaves++;
+                node++;
+            } else {
+                node += SPLIT;
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * @return the sorted indices of all features used in at least one split
+     */
+    int[] usedFeatures() {
+        boolean[] used = new boolean[0];
+        for (int node = 0; node < numberOfEntries; ) {
+            int feature = entry(node);
+            if (feature < 0) {
+                node++;
+                continue;
+            }
+            if (feature >= used.length) {
+                used = Arrays.copyOf(used, feature + 1);
+            }
+            used[feature] = true;
+            node += SPLIT;
+        }
+        int[] features = new int[used.length];
+        int n = 0;
+        for (int feature = 0; feature < used.length; feature++) {
+            if (used[feature]) {
+                features[n++] = feature;
+            }
+        }
+        return Arrays.copyOf(features, n);
+    }
+}
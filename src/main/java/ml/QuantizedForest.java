@@ -0,0 +1,222 @@
+package ml;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A compact copy of a {@link FlatForest} using 16 bit entries.
+ *
+ * The distinct thresholds of each feature are sorted, and a split stores the index of its threshold
+ * in that list instead of the float. Before walking the trees, each feature of a sample is quantized
+ * once into the number of thresholds smaller than its value. Then x <= threshold i holds exactly
+ * when the quantized value is at most i, so the predictions are the same as the interpreter's. NaN
+ * is larger than all thresholds, so it goes right as before.
+ *
+ * The layout of the nodes is the one of the flat forest, but each entry is a char:
+ *
+ * feature, index of the threshold, index of the right child relative to the root of the tree
+ *
+ * A leaf is the entry {@link #LEAF} | class. So the nodes take half the memory, 1.2 instead of
+ * 2.4 MB for a random forest of 100 trees of depth 12. Only forests with less than 2^15 features
+ * and classes, 2^16 entries per tree and 2^16 distinct thresholds per feature fit, see
+ * {@link #fits(FlatForest)}.
+ *
+ * Quantizing a sample takes a binary search per feature. For that random forest with about
+ * 12000 distinct thresholds per feature, this made predictions 20 percent slower on a machine
+ * whose 2 MB L2 cache almost holds the original nodes as well. It pays off where the packed
+ * forest does not fit into the cache while the compact one does.
+ */
+final class QuantizedForest implements SampleScorer, Serializable {
+
+    static final int LEAF = 0x8000;
+
+    private static final int MAX_ENTRIES = 1 << 16;
+
+    //the quantized features of the current thread, shared by all instances
+    private static final ThreadLocal<int[]> BINS = ThreadLocal.withInitial(() -> new int[0]);
+
+    /**
+     * The sorted distinct thresholds of feature f are stored at featureOffsets[f] until
+     * (exclusive) featureOffsets[f + 1].
+     */
+    private final int[] featureOffsets;
+    private final float[] thresholds;
+
+    private final char[] nodes;
+    private final int[] roots;
+
+    private QuantizedForest(int[] featureOffsets, float[] thresholds, char[] nodes, int[] roots) {
+        this.featureOffsets = featureOffsets;
+        this.thresholds = thresholds;
+        this.nodes = nodes;
+        this.roots = roots;
+    }
+
+    /**
+     * @return true if the trees and thresholds of the forest can be stored in 16 bit entries
+     */
+    static boolean fits(FlatForest forest) {
+        if (forest.numberOfClasses > LEAF) {
+            return false;
+        }
+        for (int tree = 0; tree < forest.numberOfTrees(); tree++) {
+            if (forest.end(tree) - forest.roots[tree] > MAX_ENTRIES) {
+                return false;
+            }
+        }
+        int[] features = forest.usedFeatures();
+        if (features.length > 0 && features[features.length - 1] >= LEAF) {
+            return false;
+        }
+        for (float[] thresholds : distinctThresholds(forest)) {
+            if (thresholds.length > MAX_ENTRIES - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Quantize the thresholds of a forest.
+     *
+     * @throws IllegalArgumentException if the forest does not fit into 16 bit entries
+     */
+    static QuantizedForest of(FlatForest forest) {
+        if (!fits(forest)) {
+            throw new IllegalArgumentException("The forest does not fit into 16 bit entries.");
+        }
+        float[][] distinct = distinctThresholds(forest);
+        int[] featureOffsets = new int[distinct.length + 1];
+        for (int f = 0; f < distinct.length; f++) {
+            featureOffsets[f + 1] = featureOffsets[f] + distinct[f].length;
+        }
+        float[] thresholds = new float[featureOffsets[distinct.length]];
+        for (int f = 0; f < distinct.length; f++) {
+            System.arraycopy(distinct[f], 0, thresholds, featureOffsets[f], distinct[f].length);
+        }
+
+        int[] flat = forest.nodes;
+        char[] nodes = new char[flat.length];
+        for (int tree = 0; tree < forest.numberOfTrees(); tree++) {
+            int root = forest.roots[tree];
+            for (int node = root, end = forest.end(tree); node < end; ) {
+                int feature = flat[node];
+                if (feature < 0) {
+                    nodes[node++] = (char) (LEAF | ~feature);
+                    continue;
+                }
+                float threshold = Float.intBitsToFloat(flat[node + 1]);
+                nodes[node] = (char) feature;
+                nodes[node + 1] = (char) lowerBound(distinct[feature], 0, distinct[feature].length, threshold);
+                nodes[node + 2] = (char) (flat[node + 2] - root);
+                node += FlatForest.SPLIT;
+            }
+        }
+        return new QuantizedForest(featureOffsets, thresholds, nodes, forest.roots.clone());
+    }
+
+    /**
+     * @return the sorted distinct thresholds of each feature up to the largest used one
+     */
+    private static float[][] distinctThresholds(FlatForest forest) {
+        int[] used = forest.usedFeatures();
+        int numberOfFeatures = used.length == 0 ? 0 : used[used.length - 1] + 1;
+        float[][] thresholds = new float[numberOfFeatures][0];
+        int[] counts = new int[numberOfFeatures];
+        int[] nodes = forest.nodes;
+        for (int node = 0; node < nodes.length; ) {
+            int feature = nodes[node];
+            if (feature < 0) {
+                node++;
+                continue;
+            }
+            if (counts[feature] == thresholds[feature].length) {
+                thresholds[feature] = Arrays.copyOf(thresholds[feature], 2 * counts[feature] + 1);
+            }
+            thresholds[feature][counts[feature]++] = Float.intBitsToFloat(nodes[node + 1]);
+            node += FlatForest.SPLIT;
+        }
+
+        for (int f = 0; f < numberOfFeatures; f++) {
+            float[] values = Arrays.copyOf(thresholds[f], counts[f]);
+            Arrays.sort(values);
+            int n = 0;
+            for (int i = 0; i < values.length; i++) {
+                // -0.0 and 0.0 compare equal and are merged
+                if (n == 0 || values[i] != values[n - 1]) {
+                    values[n++] = values[i];
+                }
+            }
+            thresholds[f] = Arrays.copyOf(values, n);
+        }
+        return thresholds;
+    }
+
+    /**
+     * @return the number of entries between from and to which are smaller than the value
+     */
+    private static int lowerBound(float[] values, int from, int to, float value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - from;
+    }
+
+    /**
+     * Quantize the features of a sample into the scratch array of the current thread.
+     */
+    private int[] quantize(float[] samples, int offset) {
+        int numberOfFeatures = featureOffsets.length - 1;
+        int[] bins = BINS.get();
+        if (bins.length < numberOfFeatures) {
+            bins = new int[numberOfFeatures];
+            BINS.set(bins);
+        }
+        for (int f = 0; f < numberOfFeatures; f++) {
+            float value = samples[offset + f];
+            int from = featureOffsets[f];
+            int to = featureOffsets[f + 1];
+            bins[f] = Float.isNaN(value) ? to - from : lowerBound(thresholds, from, to, value);
+        }
+        return bins;
+    }
+
+    private int walk(int tree, int[] bins) {
+        char[] nodes = this.nodes;
+        int root = roots[tree];
+        int node = root;
+        int entry;
+        while ((entry = nodes[node]) < LEAF) {
+            if (bins[entry] <= nodes[node + 1]) {
+                node += FlatForest.SPLIT;
+            } else {
+                node = root + nodes[node + 2];
+            }
+        }
+        return entry - LEAF;
+    }
+
+    /**
+     * Quantizes the sample for each call, use {@link #vote(float[], int, float[], int)} for
+     * evaluating several trees.
+     */
+    @Override
+    public int predictTree(int tree, float[] samples, int offset) {
+        return walk(tree, quantize(samples, offset));
+    }
+
+    @Override
+    public void vote(float[] samples, int offset, float[] votes, int votesOffset) {
+        int[] bins = quantize(samples, offset);
+        for (int tree = 0; tree < roots.length; tree++) {
+            votes[votesOffset + walk(tree, bins)] += 1;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ml;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates a forest of small trees without walking them, following the QuickScorer algorithm
+ * by Lucchese et al. (SIGIR 2015).
+ *
+ * The leaves of each tree are numbered from left to right and the reachable leaves of a tree are
+ * kept as bits of a long. A split whose test x <= threshold fails rules out all leaves of its left
+ * subtree, so each split stores a mask clearing them. The splits of all trees are sorted by feature
+ * and threshold. For a sample each feature is scanned once from the smallest threshold up to the
+ * first one the value does not exceed, applying the masks of all failed tests on the way. The exit
+ * leaf of a tree is then the leftmost remaining bit.
+ *
+ * NaN fails every test, so all splits on that feature are applied and the sample goes right like
+ * in {@link FlatForest}. The predictions are the same as the ones of the interpreter.
+ *
+ * Only trees with at most 64 leaves fit, see {@link #fits(PackedForest)}. The work per sample grows
+ * with the number of splits of the whole forest instead of the depth of the trees, so this pays
+ * off for many shallow trees.
+ */
+final class QuickScorer implements SampleScorer, Serializable {
+
+    static final int MAX_LEAVES = Long.SIZE;
+
+    //the bitvectors of the current thread, shared by all instances
+    private static final ThreadLocal<long[]> BITVECTORS = ThreadLocal.withInitial(() -> new long[0]);
+
+    private final FlatForest forest;
+
+    /**
+     * The splits of feature f are stored at featureOffsets[f] until (exclusive)
+     * featureOffsets[f + 1] of the following arrays in ascending order of their thresholds.
+     */
+    private final int[] featureOffsets;
+    private final float[] thresholds;
+    private final int[] trees;
+    private final long[] masks;
+
+    //the class of leaf l of tree t is stored at t * 64 + l
+    private final int[] leafClasses;
+
+    private QuickScorer(FlatForest forest, int[] featureOffsets, float[] thresholds, int[] trees,
+                        long[] masks, int[] leafClasses) {
+        this.forest = forest;
+        this.featureOffsets = featureOffsets;
+        this.thresholds = thresholds;
+        this.trees = trees;
+        this.masks = masks;
+        this.leafClasses = leafClasses;
+    }
+
+    /**
+     * @return true if no tree of the forest has more than {@link #MAX_LEAVES} leaves
+     */
+    static boolean fits(PackedForest forest) {
+        for (int tree = 0; tree < forest.numberOfTrees(); tree++) {
+            if (forest.numberOfLeaves(tree) > MAX_LEAVES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sort the splits of a forest by feature and threshold.
+     *
+     * @throws IllegalArgumentException if a tree has more than {@link #MAX_LEAVES} leaves
+     */
+    static QuickScorer of(FlatForest forest) {
+        if (!fits(forest)) {
+            throw new IllegalArgumentException("Trees with more than " + MAX_LEAVES + " leaves are not supported.");
+        }
+        int numberOfTrees = forest.numberOfTrees();
+        int numberOfSplits = countSplits(forest);
+
+        Splits splits = new Splits(numberOfSplits);
+        int[] leafClasses = new int[numberOfTrees * MAX_LEAVES];
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            splits.add(forest, tree, forest.roots[tree], 0, leafClasses);
+        }
+
+        Integer[] order = IntStream.range(0, numberOfSplits).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> splits.features[i])
+                .thenComparing(i -> splits.thresholds[i], Float::compare));
+
+        int numberOfFeatures = numberOfSplits == 0 ? 0 : max(splits.features) + 1;
+        int[] featureOffsets = new int[numberOfFeatures + 1];
+        float[] thresholds = new float[numberOfSplits];
+        int[] trees = new int[numberOfSplits];
+        long[] masks = new long[numberOfSplits];
+        for (int i = 0; i < numberOfSplits; i++) {
+            int split = order[i];
+            featureOffsets[splits.features[split] + 1]++;
+            thresholds[i] = splits.thresholds[split];
+            trees[i] = splits.trees[split];
+            masks[i] = splits.masks[split];
+        }
+        for (int f = 0; f < numberOfFeatures; f++) {
+            featureOffsets[f + 1] += featureOffsets[f];
+        }
+        return new QuickScorer(forest, featureOffsets, thresholds, trees, masks, leafClasses);
+    }
+
+    private static int countSplits(FlatForest forest) {
+        int splits = 0;
+        for (int node = 0; node < forest.nodes.length; ) {
+            if (forest.nodes[node] < 0) {
+                node++;
+            } else {
+                splits++;
+                node += FlatForest.SPLIT;
+            }
+        }
+        return splits;
+    }
+
+    private static int max(int[] values) {
+        int max = Integer.MIN_VALUE;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * The splits of all trees in depth first order.
+     */
+    private static class Splits {
+        final int[] features;
+        final float[] thresholds;
+        final int[] trees;
+        final long[] masks;
+        int size = 0;
+
+        Splits(int capacity) {
+            features = new int[capacity];
+            thresholds = new float[capacity];
+            trees = new int[capacity];
+            masks = new long[capacity];
+        }
+
+        /**
+         * Add the splits below the given node, whose leftmost leaf is the given one, and return
+         * the number of the leaf following the subtree.
+         */
+        int add(FlatForest forest, int tree, int node, int leaf, int[] leafClasses) {
+            int feature = forest.nodes[node];
+            if (feature < 0) {
+                leafClasses[tree * MAX_LEAVES + leaf] = ~feature;
+                return leaf + 1;
+            }
+            int split = size++;
+            int right = add(forest, tree, node + FlatForest.SPLIT, leaf, leafClasses);
+            features[split] = feature;
+            thresholds[split] = Float.intBitsToFloat(forest.nodes[node + 1]);
+            trees[split] = tree;
+            // clear the bits of the leaves of the left subtree, leaf until right
+            long leftLeaves = (right == MAX_LEAVES ? -1L : (1L << right) - 1) & (-1L << leaf);
+            masks[split] = ~leftLeaves;
+            return add(forest, tree, forest.nodes[node + 2], right, leafClasses);
+        }
+    }
+
+    @Override
+    public int predictTree(int tree, float[] samples, int offset) {
+        return forest.predictTree(tree, samples, offset);
+    }
+
+    @Override
+    public void vote(float[] samples, int offset, float[] votes, int votesOffset) {
+        int numberOfTrees = forest.numberOfTrees();
+        long[] bitvectors = BITVECTORS.get();
+        if (bitvectors.length < numberOfTrees) {
+            bitvectors = new long[numberOfTrees];
+            BITVECTORS.set(bitvectors);
+        }
+        Arrays.fill(bitvectors, 0, numberOfTrees, -1L);
+
+        float[] thresholds = this.thresholds;
+        int[] trees = this.trees;
+        long[] masks = this.masks;
+        int numberOfFeatures = featureOffsets.length - 1;
+        for (int f = 0; f < numberOfFeatures; f++) {
+            float value = samples[offset + f];
+            int end = featureOffsets[f + 1];
+            for (int i = featureOffsets[f]; i < end && !(value <= thresholds[i]); i++) {
+                bitvectors[trees[i]] &= masks[i];
+            }
+        }
+
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            votes[votesOffset + leafClasses[tree * MAX_LEAVES + Long.numberOfTrailingZeros(bitvectors[tree])]] += 1;
+        }
+    }
+}
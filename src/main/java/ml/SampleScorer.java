@@ -0,0 +1,19 @@
+package ml;
+
+/**
+ * An engine which evaluates all trees for one sample at once instead of walking them one by one.
+ * Its {@link #predictTree(int, float[], int)} may be slow, so samples are scored with
+ * {@link #vote(float[], int, float[], int)} even when predicting blocks.
+ */
+interface SampleScorer extends ForestEngine {
+
+    /**
+     * Same as {@link #vote(float[], int, float[])} but adds the votes starting at votesOffset.
+     */
+    void vote(float[] samples, int offset, float[] votes, int votesOffset);
+
+    @Override
+    default void vote(float[] samples, int offset, float[] votes) {
+        vote(samples, offset, votes, 0);
+    }
+}
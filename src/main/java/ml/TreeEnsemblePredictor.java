@@ -2,17 +2,48 @@ package ml;
 
 import com.google.common.reflect.TypeToken;
 import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * This class can be created from a json file produced from pre-trained sklearn decision trees.
  * It can predict new samples.
+ *
+ * The trees are parsed from json and then packed into a {@link FlatForest}, or mapped from a
+ * binary file, see {@link MappedForest}. Forests of many small trees are evaluated by a
+ * {@link QuickScorer} built from it, all others by walking the packed trees. All of them give the
+ * same predictions.
+ *
+ * Apart from {@link #predictProba(float[])} none of the prediction methods allocate. Results are
+ * written into arrays supplied by the caller, double samples are read without converting them
+ * into a copy and {@link #predictProbability(float[], int)} returns the probability of a single
+ * class. An instance can be shared between threads.
  */
 public class TreeEnsemblePredictor implements Serializable{
-    private final DecisionTree[] trees;
+
+    private static final Logger log = LoggerFactory.getLogger(TreeEnsemblePredictor.class);
+
+    private static final ThreadLocal<float[]> VOTES = ThreadLocal.withInitial(() -> new float[0]);
+
+    //the smallest number of trees for which the QuickScorer is used, see select()
+    private static final int QUICK_SCORER_TREES = 32;
+
+    private final PackedForest forest;
+
+    //evaluates the trees of the forest, see select(), compiled() and quantized()
+    private final Mode mode;
+    private transient ForestEngine engine;
+
+    private enum Mode {
+        SELECTED, COMPILED, QUANTIZED
+    }
 
 
 
@@ -30,23 +61,21 @@ public class TreeEnsemblePredictor implements Serializable{
             this.children_right = children_right;
             this.node_distributions = node_distributions;
         }
-
-        public int getNumberOfClasses(){
-            return this.node_distributions[0].length;
-        }
     }
 
     /**
-     * Create an ensemble of decision trees from the path to a json file.
+     * Create an ensemble of decision trees from the path to a json file or a file in the binary
+     * format written by {@link #write(Path)}. Binary files are memory mapped and the trees are
+     * evaluated in place, see {@link MappedForest}.
      *
-     * @param pathToModel path to json file
+     * @param pathToModel path to json or binary file
      *
      * @throws IOException in case the file cannot be read.
      */
     public TreeEnsemblePredictor(Path pathToModel) throws IOException {
-        BufferedReader reader = Files.newBufferedReader(pathToModel);
-        TypeToken<DecisionTree[]> t = TypeToken.of(DecisionTree[].class);
-        trees = new GsonBuilder().create().fromJson(reader, t.getType());
+        this(MappedForest.isBinary(pathToModel)
+                ? MappedForest.map(pathToModel)
+                : parse(Files.newBufferedReader(pathToModel)), Mode.SELECTED);
     }
 
 
@@ -58,81 +87,448 @@ public class TreeEnsemblePredictor implements Serializable{
      * @throws IOException in case the file cannot be read.
      */
     public TreeEnsemblePredictor(InputStream in) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        TypeToken<DecisionTree[]> t = TypeToken.of(DecisionTree[].class);
-        trees = new GsonBuilder().create().fromJson(reader, t.getType());
+        this(parse(new BufferedReader(new InputStreamReader(in))), Mode.SELECTED);
     }
 
-    public float[] predictProba(float[] sample) {
-        float[] predictions = new float[trees[0].getNumberOfClasses()];
+    /**
+     * Create an ensemble of decision trees from the content of a json or binary model file which
+     * was read before, e.g. to compute its checksum. Content in the binary format is used in place,
+     * so a mapped file must not be written to while the predictor is in use.
+     *
+     * @param content the content of the file from its position to its limit
+     * @param path    the file the content was read from, only used in error messages
+     *
+     * @throws IOException in case the content is no valid model
+     */
+    static TreeEnsemblePredictor fromContent(ByteBuffer content, Path path) throws IOException {
+        if (MappedForest.isBinary(content)) {
+            return new TreeEnsemblePredictor(MappedForest.of(content, path), Mode.SELECTED);
+        }
+        InputStream in;
+        if (content.hasArray()) {
+            in = new ByteArrayInputStream(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        } else {
+            byte[] json = new byte[content.remaining()];
+            content.duplicate().get(json);
+            in = new ByteArrayInputStream(json);
+        }
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        return new TreeEnsemblePredictor(parse(new BufferedReader(reader)), Mode.SELECTED);
+    }
+
+    private static FlatForest parse(BufferedReader reader) throws IOException {
+        try {
+            TypeToken<DecisionTree[]> t = TypeToken.of(DecisionTree[].class);
+            DecisionTree[] trees = new GsonBuilder().create().fromJson(reader, t.getType());
+            return FlatForest.of(
+                    Arrays.stream(trees).map(tree -> tree.thresholds).toArray(float[][]::new),
+                    Arrays.stream(trees).map(tree -> tree.attributes).toArray(int[][]::new),
+                    Arrays.stream(trees).map(tree -> tree.children_left).toArray(int[][]::new),
+                    Arrays.stream(trees).map(tree -> tree.children_right).toArray(int[][]::new),
+                    Arrays.stream(trees).map(tree -> tree.node_distributions).toArray(float[][][]::new)
+            );
+        } finally {
+            reader.close();
+        }
+    }
 
-        for (DecisionTree tree : trees) {
-            float[] p = predictTree(sample, tree);
+    private TreeEnsemblePredictor(PackedForest forest, Mode mode) {
+        this.forest = forest;
+        this.mode = mode;
+        this.engine = engine(forest, mode);
+    }
 
-            predictions[argmax(p)] += 1;
+    private static ForestEngine engine(PackedForest forest, Mode mode) {
+        switch (mode) {
+            case COMPILED:
+                return ForestCompiler.compile(forest.onHeap());
+            case QUANTIZED:
+                FlatForest heap = forest.onHeap();
+                if (QuantizedForest.fits(heap)) {
+                    return QuantizedForest.of(heap);
+                }
+                log.warn("The forest does not fit into 16 bit entries. Trees are interpreted.");
+                return select(forest);
+            default:
+                return select(forest);
         }
+    }
+
+    /**
+     * Get a predictor for the same trees which evaluates them with generated code instead of
+     * walking the node array, see {@link ForestCompiler}. The predictions are the same. The first
+     * call for a model compiles it, which takes a while for large forests. Later calls for one of
+     * the recently compiled models in this JVM reuse the compiled classes. If no compiler is
+     * available, the returned predictor interprets the trees like this one.
+     *
+     * @return a predictor using compiled trees
+     */
+    public TreeEnsemblePredictor compiled() {
+        return mode == Mode.COMPILED ? this : new TreeEnsemblePredictor(forest, Mode.COMPILED);
+    }
 
-        for (int i = 0; i < predictions.length; i++) {
-            predictions[i] /= trees.length;
+    /**
+     * Get a predictor for the same trees which evaluates a compact copy of them, see
+     * {@link QuantizedForest}. Each feature of a sample is compared to the sorted thresholds of
+     * that feature once and the trees only compare the resulting indices. Nodes take 16 instead
+     * of 32 bits, so large forests take half the memory. The predictions are the same. If the
+     * forest is too large for 16 bit entries, the returned predictor interprets the trees like
+     * this one.
+     *
+     * @return a predictor using quantized trees
+     */
+    public TreeEnsemblePredictor quantized() {
+        return mode == Mode.QUANTIZED ? this : new TreeEnsemblePredictor(forest, Mode.QUANTIZED);
+    }
+
+    /**
+     * Choose the engine interpreting the trees from the shape of the forest. The {@link QuickScorer}
+     * is used for at least {@link #QUICK_SCORER_TREES} trees with at most 64 leaves each, otherwise
+     * the packed trees are walked by the interpreter.
+     *
+     * On random forests of depth 6 on 12 features the QuickScorer took 0.55 times as long as the
+     * interpreter for 100 trees, 0.4 times for 500 trees and was slower for 20 trees or less.
+     */
+    private static ForestEngine select(PackedForest forest) {
+        if (forest.numberOfTrees() >= QUICK_SCORER_TREES && QuickScorer.fits(forest)) {
+            return QuickScorer.of(forest.onHeap());
         }
+        return forest;
+    }
 
+    /**
+     * @return true if the trees are evaluated by generated code
+     */
+    public boolean isCompiled() {
+        return !(engine instanceof PackedForest || engine instanceof SampleScorer);
+    }
+
+    /**
+     * Write the trees in a binary format which can be memory mapped when creating a predictor from
+     * the file. Only the classes voted for by the leaves are kept, so the file is much smaller than
+     * the json and the predictions are the same.
+     *
+     * @param path the file to write to
+     * @throws IOException in case the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        MappedForest.write(forest, path);
+    }
+
+    /**
+     * @return true if the trees are read in place from a memory mapped file
+     */
+    public boolean isMapped() {
+        return forest instanceof MappedForest;
+    }
+
+    /**
+     * @return true if the trees are evaluated on quantized samples
+     */
+    public boolean isQuantized() {
+        return engine instanceof QuantizedForest;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        // the generated classes cannot be serialized, so they are looked up or compiled again
+        in.defaultReadObject();
+        engine = engine(forest, mode);
+    }
+
+    /**
+     * Predict the probability of each class for the given sample. The probability of a class is
+     * the fraction of trees voting for it.
+     *
+     * @param sample the feature vector
+     * @return a new array holding the probability of each class
+     */
+    public float[] predictProba(float[] sample) {
+        float[] predictions = new float[forest.numberOfClasses];
+        predictProba(sample, predictions);
         return predictions;
     }
 
+    /**
+     * Same as {@link #predictProba(float[])} but writes the probabilities into the given array
+     * instead of allocating a new one.
+     *
+     * @param sample        the feature vector
+     * @param probabilities the array to write the {@link #getNumberOfClasses()} probabilities to
+     */
+    public void predictProba(float[] sample, float[] probabilities) {
+        int numberOfClasses = forest.numberOfClasses;
+        Arrays.fill(probabilities, 0, numberOfClasses, 0);
+
+        int numberOfTrees = forest.numberOfTrees();
+        engine.vote(sample, 0, probabilities);
+
+        for (int i = 0; i < numberOfClasses; i++) {
+            probabilities[i] /= numberOfTrees;
+        }
+    }
+
+    /**
+     * Same as {@link #predictProba(float[], float[])} but stops evaluating trees once a class got
+     * the votes of at least the given fraction of all trees. The entries are the fractions of all
+     * trees which voted for each class up to that point, so they are lower bounds of the exact
+     * probabilities. If no class reaches the bound, all trees are evaluated and the probabilities
+     * are exact.
+     *
+     * So deciding whether the probability of a class is at least the bound gives the same result
+     * as for the exact probabilities, e.g. when applying a cut on the gamma probability of clear
+     * events which most trees agree on.
+     *
+     * @param sample        the feature vector
+     * @param probabilities the array to write the {@link #getNumberOfClasses()} probabilities to
+     * @param confidence    the fraction of trees after which to stop, 1 evaluates all trees
+     * @return the number of trees which were evaluated
+     */
+    public int predictProba(float[] sample, float[] probabilities, float confidence) {
+        int numberOfClasses = forest.numberOfClasses;
+        Arrays.fill(probabilities, 0, numberOfClasses, 0);
+
+        // a scorer like the quantized forest prepares the whole sample for each single tree, so the
+        // packed trees it was built from are walked instead. They give the same votes.
+        ForestEngine trees = engine instanceof SampleScorer ? forest : engine;
+        int numberOfTrees = forest.numberOfTrees();
+        int tree = 0;
+        while (tree < numberOfTrees) {
+            float votes = probabilities[trees.predictTree(tree++, sample, 0)] += 1;
+            if (votes / numberOfTrees >= confidence) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < numberOfClasses; i++) {
+            probabilities[i] /= numberOfTrees;
+        }
+        return tree;
+    }
+
+    /**
+     * Same as {@link #predictProba(float[], float[])} for a sample of doubles. Each value is
+     * rounded to float before it is compared to the thresholds, just like the trees were trained,
+     * but the sample is not copied.
+     *
+     * @param sample        the feature vector
+     * @param probabilities the array to write the {@link #getNumberOfClasses()} probabilities to
+     */
+    public void predictProba(double[] sample, float[] probabilities) {
+        int numberOfClasses = forest.numberOfClasses;
+        Arrays.fill(probabilities, 0, numberOfClasses, 0);
+
+        int numberOfTrees = forest.numberOfTrees();
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            probabilities[forest.predictTree(tree, sample, 0)] += 1;
+        }
+
+        for (int i = 0; i < numberOfClasses; i++) {
+            probabilities[i] /= numberOfTrees;
+        }
+    }
+
+    /**
+     * Predict the probability of a single class. This is the entry of that class in the result
+     * of {@link #predictProba(float[])}, e.g. the gamma probability for the first class, but
+     * nothing is allocated.
+     *
+     * @param sample     the feature vector
+     * @param classIndex the class to get the probability of
+     * @return the fraction of trees voting for the class
+     */
+    public float predictProbability(float[] sample, int classIndex) {
+        float[] votes = votes();
+        Arrays.fill(votes, 0, forest.numberOfClasses, 0);
+        engine.vote(sample, 0, votes);
+        return votes[classIndex] / forest.numberOfTrees();
+    }
+
+    /**
+     * Same as {@link #predictProbability(float[], int)} for a sample of doubles, see
+     * {@link #predictProba(double[], float[])}.
+     *
+     * @param sample     the feature vector
+     * @param classIndex the class to get the probability of
+     * @return the fraction of trees voting for the class
+     */
+    public float predictProbability(double[] sample, int classIndex) {
+        int numberOfTrees = forest.numberOfTrees();
+        int votes = 0;
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            if (forest.predictTree(tree, sample, 0) == classIndex) {
+                votes++;
+            }
+        }
+        return (float) votes / numberOfTrees;
+    }
+
+    /**
+     * Predict the class probabilities of many samples at once. The samples are given as one
+     * row major block with numberOfFeatures entries per sample. The results are the same as
+     * calling {@link #predictProba(float[])} for each sample.
+     *
+     * Instead of walking all trees for one sample after the other, each tree is walked for all
+     * samples before moving on to the next tree. So the nodes of a tree are loaded into the cache
+     * once per block instead of once per sample. The block should be small enough for the samples
+     * to stay in the cache as well, a few hundred rows work well.
+     *
+     * Small trees are walked in tiles, see {@link PackedForest#tiles}. All trees of a tile are walked
+     * for one sample before moving on to the next sample. Trees of one ensemble tend to split on
+     * the same features at similar thresholds, so the branches taken for one sample are predicted
+     * well. Walking a small forest tree by tree loses that and was twice as slow for the iris model.
+     *
+     * @param samples          the feature vectors, one after the other
+     * @param numberOfSamples  the number of samples in the block
+     * @param numberOfFeatures the length of each feature vector
+     * @param probabilities    the array to write the probabilities to. Holds
+     *                         {@link #getNumberOfClasses()} entries per sample in the same order
+     *                         as the samples. Its previous content is overwritten.
+     */
+    public void predictProba(float[] samples, int numberOfSamples, int numberOfFeatures, float[] probabilities) {
+        int numberOfClasses = forest.numberOfClasses;
+        int length = numberOfSamples * numberOfClasses;
+        if (samples.length < numberOfSamples * numberOfFeatures || probabilities.length < length) {
+            throw new IllegalArgumentException("Arrays too short for " + numberOfSamples + " samples.");
+        }
+        Arrays.fill(probabilities, 0, length, 0);
+
+        int numberOfTrees = forest.numberOfTrees();
+        if (engine instanceof SampleScorer) {
+            SampleScorer scorer = (SampleScorer) engine;
+            for (int sample = 0; sample < numberOfSamples; sample++) {
+                scorer.vote(samples, sample * numberOfFeatures, probabilities, sample * numberOfClasses);
+            }
+        } else {
+            walkTiles(samples, numberOfSamples, numberOfFeatures, probabilities);
+        }
+
+        for (int i = 0; i < length; i++) {
+            probabilities[i] /= numberOfTrees;
+        }
+    }
+
+    private void walkTiles(float[] samples, int numberOfSamples, int numberOfFeatures, float[] probabilities) {
+        int numberOfClasses = forest.numberOfClasses;
+        int[] tiles = forest.tiles;
+        for (int t = 0; t < tiles.length - 1; t++) {
+            int first = tiles[t];
+            int last = tiles[t + 1];
+            for (int sample = 0, offset = 0; sample < numberOfSamples; sample++, offset += numberOfFeatures) {
+                int votes = sample * numberOfClasses;
+                for (int tree = first; tree < last; tree++) {
+                    probabilities[votes + engine.predictTree(tree, samples, offset)] += 1;
+                }
+            }
+        }
+    }
+
     /**
      * @see TreeEnsemblePredictor#predict(float[])
      * @param sample the samepl to predict
      * @return the predicted class
      */
     public int predict(double[] sample) {
-        float s[] = new float[sample.length];
-        for (int i = 0; i < sample.length; i++) {
-            s[i] = (float) sample[i];
+        int numberOfClasses = forest.numberOfClasses;
+        float[] votes = votes();
+        Arrays.fill(votes, 0, numberOfClasses, 0);
+
+        int numberOfTrees = forest.numberOfTrees();
+        float leading = 0;
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            leading = Math.max(leading, votes[forest.predictTree(tree, sample, 0)] += 1);
+            int remaining = numberOfTrees - tree - 1;
+            if (leading >= remaining && decided(votes, numberOfClasses, remaining)) {
+                break;
+            }
         }
-        return predict(s);
+        return FlatForest.argmax(votes, numberOfClasses);
     }
 
     /**
      * Predict the class of given sample by averaging over the responses of all trees and returning
      * the class (encoded as int) with the highest probability.
      *
+     * The trees are evaluated one after the other and the evaluation stops as soon as the
+     * remaining trees cannot change the result anymore, e.g. once more than half of the trees of a
+     * binary classifier voted for the same class. The result is the same as the argmax of
+     * {@link #predictProba(float[])}.
+     *
+     * Only the interpreter stops early. The {@link QuickScorer} scores all trees at once and a
+     * compiled forest votes for all trees in one call, which took half as long as calling it tree
+     * by tree for the iris model. For a forest of 100 deep trees agreeing on most samples the
+     * interpreter took about 30 percent less time than counting all votes.
+     *
      * @param sample the sample to predict the class of
      * @return return the predicted class
      */
     public int predict(float[] sample){
-        float[] prediction = predictProba(sample);
+        int numberOfClasses = forest.numberOfClasses;
+        float[] votes = votes();
+        Arrays.fill(votes, 0, numberOfClasses, 0);
+        if (engine != forest) {
+            engine.vote(sample, 0, votes);
+            return FlatForest.argmax(votes, numberOfClasses);
+        }
 
-        return argmax(prediction);
+        int numberOfTrees = forest.numberOfTrees();
+        float leading = 0;
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            leading = Math.max(leading, votes[forest.predictTree(tree, sample, 0)] += 1);
+            int remaining = numberOfTrees - tree - 1;
+            // the leading class needs at least as many votes as there are remaining trees
+            if (leading >= remaining && decided(votes, numberOfClasses, remaining)) {
+                break;
+            }
+        }
+        return FlatForest.argmax(votes, numberOfClasses);
     }
 
-
-    private int argmax(float[] array) {
-        int maxIndex = 0;
-
-        for (int i = 0; i < array.length; i++) {
-            float p = array[i];
-            maxIndex = p > array[maxIndex] ? i : maxIndex;
+    /**
+     * Check whether the argmax of the votes stays the same no matter how the remaining trees vote.
+     * The first of equal maxima wins, so a class after the leading one may catch up with it, a
+     * class before it has to stay behind.
+     */
+    private static boolean decided(float[] votes, int numberOfClasses, int remaining) {
+        int leader = FlatForest.argmax(votes, numberOfClasses);
+        for (int c = 0; c < numberOfClasses; c++) {
+            float reachable = votes[c] + remaining;
+            if (c != leader && (reachable > votes[leader] || (reachable == votes[leader] && c < leader))) {
+                return false;
+            }
         }
-
-        return maxIndex;
+        return true;
     }
 
+    /**
+     * The scratch array of the current thread for the votes of {@link #predict(float[])}. It is
+     * shared by all predictors, so it is grown to the number of classes of this one if needed.
+     */
+    private float[] votes() {
+        float[] votes = VOTES.get();
+        if (votes.length < forest.numberOfClasses) {
+            votes = new float[forest.numberOfClasses];
+            VOTES.set(votes);
+        }
+        return votes;
+    }
 
 
-    private float[] predictTree(float[] sample, DecisionTree tree){
-
-        int node_index = 0;
-
-        while (tree.attributes[node_index] >= 0) {
-            float value = sample[tree.attributes[node_index]];
-            if (value <= tree.thresholds[node_index]) {
-                node_index = tree.children_left[node_index];
-            } else {
-                node_index = tree.children_right[node_index];
-            }
-        }
+    /**
+     * Get the indices of all features which are used in at least one split of the ensemble.
+     * Features not contained in here have no influence on the prediction.
+     *
+     * @return the sorted indices of the used features
+     */
+    public int[] getUsedFeatures(){
+        return forest.usedFeatures();
+    }
 
-        return tree.node_distributions[node_index];
+    /**
+     * Get the number of classes the ensemble distinguishes
+     * @return the number of classes
+     */
+    public int getNumberOfClasses(){
+        return forest.numberOfClasses;
     }
 
     /**
@@ -140,6 +536,6 @@ public class TreeEnsemblePredictor implements Serializable{
      * @return the number of trees
      */
     public int getNumberOfTrees(){
-        return trees.length;
+        return forest.numberOfTrees();
     }
 }
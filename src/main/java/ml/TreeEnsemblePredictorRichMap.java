@@ -1,12 +1,13 @@
 package ml;
 
 import org.apache.flink.api.common.functions.RichMapFunction;
+import org.apache.flink.metrics.Gauge;
 import org.apache.flink.api.java.tuple.Tuple2;
 import org.apache.flink.configuration.Configuration;
 
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
-import hexmap.TelescopeArray;
 import reconstruction.containers.Moments;
 
 /**
@@ -14,38 +15,48 @@ import reconstruction.containers.Moments;
  */
 public class TreeEnsemblePredictorRichMap extends RichMapFunction<Tuple2<Moments, Integer>, Tuple2<Moments, Double>> {
 
-    private TreeEnsemblePredictor model;
+    private ModelWatcher watcher;
+    private final float[] vector = new float[Feature.values().length];
 
     String modelFile;
 
+    //seconds between two checks of the model file for a new model, 0 to never check it
+    int watchInterval;
+
     public TreeEnsemblePredictorRichMap(String modelFile) {
+        this(modelFile, 0);
+    }
+
+    public TreeEnsemblePredictorRichMap(String modelFile, int watchInterval) {
         this.modelFile = modelFile;
+        this.watchInterval = watchInterval;
     }
 
     @Override
     public void open(Configuration parameters) throws Exception {
         super.open(parameters);
-        this.model = new TreeEnsemblePredictor(Paths.get(modelFile));
+        ModelWatcher watcher = new ModelWatcher(Paths.get(modelFile), vector.length, watchInterval, TimeUnit.SECONDS);
+        this.watcher = watcher;
+        // reporters may still poll the gauge after close() cleared the field
+        getRuntimeContext().getMetricGroup().gauge("modelVersion", (Gauge<String>) () -> watcher.current().tag);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        super.close();
     }
 
     @Override
     public Tuple2<Moments, Double> map(Tuple2<Moments, Integer> value) throws Exception {
 
         Moments moments = value.f0;
-        float[] vector = new Vectorizer().of(
-                value.f1,
-                moments.numberOfPixel,
-                moments.width,
-                moments.length,
-                moments.skewness,
-                moments.kurtosis,
-                moments.phi,
-                moments.miss,
-                moments.size,
-                TelescopeArray.cta().telescopeFromId(moments.telescopeID).telescopeType.ordinal()
-        ).createFloatVector();
-
-        float p = model.predictProba(vector)[0];
+        MomentsBatchPredictor.vectorize(moments, value.f1, vector);
+
+        float p = watcher.current().model.predictProbability(vector, 0);
         return Tuple2.of(moments, (double) p);
     }
 }
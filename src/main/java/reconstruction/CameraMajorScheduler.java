@@ -0,0 +1,154 @@
+package reconstruction;
+
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+import io.ImageReader;
+import reconstruction.containers.MomentsBatch;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cleans and parametrizes a block of events one camera type at a time.
+ *
+ * Processing the events one after another interleaves the images of the different camera types.
+ * Every switch brings the pixel positions and neighbour lists of another camera into the cache
+ * and evicts the previous ones. The scheduler first collects the images of all events in the
+ * block, sorts them by camera and then runs the {@link ImageKernel} over each group. The rows
+ * are written to a scratch batch in that order and afterwards copied back into the target batch
+ * event by event.
+ *
+ * The resulting batch is identical to calling
+ * {@link HillasParametrization#fromImagesInEvent(ImageReader.Event, ImageKernel, MomentsBatch)}
+ * for each event of the block.
+ *
+ * An instance is not thread safe since it holds the kernel and its scratch space.
+ *
+ * <pre>
+ *     CameraMajorScheduler scheduler = new CameraMajorScheduler(ImageKernel.get());
+ *     scheduler.parametrize(events, batch);
+ * </pre>
+ */
+public final class CameraMajorScheduler {
+
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    private final ImageKernel kernel;
+
+    //the rows in camera major order. Holds a single event spanning the whole block.
+    private final MomentsBatch scratch = new MomentsBatch();
+
+    //the cameras seen so far. There are only a handful of camera types in the array.
+    private CameraGeometry[] cameras = new CameraGeometry[0];
+
+    //per image of the block, in the order of the events
+    private long[] eventIds = new long[0];
+    private int[] telescopeIds = new int[0];
+    private double[][] images = new double[0][];
+    private int[] cameraIndices = new int[0];
+    private int[] rows = new int[0];
+
+    //the images in the order they are processed and the counts of the sort by camera
+    private int[] order = new int[0];
+    private int[] cameraOffsets = new int[1];
+
+    /**
+     * @param kernel the kernel to clean and parametrize the images with
+     */
+    public CameraMajorScheduler(ImageKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * Clean all images in the events and append their Hillas parameters to the batch. Each event
+     * becomes a new event in the batch, in the order of the list. The rows of an event are in the
+     * order of its images.
+     *
+     * @param events the block of events to process
+     * @param batch  the batch to append to
+     */
+    public void parametrize(List<ImageReader.Event> events, MomentsBatch batch) {
+        int n = collect(events);
+        sortByCamera(n);
+
+        scratch.clear();
+        scratch.startEvent(0, 0, 0);
+        for (int i = 0; i < n; i++) {
+            int image = order[i];
+            rows[image] = kernel.parametrize(eventIds[image], telescopeIds[image], images[image], scratch);
+        }
+
+        int image = 0;
+        for (ImageReader.Event event : events) {
+            batch.startEvent(event.eventId, event.mc.alt, event.mc.az);
+            for (int end = image + event.images.size(); image < end; image++) {
+                batch.add(scratch, rows[image]);
+            }
+        }
+
+        //do not keep the images of this block alive
+        Arrays.fill(images, 0, n, null);
+    }
+
+    /**
+     * Copy the references to all images of the block into the flat arrays.
+     *
+     * @return the number of images in the block
+     */
+    private int collect(List<ImageReader.Event> events) {
+        int n = 0;
+        for (ImageReader.Event event : events) {
+            n += event.images.size();
+        }
+        if (eventIds.length < n) {
+            eventIds = new long[n];
+            telescopeIds = new int[n];
+            images = new double[n][];
+            cameraIndices = new int[n];
+            rows = new int[n];
+            order = new int[n];
+        }
+
+        int i = 0;
+        for (ImageReader.Event event : events) {
+            for (Map.Entry<Integer, double[]> entry : event.images.entrySet()) {
+                eventIds[i] = event.eventId;
+                telescopeIds[i] = entry.getKey();
+                images[i] = entry.getValue();
+                cameraIndices[i] = cameraIndex(MAPPING.cameraFromId(entry.getKey()));
+                i++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Counting sort of the images by camera. Images of the same camera keep their order.
+     */
+    private void sortByCamera(int n) {
+        int[] offsets = cameraOffsets;
+        Arrays.fill(offsets, 0);
+        for (int i = 0; i < n; i++) {
+            offsets[cameraIndices[i] + 1]++;
+        }
+        for (int c = 1; c < offsets.length; c++) {
+            offsets[c] += offsets[c - 1];
+        }
+        for (int i = 0; i < n; i++) {
+            order[offsets[cameraIndices[i]]++] = i;
+        }
+    }
+
+    private int cameraIndex(CameraGeometry geometry) {
+        for (int c = 0; c < cameras.length; c++) {
+            if (cameras[c] == geometry) {
+                return c;
+            }
+        }
+        cameras = Arrays.copyOf(cameras, cameras.length + 1);
+        cameras[cameras.length - 1] = geometry;
+        cameraOffsets = new int[cameras.length + 1];
+        return cameras.length - 1;
+    }
+}
@@ -1,22 +1,13 @@
 package reconstruction;
 
-import com.google.common.collect.Lists;
 import hexmap.TelescopeArray;
 import hexmap.TelescopeDefinition;
-import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
-import org.apache.commons.math3.geometry.euclidean.threed.RotationConvention;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
-import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularMatrixException;
 import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
 import reconstruction.containers.ReconstrucedEvent;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import static java.lang.Math.*;
 
@@ -28,6 +19,18 @@ import static java.lang.Math.*;
  * The original implementation was created by Tino Michael. And is called FitGammaHillas
  * within the ctapipe project. https://github.com/cta-observatory/ctapipe
  *
+ * All calculations are done on primitive doubles. The planes of an event are kept in scratch
+ * arrays which belong to the current thread and are reused for the next event. So apart from
+ * the returned {@link ReconstrucedEvent} nothing is allocated per event.
+ * The transformations from camera coordinates to directions are taken from a
+ * {@link CameraTransforms} cache of the same thread.
+ *
+ * All results are given in the horizontal frame of the array, with x and y on the ground like
+ * the telescope positions and z pointing up, see
+ * {@link CameraTransforms.Transform#toHorizontalDirection(double, double, double[])}. The
+ * direction, the impact position, the height of the shower maximum and the impact distances all
+ * belong to the same fit.
+ *
  * Created by Kai on 20.02.17.
  */
 public class DirectionReconstruction {
@@ -35,261 +38,587 @@ public class DirectionReconstruction {
 
     private static final TelescopeArray MAPPING = TelescopeArray.cta();
 
+    private static final ThreadLocal<Planes> PLANES = ThreadLocal.withInitial(Planes::new);
 
     /**
-     * Convert in-camera coordinates to direction vectors in 3D-space.
-     *
-     * @param x in-camera coordinates in meter
-     * @param y in-camera coordinates in meter
-     * @param phi pointing in radians
-     * @param theta pointing in radians
-     * @param focalLength focal length of the telescope in meter
-     * @param cameraRotation rotation of the camera within the telescope housing in radians
-     * @return a direction vector, (x,y,z), corresponding to the direction of the given point in the camera
+     * The normal equations of the core position fit are treated as singular if the determinant
+     * is below this fraction of the product of the diagonal entries. At that point rounding
+     * errors in the plane normals change the solution in the third digit. This mainly happens
+     * for images with a width close to zero, whose weights dominate all other telescopes.
+     * The same bound is used for the 3x3 equations of the shower maximum.
      */
-    private static Vector3D cameraCoordinateToDirectionVector
-    (
-            double x,
-            double y,
-            double phi,
-            double theta,
-            double focalLength,
-            double cameraRotation
-    ){
-
-        //angle between x-axis of camera and the line connecting 0,0 with x,y
-        double alpha = atan2(y, x);
+    private static final double SINGULARITY_THRESHOLD = 1e-13;
 
-        //distance from center of camera
-        double rho = sqrt(pow(x, 2) + pow(y, 2));
-        double beta = rho / focalLength;
+    //number of pointings each thread keeps the camera transformations for.
+    private static final int MAXIMUM_POINTINGS = 8;
 
-        Vector3D telescopeDirection = cartesianFromPolar(1, phi, theta);
-        Vector3D newAxis = cartesianFromPolar(1, phi, theta + beta);
-
-        Rotation rotation = new Rotation(newAxis, alpha - cameraRotation, RotationConvention.FRAME_TRANSFORM);
+    //upper limit for the power iteration of the least squares estimate. Usually it converges after a few.
+    private static final int MAX_POWER_ITERATIONS = 64;
 
+    /**
+     * The ways to estimate the direction of the shower from the planes of the telescopes.
+     */
+    public enum Method {
+        /**
+         * Weighted sum of the intersections of all pairs of planes. This is what ctapipe does.
+         * The cost grows quadratically with the number of telescopes.
+         */
+        PAIRWISE,
+        /**
+         * The direction which minimizes the weighted sum of squared projections onto the plane
+         * normals. Needs one pass over the telescopes.
+         */
+        LEAST_SQUARES
+    }
 
-        return rotation.applyTo(telescopeDirection);
 
+    public static ReconstrucedEvent fromMoments(Iterable<Moments> momentses, double altitude, double azimuth) {
+        return fromMoments(momentses, altitude, azimuth, Method.PAIRWISE);
     }
 
     /**
-     * Go from spherical coordinates to cartesian coordinates.
-     * This assumes the typical 'mathematical conventions', or ISO, for naming these angles.
-     * (radius r, inclination θ, azimuth φ)
-     *
-     * The conversion works like this:
+     * Reconstruct the event using the given method to estimate the direction.
      *
-     *    [ r * sin(theta)*cos(phi),
-     *      r * sin(theta)*sin(phi),
-     *      cos(theta/r)         ]
-     *
-     *
-     * Apache Commons Math also provides a SphericalCoordinates object. It uses a different convention however
-     * (phi and theta are switched).
-     *
-     *
-     * @param phi pointing phi angle of a telescope
-     * @param theta pointing theta angle of a telescope
-     * @return a direction vector of length 1
+     * @param momentses the moments of all telescopes in the event
+     * @param altitude  the pointing altitude in radians
+     * @param azimuth   the pointing azimuth in radians
+     * @param method    the way to estimate the direction
+     * @return the reconstructed event
      */
-    private static Vector3D cartesianFromPolar(double radius, double phi, double theta){
-        double x = radius * sin(theta) * cos(phi);
-        double y = radius * sin(theta) * sin(phi);
-        double z = cos(theta/radius);
-        return new Vector3D(x, y, z);
-    }
+    public static ReconstrucedEvent fromMoments(Iterable<Moments> momentses, double altitude, double azimuth, Method method) {
 
+        Iterator<Moments> iterator = momentses.iterator();
+        if (!iterator.hasNext()) {
+            throw new IllegalArgumentException("Cannot reconstruct an event without any moments.");
+        }
 
+        Planes planes = PLANES.get();
+        planes.clear();
+        CameraTransforms.Pointing pointing = planes.transforms.forPointing(altitude, azimuth);
 
-    public static ReconstrucedEvent fromMoments(Iterable<Moments> momentses, double altitude, double azimuth) {
+        Moments first = iterator.next();
+        long eventID = first.eventID;
+        planes.add(pointing, first.telescopeID, first.meanX, first.meanY, first.length, first.width, first.delta, first.size);
 
-        ArrayList<Moments> parameters = Lists.newArrayList(momentses);
+        while (iterator.hasNext()) {
+            Moments p = iterator.next();
+            planes.add(pointing, p.telescopeID, p.meanX, p.meanY, p.length, p.width, p.delta, p.size);
+        }
 
-        long eventID = parameters.get(0).eventID;
+        return reconstruct(eventID, planes, method);
+    }
 
-        List<Plane> planes = parameters.stream()
-                .map(p -> new Plane(azimuth, altitude, p))
-                .collect(Collectors.toList());
+    /**
+     * Reconstruct a single event stored in the given batch. The pointing is read from the batch.
+     *
+     * @param batch the batch holding the moments
+     * @param event the index of the event within the batch
+     * @return the reconstructed event
+     */
+    public static ReconstrucedEvent fromBatch(MomentsBatch batch, int event) {
+        return fromBatch(batch, event, Method.PAIRWISE);
+    }
 
-        double[] direction = estimateDirection(planes);
+    /**
+     * Reconstruct a single event stored in the given batch using the given method to estimate the
+     * direction.
+     *
+     * @param batch  the batch holding the moments
+     * @param event  the index of the event within the batch
+     * @param method the way to estimate the direction
+     * @return the reconstructed event
+     */
+    public static ReconstrucedEvent fromBatch(MomentsBatch batch, int event, Method method) {
+        double altitude = batch.altitude(event);
+        double azimuth = batch.azimuth(event);
+
+        Planes planes = PLANES.get();
+        planes.clear();
+        CameraTransforms.Pointing pointing = planes.transforms.forPointing(altitude, azimuth);
+        for (int row = batch.eventStart(event); row < batch.eventEnd(event); row++) {
+            planes.add(pointing, batch.telescopeID[row], batch.meanX[row], batch.meanY[row],
+                    batch.length[row], batch.width[row], batch.delta[row], batch.size[row]);
+        }
 
-        double[] corePosition = estimateCorePosition(planes);
-        return new ReconstrucedEvent(eventID, direction, corePosition);
+        return reconstruct(batch.eventId(event), planes, method);
     }
 
     /**
-     * Estimate the position x,y of the showers impact from a collection of Plane objects
-     * @param planes planes for each telescope in the event
-     * @return an array [x, y] giving a point on the surface
+     * Calculate the normal vector of the plane and the direction of the image centroid for a
+     * single telescope image. The result is written to scratch space of the current thread and
+     * is only valid until the next call.
+     *
+     * @return the unit normal vector of the plane followed by the unit direction of the centroid,
+     * [nx, ny, nz, cx, cy, cz]
      */
-    private static double[] estimateCorePosition(List<Plane> planes){
-        int n = planes.size();
+    static double[] planeGeometry(double altitude, double azimuth, int telescopeId,
+                                  double meanX, double meanY, double length, double delta) {
+        Planes planes = PLANES.get();
+        CameraTransforms.Transform transform = planes.transforms.forPointing(altitude, azimuth).forTelescope(telescopeId);
+        double[] geometry = planes.geometry;
+        planes.normal(transform, meanX, meanY, length, delta, geometry);
+        geometry[3] = planes.v1[0];
+        geometry[4] = planes.v1[1];
+        geometry[5] = planes.v1[2];
+        return geometry;
+    }
 
-        double[][] mat = new double[n][2];
-        double[] d =  new double[n];
+    private static ReconstrucedEvent reconstruct(long eventID, Planes planes, Method method) {
+        double[] direction = new double[3];
+        if (method == Method.LEAST_SQUARES) {
+            estimateDirectionLeastSquares(planes, direction);
+        } else {
+            estimateDirection(planes, direction);
+        }
 
-        for (int i = 0; i < n; i++) {
-            Plane plane = planes.get(i);
-            Vector3D norm = plane.getNormalAsVector();
-            double weight = plane.weight;
+        double[] corePosition = new double[2];
+        estimateCorePosition(planes, corePosition);
 
-            Vector2D projection = new Vector2D(norm.getX(), norm.getY());
+        double hMax = estimateShowerMaximum(planes);
 
-            mat[i][0] = projection.getX() * weight;
-            mat[i][1] = projection.getY() * weight;
+        int n = planes.size;
+        double[] impactDistances = new double[n];
+        for (int i = 0; i < n; i++) {
+            impactDistances[i] = impactDistance(direction, corePosition,
+                    planes.telescopeX[i], planes.telescopeY[i], planes.telescopeZ[i]);
+        }
+        return new ReconstrucedEvent(eventID, direction, corePosition, hMax,
+                Arrays.copyOf(planes.telescopeId, n), impactDistances);
+    }
 
+    /**
+     * Estimate the height of the shower maximum above the ground.
+     *
+     * Each telescope sees the brightest part of the shower in the direction of its image
+     * centroid, so the maximum should lie on the line from the telescope in that direction.
+     * The shower maximum is the point which minimizes the squared distances to these lines,
+     * weighted by the size of the images. This is what ctapipe does as well. It does not depend
+     * on the fitted shower axis, so a poor direction fit of an event with two telescopes does
+     * not carry over.
+     *
+     * For a line through p_i with unit direction d_i the squared distance of a point x is
+     * |P_i (x - p_i)|^2 with the projection P_i = I - d_i d_i^T. The minimum is the solution of
+     *
+     * Q x = r, where Q = sum(w_i * P_i) and r = sum(w_i * P_i p_i).
+     *
+     * Q and r are accumulated in a single pass over the telescopes.
+     *
+     * @param planes the planes for each telescope, holding the centroid directions
+     * @return the height of the shower maximum in meter or NaN if it cannot be estimated
+     */
+    private static double estimateShowerMaximum(Planes planes) {
+        double qxx = 0, qxy = 0, qxz = 0, qyy = 0, qyz = 0, qzz = 0;
+        double rx = 0, ry = 0, rz = 0;
+        for (int i = 0; i < planes.size; i++) {
+            double w = planes.amplitude[i];
+            double dx = planes.centroidX[i], dy = planes.centroidY[i], dz = planes.centroidZ[i];
+            double px = planes.telescopeX[i], py = planes.telescopeY[i], pz = planes.telescopeZ[i];
+
+            qxx += w * (1 - dx * dx);
+            qxy -= w * dx * dy;
+            qxz -= w * dx * dz;
+            qyy += w * (1 - dy * dy);
+            qyz -= w * dy * dz;
+            qzz += w * (1 - dz * dz);
+
+            // P p = p - d (d . p)
+            double dp = dx * px + dy * py + dz * pz;
+            rx += w * (px - dx * dp);
+            ry += w * (py - dy * dp);
+            rz += w * (pz - dz * dp);
+        }
+        return showerMaximum(qxx, qxy, qxz, qyy, qyz, qzz, rx, ry, rz);
+    }
 
-            Vector2D telPos = new Vector2D(plane.telescopePosition[0], plane.telescopePosition[1]);
+    /**
+     * Solve for the point closest to the centroid lines given the sums
+     * Q = [qxx qxy qxz; qxy qyy qyz; qxz qyz qzz] and r = [rx, ry, rz].
+     * See {@link #estimateShowerMaximum(Planes)}.
+     *
+     * @return the height of the shower maximum in meter or NaN if it cannot be estimated
+     */
+    static double showerMaximum(double qxx, double qxy, double qxz, double qyy, double qyz, double qzz,
+                                double rx, double ry, double rz) {
+        // the last row of the adjugate of Q
+        double axz = qxy * qyz - qxz * qyy;
+        double ayz = qxy * qxz - qxx * qyz;
+        double azz = qxx * qyy - qxy * qxy;
+
+        double det = qxz * axz + qyz * ayz + qzz * azz;
+        if (!(det > SINGULARITY_THRESHOLD * qxx * qyy * qzz)) {
+            // fewer than two lines which are not parallel or nothing was added.
+            return Double.NaN;
+        }
+        return (axz * rx + ayz * ry + azz * rz) / det;
+    }
 
-            d[i] = (projection.scalarMultiply(weight)).dotProduct(telPos);
+    /**
+     * The distance between a telescope and the reconstructed shower axis.
+     *
+     * @param direction the reconstructed direction of the shower
+     * @param corePosition the reconstructed impact position on the ground
+     * @return the distance in meter, NaN if the axis is undefined
+     */
+    static double impactDistance(double[] direction, double[] corePosition, double x, double y, double z) {
+        // |(p - c) x s| with the unit vector s
+        double px = x - corePosition[0];
+        double py = y - corePosition[1];
+        double sx = direction[0], sy = direction[1], sz = direction[2];
+
+        double ax = py * sz - z * sy;
+        double ay = z * sx - px * sz;
+        double az = px * sy - py * sx;
+        return sqrt(ax * ax + ay * ay + az * az);
+    }
+
+    /**
+     * Estimate the position x,y of the showers impact from the planes of all telescopes.
+     *
+     * This is a weighted linear least squares fit. Each telescope contributes one row
+     * a_i = w_i * (n_x, n_y) to the matrix A and d_i = a_i . (telescope x, telescope y) to the
+     * right hand side. The 2x2 normal equations A^T A x = A^T d are accumulated in a single pass
+     * and solved explicitly.
+     *
+     * In case A^T A is singular, or so badly conditioned that the solution has no significant
+     * digits left, NaN is written instead. See {@link #SINGULARITY_THRESHOLD}.
+     *
+     * @param planes planes for each telescope in the event
+     * @param corePosition array of length 2 to write the point [x, y] on the surface to
+     */
+    private static void estimateCorePosition(Planes planes, double[] corePosition){
+        int n = planes.size;
+        double[] nx = planes.nx;
+        double[] ny = planes.ny;
+        double[] w = planes.weight;
+        double[] telescopeX = planes.telescopeX;
+        double[] telescopeY = planes.telescopeY;
+
+        double aa = 0, ab = 0, bb = 0, ad = 0, bd = 0;
+        for (int i = 0; i < n; i++) {
+            double a = nx[i] * w[i];
+            double b = ny[i] * w[i];
+            double d = a * telescopeX[i] + b * telescopeY[i];
+
+            aa += a * a;
+            ab += a * b;
+            bb += b * b;
+            ad += a * d;
+            bd += b * d;
         }
 
-        //Do a linear least square regresssion
-        RealMatrix A = MatrixUtils.createRealMatrix(mat);
-        try {
-            return MatrixUtils.inverse(A.transpose().multiply(A)).multiply(A.transpose()).operate(d);
-        } catch (SingularMatrixException e){
-            return new double[]{Double.NaN, Double.NaN};
+        solveCorePosition(aa, ab, bb, ad, bd, corePosition);
+    }
+
+    /**
+     * Solve the 2x2 normal equations of the core position fit
+     * [aa ab; ab bb] x = [ad; bd] for x, or write NaN if they are (close to) singular.
+     */
+    static void solveCorePosition(double aa, double ab, double bb, double ad, double bd, double[] corePosition) {
+        // det / (aa * bb) is the squared sine of the angle between the two columns of A.
+        double det = aa * bb - ab * ab;
+        if (!(det > SINGULARITY_THRESHOLD * aa * bb)) {
+            corePosition[0] = Double.NaN;
+            corePosition[1] = Double.NaN;
+            return;
         }
 
+        corePosition[0] = (bb * ad - ab * bd) / det;
+        corePosition[1] = (aa * bd - ab * ad) / det;
     }
 
     /**
-     * Estimate the direction of the shower from a collection of Plane objects
-     * Returns a direction vector [x, y, z] pointing into the direction the shower
+     * Estimate the direction of the shower from the planes of all telescopes.
+     * Writes a direction vector [x, y, z] pointing into the direction the shower
      * originated.
      * It does so by calculating a weighted sum of the estimated directions
-     * from all pairs of planes in the given as the method argument.
+     * from all pairs of planes.
+     *
+     * The original implementation summed over all ordered pairs. The two orders give the same
+     * cross product up to the sign, which is flipped to the upper solution anyway. So each
+     * unordered pair is visited once here. Pairs whose cross product lies exactly in the xy-plane
+     * cancelled out before and are skipped.
      *
-     * @param planes the plane objects for each Telescope
-     * @return an array [x, y, z]
+     * @param planes the planes for each Telescope
+     * @param direction array of length 3 to write the result to. NaN in case no direction can be estimated.
      */
-    private static double[] estimateDirection(List<Plane> planes){
-
-        // get all combinations of size 2 in a rather inelegant way.
-        List<List<Plane>> tuples = new ArrayList<>();
-        for(Plane p1 : planes){
-            for(Plane p2 : planes){
-                if(p1 != p2){
-                    tuples.add(Lists.newArrayList(p1, p2));
+    private static void estimateDirection(Planes planes, double[] direction){
+        int n = planes.size;
+        double[] nx = planes.nx;
+        double[] ny = planes.ny;
+        double[] nz = planes.nz;
+        double[] w = planes.weight;
+
+        double x = 0, y = 0, z = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double cx = ny[i] * nz[j] - nz[i] * ny[j];
+                double cy = nz[i] * nx[j] - nx[i] * nz[j];
+                double cz = nx[i] * ny[j] - ny[i] * nx[j];
+
+                //Here is the original docstring from the python implementation:
+                //
+                // # two great circles cross each other twice (one would be
+                // # the origin, the other one the direction of the gamma) it
+                // # doesn't matter which we pick but it should at least be
+                // # consistent: make sure to always take the "upper" solution.
+                double weight = w[i] * w[j];
+                if (cz < 0) {
+                    weight = -weight;
+                } else if (cz == 0) {
+                    // lies in the xy-plane. Both orders cancel each other out.
+                    // A NaN ends up in neither branch and is passed on, same as before.
+                    weight = 0;
                 }
+
+                x += cx * weight;
+                y += cy * weight;
+                z += cz * weight;
             }
         }
 
-        Optional<Vector3D> direction = tuples.stream()
-                .map(l -> {
-
-                    Plane plane1 = l.get(0);
-                    Plane plane2 = l.get(1);
-                    double[] v1 = plane1.normalVector;
-                    double[] v2 = plane2.normalVector;
-
-                    Vector3D product = Vector3D.crossProduct(new Vector3D(v1), new Vector3D(v2));
-
-                    //Here is the original docstring from the python implementation:
-                    //
-                    // # two great circles cross each other twice (one would be
-                    // # the origin, the other one the direction of the gamma) it
-                    // # doesn't matter which we pick but it should at least be
-                    // # consistent: make sure to always take the "upper" solution.
-                    if (product.getZ() < 0) {
-                        product = product.scalarMultiply(-1);
-                    }
-
-                    return product.scalarMultiply(plane1.weight * plane2.weight);
-                })
-                .reduce(Vector3D::add)
-                .filter(l -> l.getNorm() > 0)
-                .map(Vector3D::normalize);
-
-        return direction.orElse(new Vector3D(Double.NaN, Double.NaN, Double.NaN)).toArray();
+        double norm = sqrt(x * x + y * y + z * z);
+        if (n < 2 || !(norm > 0)) {
+            Arrays.fill(direction, Double.NaN);
+            return;
+        }
+        direction[0] = x / norm;
+        direction[1] = y / norm;
+        direction[2] = z / norm;
     }
 
 
     /**
-     * This class describes a plane in [x, y, z] space for a single telescope shower.
-     * The plane is aligned with the reconstructed angle of the shower in the camera.
-     * One plane for each camera partaking in an event is created. Using these planes both impact position
-     * and direction can be reconstructed.
+     * Estimate the direction of the shower as the unit vector d which minimizes
+     * sum(w_i * (n_i . d)^2), where n_i are the plane normals and w_i the plane weights.
+     * Ideally all planes contain the shower axis, so d is perpendicular to all normals.
+     * The weights are not squared. Images with a width close to zero get weights many orders of
+     * magnitude above the others, squaring them would drown the other telescopes in rounding
+     * errors.
+     *
+     * The solution is the eigenvector belonging to the smallest eigenvalue of the symmetric
+     * matrix M = sum(w_i * n_i n_i^T). M is accumulated in a single pass over the planes, its
+     * smallest eigenvector is found by power iteration on the adjugate of M. Of the two solutions
+     * d and -d the "upper" one is taken, like in {@link #estimateDirection(Planes, double[])}.
+     *
+     * @param planes the planes for each Telescope
+     * @param direction array of length 3 to write the result to. NaN in case no direction can be estimated.
      */
-    private static class Plane {
-        //the telescope id this reconstructed plane belongs to
-        final int telescopeId;
-        //the weight given to the plane
-        final double weight;
-        //two vectors describing the plane
-        final Vector3D planeVector1;
-        final Vector3D planeVector2;
+    private static void estimateDirectionLeastSquares(Planes planes, double[] direction){
+        int n = planes.size;
+        double[] nx = planes.nx;
+        double[] ny = planes.ny;
+        double[] nz = planes.nz;
+        double[] w = planes.weight;
+
+        double mxx = 0, mxy = 0, mxz = 0, myy = 0, myz = 0, mzz = 0;
+        for (int i = 0; i < n; i++) {
+            double x = nx[i], y = ny[i], z = nz[i];
+            mxx += w[i] * x * x;
+            mxy += w[i] * x * y;
+            mxz += w[i] * x * z;
+            myy += w[i] * y * y;
+            myz += w[i] * y * z;
+            mzz += w[i] * z * z;
+        }
 
-        //the normalvector of that plane
-        final double[] normalVector;
+        leastSquaresDirection(n, mxx, mxy, mxz, myy, myz, mzz, direction);
+    }
 
-        //the position of the telescope on the ground
-        final double[] telescopePosition;
+    /**
+     * Find the unit vector d minimizing d^T M d for the symmetric matrix
+     * M = [mxx mxy mxz; mxy myy myz; mxz myz mzz] accumulated from n planes.
+     * See {@link #estimateDirectionLeastSquares(Planes, double[])}.
+     */
+    static void leastSquaresDirection(int n, double mxx, double mxy, double mxz, double myy, double myz, double mzz,
+                                      double[] direction) {
+        // scale the matrix to a trace of 1. The weights can be huge for very narrow images.
+        double trace = mxx + myy + mzz;
+        if (n < 2 || !(trace > 0) || Double.isInfinite(trace)) {
+            Arrays.fill(direction, Double.NaN);
+            return;
+        }
+        mxx /= trace; mxy /= trace; mxz /= trace;
+        myy /= trace; myz /= trace; mzz /= trace;
+
+        // The adjugate of M has the same eigenvectors as M. With eigenvalues l1 <= l2 <= l3 of M
+        // its eigenvalues are l2 * l3 >= l1 * l3 >= l1 * l2, so the smallest eigenvalue of M
+        // belongs to the largest one of the adjugate. It is also well separated: the ratio to the
+        // next one is l2 / l1.
+        // Computing the eigenvalues of M in closed form (with acos) loses too much precision when
+        // the two smallest ones are both close to zero, which is the case for most events.
+        double axx = myy * mzz - myz * myz;
+        double axy = mxz * myz - mxy * mzz;
+        double axz = mxy * myz - mxz * myy;
+        double ayy = mxx * mzz - mxz * mxz;
+        double ayz = mxy * mxz - mxx * myz;
+        double azz = mxx * myy - mxy * mxy;
+
+        // start with the largest column of the adjugate. For two planes this is already the exact
+        // solution, otherwise power iteration removes what is left of the other eigenvectors.
+        double x = axx, y = axy, z = axz;
+        double norm = axx * axx + axy * axy + axz * axz;
+        double n2 = axy * axy + ayy * ayy + ayz * ayz;
+        double n3 = axz * axz + ayz * ayz + azz * azz;
+        if (n2 > norm) {
+            x = axy; y = ayy; z = ayz; norm = n2;
+        }
+        if (n3 > norm) {
+            x = axz; y = ayz; z = azz; norm = n3;
+        }
+        if (!(norm > 0)) {
+            // all planes are the same. there is no intersection.
+            Arrays.fill(direction, Double.NaN);
+            return;
+        }
+        norm = sqrt(norm);
+        x /= norm; y /= norm; z /= norm;
+
+        for (int iteration = 0; iteration < MAX_POWER_ITERATIONS; iteration++) {
+            double nextX = axx * x + axy * y + axz * z;
+            double nextY = axy * x + ayy * y + ayz * z;
+            double nextZ = axz * x + ayz * y + azz * z;
+            norm = sqrt(nextX * nextX + nextY * nextY + nextZ * nextZ);
+            nextX /= norm; nextY /= norm; nextZ /= norm;
+
+            double change = abs(nextX - x) + abs(nextY - y) + abs(nextZ - z);
+            x = nextX; y = nextY; z = nextZ;
+            if (change < 1e-15) {
+                break;
+            }
+        }
 
-        Plane(double phi, double theta, Moments p) {
-            this.telescopeId = p.telescopeID;
+        if (z < 0) {
+            x = -x; y = -y; z = -z;
+        }
+        direction[0] = x;
+        direction[1] = y;
+        direction[2] = z;
+    }
 
-            TelescopeDefinition tel = MAPPING.telescopeFromId(this.telescopeId);
 
-            //get two points on the shower axis
-            double pX = p.meanX + p.length * cos(p.delta);
-            double pY = p.meanY + p.length * sin(p.delta);
+    /**
+     * The planes of all telescopes in one event. A plane is aligned with the reconstructed angle
+     * of the shower in the camera and described by its normal vector. Using these planes both
+     * impact position and direction can be reconstructed.
+     *
+     * The values are stored column wise in arrays which grow as needed and are reused for
+     * the next event.
+     */
+    private static final class Planes {
+        int size = 0;
 
-            this.weight = p.size * (p.length / p.width);
+        //the normal vectors of the planes
+        double[] nx = new double[16];
+        double[] ny = new double[16];
+        double[] nz = new double[16];
 
-            this.planeVector1 = cameraCoordinateToDirectionVector(p.meanX, p.meanY, phi, theta, tel.opticalFocalLength, 0);
-            this.planeVector2 = cameraCoordinateToDirectionVector(pX, pY, phi, theta, tel.opticalFocalLength, 0);
+        //the weight given to each plane
+        double[] weight = new double[16];
 
-            // c  = (v1 X v2) X v1
-            Vector3D crossProduct = Vector3D.crossProduct(Vector3D.crossProduct(planeVector1, planeVector2), planeVector1);
-            Vector3D norm = Vector3D.crossProduct(planeVector1, crossProduct);
+        //the position of the telescopes on the ground
+        double[] telescopeX = new double[16];
+        double[] telescopeY = new double[16];
+        double[] telescopeZ = new double[16];
+        int[] telescopeId = new int[16];
 
-            if (Double.isNaN(weight)){
-                this.normalVector = new double[]{Double.NaN,Double.NaN,Double.NaN};
-            } else {
-                this.normalVector = norm.normalize().toArray();
-            }
+        //the direction of the image centroid and the size of the image
+        double[] centroidX = new double[16];
+        double[] centroidY = new double[16];
+        double[] centroidZ = new double[16];
+        double[] amplitude = new double[16];
 
-            telescopePosition = new double[]{tel.telescopePositionX, tel.telescopePositionY, tel.telescopePositionZ};
-        }
+        //two direction vectors lying in the current plane
+        final double[] v1 = new double[3];
+        final double[] v2 = new double[3];
 
-        /**
-         * A small convenience function to return the [x, y, z] normal vector as an actual Vector3d object
-         *
-         * @return a the normal vector of the plane
-         */
-        Vector3D getNormalAsVector(){
-            return new Vector3D(normalVector);
-        }
+        //the normal of the current plane
+        final double[] normal = new double[3];
+
+        //the normal and centroid direction returned by planeGeometry
+        final double[] geometry = new double[6];
 
+        //the camera to sky transformations of the recently seen pointings
+        final CameraTransforms transforms = new CameraTransforms(MAXIMUM_POINTINGS);
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        void clear() {
+            size = 0;
+        }
 
-            Plane plane = (Plane) o;
+        void add(CameraTransforms.Pointing pointing, int telescopeId, double meanX, double meanY,
+                 double length, double width, double delta, double size) {
+            if (this.size == nx.length) {
+                int capacity = 2 * nx.length;
+                nx = Arrays.copyOf(nx, capacity);
+                ny = Arrays.copyOf(ny, capacity);
+                nz = Arrays.copyOf(nz, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+                telescopeX = Arrays.copyOf(telescopeX, capacity);
+                telescopeY = Arrays.copyOf(telescopeY, capacity);
+                telescopeZ = Arrays.copyOf(telescopeZ, capacity);
+                this.telescopeId = Arrays.copyOf(this.telescopeId, capacity);
+                centroidX = Arrays.copyOf(centroidX, capacity);
+                centroidY = Arrays.copyOf(centroidY, capacity);
+                centroidZ = Arrays.copyOf(centroidZ, capacity);
+                amplitude = Arrays.copyOf(amplitude, capacity);
+            }
 
-            if (telescopeId != plane.telescopeId) return false;
-            if (Double.compare(plane.weight, weight) != 0) return false;
-            if (!planeVector1.equals(plane.planeVector1)) return false;
-            return planeVector2.equals(plane.planeVector2);
+            TelescopeDefinition tel = MAPPING.telescopeFromId(telescopeId);
 
+            double w = size * (length / width);
+
+            int i = this.size++;
+            normal(pointing.forTelescope(telescopeId), meanX, meanY, length, delta, normal);
+            if (Double.isNaN(w)) {
+                nx[i] = ny[i] = nz[i] = Double.NaN;
+            } else {
+                nx[i] = normal[0];
+                ny[i] = normal[1];
+                nz[i] = normal[2];
+            }
+            weight[i] = w;
+            telescopeX[i] = tel.telescopePositionX;
+            telescopeY[i] = tel.telescopePositionY;
+            telescopeZ[i] = tel.telescopePositionZ;
+            this.telescopeId[i] = telescopeId;
+
+            // v1 points to the centroid of the image
+            centroidX[i] = v1[0];
+            centroidY[i] = v1[1];
+            centroidZ[i] = v1[2];
+            amplitude[i] = size;
         }
 
-        @Override
-        public int hashCode() {
-            int result;
-            long temp;
-            result = telescopeId;
-            temp = Double.doubleToLongBits(weight);
-            result = 31 * result + (int) (temp ^ (temp >>> 32));
-            result = 31 * result + planeVector1.hashCode();
-            result = 31 * result + planeVector2.hashCode();
-            return result;
+        /**
+         * Write the unit normal vector of the plane spanned by the shower axis seen by the
+         * given telescope to the given array.
+         */
+        void normal(CameraTransforms.Transform transform, double meanX, double meanY, double length, double delta,
+                    double[] normal) {
+            //get two points on the shower axis
+            double pX = meanX + length * cos(delta);
+            double pY = meanY + length * sin(delta);
+
+            transform.toHorizontalDirection(meanX, meanY, v1);
+            transform.toHorizontalDirection(pX, pY, v2);
+
+            // c  = (v1 X v2) X v1
+            double ax = v1[1] * v2[2] - v1[2] * v2[1];
+            double ay = v1[2] * v2[0] - v1[0] * v2[2];
+            double az = v1[0] * v2[1] - v1[1] * v2[0];
+
+            double cx = ay * v1[2] - az * v1[1];
+            double cy = az * v1[0] - ax * v1[2];
+            double cz = ax * v1[1] - ay * v1[0];
+
+            // norm = v1 X c
+            double x = v1[1] * cz - v1[2] * cy;
+            double y = v1[2] * cx - v1[0] * cz;
+            double z = v1[0] * cy - v1[1] * cx;
+
+            double norm = sqrt(x * x + y * y + z * z);
+            normal[0] = x / norm;
+            normal[1] = y / norm;
+            normal[2] = z / norm;
         }
     }
 }
@@ -0,0 +1,154 @@
+package reconstruction;
+
+import io.ImageReader;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Cleans and parametrizes the images of a single event and reconstructs it. Events with many
+ * triggered telescopes are split up and their images are processed in parallel on a
+ * {@link ForkJoinPool}. This lowers the latency of a single large event.
+ * Events with fewer images than the threshold are processed on the calling thread, since handing
+ * a few images to other threads takes longer than processing them.
+ *
+ * The results do not depend on the threshold. The Moments are always in the order of the images
+ * in the event.
+ *
+ * <pre>
+ *     EventProcessor processor = new EventProcessor(ForkJoinPool.commonPool(), 16, ImageKernel::new);
+ *     ReconstrucedEvent r = processor.reconstruct(event, DirectionReconstruction.Method.PAIRWISE);
+ * </pre>
+ */
+public class EventProcessor {
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final ThreadLocal<ImageKernel> kernels;
+
+    /**
+     * Create a processor using the common pool and the default kernel of each thread.
+     *
+     * @param parallelThreshold the number of images from which on an event is processed in parallel
+     */
+    public EventProcessor(int parallelThreshold) {
+        this(ForkJoinPool.commonPool(), parallelThreshold, ImageKernel::new);
+    }
+
+    /**
+     * @param pool              the pool to process the images of large events on
+     * @param parallelThreshold the number of images from which on an event is processed in parallel
+     * @param kernelFactory     creates the kernel for each thread. Kernels are not thread safe, so
+     *                          each thread gets its own
+     */
+    public EventProcessor(ForkJoinPool pool, int parallelThreshold, Supplier<ImageKernel> kernelFactory) {
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("The threshold has to be at least 1, got " + parallelThreshold);
+        }
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+        this.kernels = ThreadLocal.withInitial(kernelFactory);
+    }
+
+    /**
+     * Clean all images in the event and calculate their Hillas parameters.
+     *
+     * @param event the event holding the raw images
+     * @return the Moments for each image in the event
+     */
+    public List<Moments> parametrize(ImageReader.Event event) {
+        if (event.images.size() < parallelThreshold) {
+            return HillasParametrization.fromImagesInEvent(event, kernels.get());
+        }
+        return Arrays.asList(parametrizeInParallel(event));
+    }
+
+    /**
+     * Clean all images in the event and append their Hillas parameters to the batch as a new
+     * event. See {@link HillasParametrization#fromImagesInEvent(ImageReader.Event, ImageKernel, MomentsBatch)}.
+     *
+     * @param event the event holding the raw images
+     * @param batch the batch to append to
+     */
+    public void parametrize(ImageReader.Event event, MomentsBatch batch) {
+        if (event.images.size() < parallelThreshold) {
+            HillasParametrization.fromImagesInEvent(event, kernels.get(), batch);
+            return;
+        }
+
+        Moments[] moments = parametrizeInParallel(event);
+        batch.startEvent(event.eventId, event.mc.alt, event.mc.az);
+        for (Moments m : moments) {
+            batch.add(m);
+        }
+    }
+
+    /**
+     * Parametrize the images of the event and reconstruct its direction and impact position.
+     *
+     * @param event  the event holding the raw images
+     * @param method the way to estimate the direction
+     * @return the reconstructed event
+     */
+    public ReconstrucedEvent reconstruct(ImageReader.Event event, DirectionReconstruction.Method method) {
+        return DirectionReconstruction.fromMoments(parametrize(event), event.mc.alt, event.mc.az, method);
+    }
+
+    private Moments[] parametrizeInParallel(ImageReader.Event event) {
+        int n = event.images.size();
+        int[] telescopeIds = new int[n];
+        double[][] images = new double[n][];
+        int i = 0;
+        for (Map.Entry<Integer, double[]> entry : event.images.entrySet()) {
+            telescopeIds[i] = entry.getKey();
+            images[i] = entry.getValue();
+            i++;
+        }
+
+        Moments[] moments = new Moments[n];
+        pool.invoke(new ParametrizeImages(event.eventId, telescopeIds, images, moments, 0, n));
+        return moments;
+    }
+
+    /**
+     * Parametrizes the images from start to end. Ranges are halved until a single image is left.
+     * Images differ a lot in their number of pixels, so small tasks keep the threads busy.
+     */
+    private final class ParametrizeImages extends RecursiveAction {
+        private final long eventId;
+        private final int[] telescopeIds;
+        private final double[][] images;
+        private final Moments[] moments;
+        private final int start;
+        private final int end;
+
+        ParametrizeImages(long eventId, int[] telescopeIds, double[][] images, Moments[] moments, int start, int end) {
+            this.eventId = eventId;
+            this.telescopeIds = telescopeIds;
+            this.images = images;
+            this.moments = moments;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                moments[start] = kernels.get().parametrize(eventId, telescopeIds[start], images[start]);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(
+                    new ParametrizeImages(eventId, telescopeIds, images, moments, start, middle),
+                    new ParametrizeImages(eventId, telescopeIds, images, moments, middle, end)
+            );
+        }
+    }
+}
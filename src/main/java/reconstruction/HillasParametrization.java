@@ -1,12 +1,17 @@
 package reconstruction;
 
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+import io.ImageReader;
 import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
 import reconstruction.containers.ShowerImage;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
-import static java.lang.Math.*;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -18,6 +23,49 @@ import static java.util.stream.Collectors.toList;
  */
 public class HillasParametrization {
 
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    /**
+     * Clean all images in the event and calculate their Hillas parameters without creating
+     * intermediate ShowerImage objects. See {@link ImageKernel}.
+     *
+     * @param event the event holding the raw images
+     * @return the Moments for each image in the event
+     */
+    public static List<Moments> fromImagesInEvent(ImageReader.Event event){
+        return fromImagesInEvent(event, ImageKernel.get());
+    }
+
+    /**
+     * Same as {@link HillasParametrization#fromImagesInEvent(ImageReader.Event)} using the given
+     * kernel. Use this to calculate additional image features.
+     *
+     * @param event  the event holding the raw images
+     * @param kernel the kernel to use
+     * @return the Moments for each image in the event
+     */
+    public static List<Moments> fromImagesInEvent(ImageReader.Event event, ImageKernel kernel){
+        List<Moments> moments = new ArrayList<>(event.images.size());
+        for (Map.Entry<Integer, double[]> entry : event.images.entrySet()) {
+            moments.add(kernel.parametrize(event.eventId, entry.getKey(), entry.getValue()));
+        }
+        return moments;
+    }
+
+    /**
+     * Clean all images in the event and append their Hillas parameters to the batch as a new
+     * event. The pointing of the event is taken from the monte carlo information.
+     *
+     * @param event  the event holding the raw images
+     * @param kernel the kernel to use
+     * @param batch  the batch to append to
+     */
+    public static void fromImagesInEvent(ImageReader.Event event, ImageKernel kernel, MomentsBatch batch){
+        batch.startEvent(event.eventId, event.mc.alt, event.mc.az);
+        for (Map.Entry<Integer, double[]> entry : event.images.entrySet()) {
+            kernel.parametrize(event.eventId, entry.getKey(), entry.getValue(), batch);
+        }
+    }
 
     public static List<Moments> fromShowerImages(List<ShowerImage> showerImages){
         return showerImages.stream().map(HillasParametrization::fromShowerImage).collect(toList());
@@ -28,84 +76,37 @@ public class HillasParametrization {
     }
 
 
+    /**
+     * Calculate the Hillas parameters of a cleaned image. All pixels are visited exactly once,
+     * see {@link HillasKernel} for details.
+     *
+     * @param showerImage the cleaned image
+     * @return the Moments of the image
+     */
     public static Moments fromShowerImage(ShowerImage showerImage) {
-
-        double size = showerImage.signalPixels.stream().mapToDouble(e -> e.weight).sum();
-        double sumX = 0;
-        double sumY = 0;
-
-        // find weighted center of the shower pixels.
+        HillasKernel kernel = new HillasKernel();
         for (ShowerImage.SignalPixel pixel : showerImage.signalPixels) {
-            sumX += pixel.xPositionInMM * pixel.weight;
-            sumY += pixel.yPositionInMM * pixel.weight;
-            size += pixel.weight;
-        }
-
-        final double meanX = sumX / size;
-        final double meanY = sumY / size;
-
-        //calculate the covariance matrix
-        double sxx = 0, syy = 0, sxy = 0;
-        for (ShowerImage.SignalPixel p : showerImage.signalPixels) {
-            sxx += p.weight * pow((p.xPositionInMM - meanX), 2);
-            syy += p.weight * pow((p.yPositionInMM - meanY), 2);
-            sxy += p.weight * (p.xPositionInMM - meanX) * (p.yPositionInMM - meanY);
+            kernel.add(pixel.weight, pixel.xPositionInMM, pixel.yPositionInMM);
         }
+        return kernel.toMoments(showerImage.eventId, showerImage.cameraId);
+    }
 
-        sxx /= size;
-        syy /= size;
-        sxy /= size;
-
-        //now analytically calculate the eigenvalues and vectors.
-        double d0 = syy - sxx;
-        double d1 = 2 * sxy;
-        double d2 = d0 + sqrt(d0 * d0 + d1 * d1);
-        double a = d2 / d1;
-
-        //apperently things can get less than zero. just set to  zero then.
-        double width = sqrt(max((syy + a * a * sxx - 2 * a * sxy) / (1 + a * a), 0));
-        double length = sqrt(max((sxx + a * a * syy - 2 * a * sxy) / (1 + a * a), 0));
-
-        double delta = atan(a);
-        double cos_delta = 1 / sqrt(1 + a * a);
-        double sin_delta = a * cos_delta;
-
-        //I dont know what this is
-        double b = meanY - a * meanX;
-        double miss = abs(b / (sqrt(1 + a * a)));
-        double r = sqrt(meanX * meanX + meanY * meanY);
-        double phi = atan2(meanY, meanX); //wtf?
-
-        //calculate higher order moments
-        double skewness_a = 0, skewness_b = 0, kurtosis_a = 0, kurtosis_b = 0;
-        for (ShowerImage.SignalPixel p : showerImage.signalPixels) {
-            double sk = cos_delta * (p.xPositionInMM - meanX) + sin_delta * (p.yPositionInMM - meanY);
-            skewness_a += p.weight * pow(sk, 3);
-            skewness_b += p.weight * pow(sk, 2);
-
-            kurtosis_a += p.weight * pow(sk, 4);
-            kurtosis_b += p.weight * pow(sk, 2);
-        }
-
-        double skewness = (skewness_a / size) / pow(skewness_b / size, 3.0 / 2.0);
-        double kurtosis = (kurtosis_a / size) / pow(kurtosis_b / size, 2);
-
-
-        return new Moments(
-                showerImage.eventId,
-                showerImage.cameraId,
-                showerImage.cameraId,
-                showerImage.signalPixels.size(),
-                width,
-                length,
-                delta,
-                skewness,
-                kurtosis,
-                phi,
-                miss,
-                r,
-                meanX,
-                meanY,
-                size);
+    /**
+     * Calculate the Hillas parameters of a cleaned image given as primitive arrays of pixel ids
+     * and weights.
+     *
+     * @param eventId     the unique event id the image belongs to
+     * @param telescopeId the id of the telescope which recorded the image
+     * @param pixelIds    the ids of the signal pixels
+     * @param weights     the weights of the signal pixels, aligned with pixelIds
+     * @param n           the number of valid entries in pixelIds and weights
+     * @return the Moments of the image
+     */
+    public static Moments fromPixels(long eventId, int telescopeId, int[] pixelIds, double[] weights, int n) {
+        CameraGeometry geometry = MAPPING.cameraFromId(telescopeId);
+
+        HillasKernel kernel = new HillasKernel();
+        kernel.add(pixelIds, weights, n, geometry.pixelXPositions, geometry.pixelYPositions);
+        return kernel.toMoments(eventId, telescopeId);
     }
 }
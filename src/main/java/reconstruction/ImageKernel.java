@@ -0,0 +1,279 @@
+package reconstruction;
+
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+import reconstruction.containers.ExtendedMoments;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+import reconstruction.containers.ShowerImage;
+import reconstruction.features.Concentration;
+import reconstruction.features.FeatureAccumulator;
+import reconstruction.features.IslandCount;
+import reconstruction.features.Leakage;
+
+import java.util.Arrays;
+
+/**
+ * Performs the tail cut cleaning and the Hillas parametrization of a raw camera image in one go.
+ * No intermediate {@link ShowerImage} is created. Instead the ids of the selected pixels are kept
+ * in scratch buffers which are reused for the next image. A ShowerImage is only built when
+ * {@link ImageKernel#toShowerImage(long, int)} is called explicitly, e.g. to hand the pixels to
+ * the python bridge.
+ *
+ * The cleaning is the same as in {@link TailCut#selectShowerFromImage(long, int, double[])}.
+ * Pixels above the first level are selected, then the selection is dilated once for each of
+ * the following levels.
+ *
+ * Additional image features can be calculated in the same pass by handing
+ * {@link FeatureAccumulator}s to the constructor. In that case
+ * {@link ImageKernel#parametrize(long, int, double[])} returns {@link ExtendedMoments}.
+ *
+ * An instance is not thread safe. Use {@link ImageKernel#get()} to get an instance without
+ * additional features for the current thread.
+ */
+public final class ImageKernel {
+
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    private static final ThreadLocal<ImageKernel> KERNELS = ThreadLocal.withInitial(ImageKernel::new);
+
+    private final HillasKernel hillas;
+
+    private final FeatureAccumulator[] accumulators;
+    private final String[] featureNames;
+    //position of the first feature of each accumulator in featureNames
+    private final int[] offsets;
+
+    //ids of the selected pixels in order of their selection
+    private int[] selected = new int[0];
+    private int numberOfSelectedPixels = 0;
+
+    //a pixel is selected in the current image if its entry equals the current stamp.
+    //this saves us from clearing the array for each image
+    private int[] stamps = new int[0];
+    private int stamp = 0;
+
+    //the image that was cleaned last
+    private double[] image;
+
+    /**
+     * Create a kernel which calculates the given features in addition to the Hillas parameters.
+     *
+     * @param accumulators the features to calculate
+     */
+    public ImageKernel(FeatureAccumulator... accumulators) {
+        this(4, accumulators);
+    }
+
+    /**
+     * Create a kernel which calculates the Hillas parameters up to the given order and the given
+     * features. See {@link HillasKernel#HillasKernel(int)}.
+     *
+     * @param order        the highest order of the moments to calculate
+     * @param accumulators the features to calculate
+     */
+    public ImageKernel(int order, FeatureAccumulator... accumulators) {
+        this.hillas = new HillasKernel(order);
+        this.accumulators = accumulators;
+        this.featureNames = Arrays.stream(accumulators)
+                .flatMap(a -> Arrays.stream(a.names()))
+                .toArray(String[]::new);
+        this.offsets = new int[accumulators.length];
+        for (int i = 1; i < accumulators.length; i++) {
+            offsets[i] = offsets[i - 1] + accumulators[i - 1].names().length;
+        }
+    }
+
+    /**
+     * Create a kernel calculating leakage, concentration and the number of islands.
+     *
+     * @return a new ImageKernel
+     */
+    public static ImageKernel withDefaultFeatures() {
+        return new ImageKernel(new Leakage(), new Concentration(), new IslandCount());
+    }
+
+    /**
+     * Get the kernel instance belonging to the current thread.
+     *
+     * @return the ImageKernel of this thread
+     */
+    public static ImageKernel get() {
+        return KERNELS.get();
+    }
+
+    /**
+     * Select the signal pixels in the given image. The selection is kept in this kernel until the
+     * next call to clean.
+     *
+     * @param image    the camera image in estimated number of photons.
+     * @param geometry the geometry of the camera which recorded the image
+     * @return the number of selected pixels
+     */
+    public int clean(double[] image, CameraGeometry geometry) {
+        prepareBuffers(image.length);
+        this.image = image;
+
+        Double[] levels = TailCut.levels;
+
+        int[] selected = this.selected;
+        int[] stamps = this.stamps;
+        int stamp = this.stamp;
+
+        //add the pixels over the first threshold
+        int n = selectAbove(image, levels[0], selected, stamps, stamp);
+
+        // dilate the shower. Only pixels selected before this level started are dilated.
+        int[][] neighbours = geometry.neighbours;
+        for (int l = 1; l < levels.length; l++) {
+            double threshold = levels[l];
+            int end = n;
+            for (int i = 0; i < end; i++) {
+                for (int neighbour : neighbours[selected[i]]) {
+                    if (stamps[neighbour] != stamp && image[neighbour] > threshold) {
+                        selected[n++] = neighbour;
+                        stamps[neighbour] = stamp;
+                    }
+                }
+            }
+        }
+
+        numberOfSelectedPixels = n;
+        return n;
+    }
+
+    /**
+     * Scan the whole image for pixels above the threshold. This is the only loop which touches
+     * every pixel of the camera so it is kept as a plain counted loop over the flat image array.
+     * Only few pixels pass the first threshold in a typical image, so the branch is predicted
+     * well. A branchless variant which always writes the pixel id was slower on the sample images.
+     *
+     * @return the number of selected pixels
+     */
+    private static int selectAbove(double[] image, double threshold, int[] selected, int[] stamps, int stamp) {
+        int n = 0;
+        for (int pixelId = 0; pixelId < image.length; pixelId++) {
+            if (image[pixelId] > threshold) {
+                selected[n++] = pixelId;
+                stamps[pixelId] = stamp;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Clean the image and calculate the Hillas parameters of the selected pixels.
+     *
+     * @param eventId     the unique event id the image belongs to
+     * @param telescopeId the id of the telescope which recorded the image
+     * @param image       the camera image in estimated number of photons.
+     * @return the Moments of the cleaned image
+     */
+    public Moments parametrize(long eventId, int telescopeId, double[] image) {
+        CameraGeometry geometry = MAPPING.cameraFromId(telescopeId);
+        clean(image, geometry);
+
+        hillas.reset();
+        if (accumulators.length == 0) {
+            hillas.addFromImage(selected, numberOfSelectedPixels, image, geometry.pixelXPositions, geometry.pixelYPositions);
+            return hillas.toMoments(eventId, telescopeId);
+        }
+
+        for (FeatureAccumulator accumulator : accumulators) {
+            accumulator.reset(geometry);
+        }
+
+        double[] x = geometry.pixelXPositions;
+        double[] y = geometry.pixelYPositions;
+        for (int i = 0; i < numberOfSelectedPixels; i++) {
+            int pixelId = selected[i];
+            double weight = image[pixelId];
+            hillas.add(weight, x[pixelId], y[pixelId]);
+            for (FeatureAccumulator accumulator : accumulators) {
+                accumulator.add(pixelId, weight);
+            }
+        }
+
+        Moments moments = hillas.toMoments(eventId, telescopeId);
+
+        double[] features = new double[featureNames.length];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i].finish(moments, features, offsets[i]);
+        }
+        return new ExtendedMoments(moments, featureNames, features);
+    }
+
+    /**
+     * Clean the image and append the Hillas parameters of the selected pixels as a new row to the
+     * current event of the batch. Additional features are not calculated on this path since the
+     * batch only holds the columns of {@link Moments}.
+     *
+     * @param eventId     the unique event id the image belongs to
+     * @param telescopeId the id of the telescope which recorded the image
+     * @param image       the camera image in estimated number of photons.
+     * @param batch       the batch to append to
+     * @return the index of the new row in the batch
+     */
+    public int parametrize(long eventId, int telescopeId, double[] image, MomentsBatch batch) {
+        CameraGeometry geometry = MAPPING.cameraFromId(telescopeId);
+        clean(image, geometry);
+
+        hillas.reset();
+        hillas.addFromImage(selected, numberOfSelectedPixels, image, geometry.pixelXPositions, geometry.pixelYPositions);
+        return hillas.appendTo(batch, eventId, telescopeId);
+    }
+
+    /**
+     * The names of the additional features calculated by this kernel.
+     *
+     * @return the feature names, in the order of {@link ExtendedMoments#features}
+     */
+    public String[] getFeatureNames() {
+        return featureNames;
+    }
+
+    /**
+     * Build a ShowerImage from the pixels selected by the last call to clean.
+     *
+     * @param eventId     the unique event id the image belongs to
+     * @param telescopeId the id of the telescope which recorded the image
+     * @return a new ShowerImage holding the selected pixels
+     */
+    public ShowerImage toShowerImage(long eventId, int telescopeId) {
+        ShowerImage showerImage = new ShowerImage(telescopeId, eventId);
+        for (int i = 0; i < numberOfSelectedPixels; i++) {
+            int pixelId = selected[i];
+            showerImage.addPixel(pixelId, image[pixelId]);
+        }
+        return showerImage;
+    }
+
+    /**
+     * The ids of the pixels selected by the last call to clean. Only the first
+     * {@link ImageKernel#getNumberOfSelectedPixels()} entries are valid.
+     *
+     * @return the scratch array holding the selected pixel ids
+     */
+    public int[] getSelectedPixels() {
+        return selected;
+    }
+
+    public int getNumberOfSelectedPixels() {
+        return numberOfSelectedPixels;
+    }
+
+    private void prepareBuffers(int numberOfPixel) {
+        if (stamps.length < numberOfPixel) {
+            stamps = new int[numberOfPixel];
+            selected = new int[numberOfPixel];
+            stamp = 0;
+        }
+
+        stamp++;
+        if (stamp == 0) {
+            //the stamp overflowed. start over with a clean array
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package reconstruction;
+
+import hexmap.TelescopeArray;
+import hexmap.TelescopeDefinition;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Collects the telescopes of one array event as they arrive and keeps only what is needed to
+ * reconstruct it. Each image is folded into a few sums right away:
+ *
+ * the 3x3 matrix of the least squares direction estimate (see
+ * {@link DirectionReconstruction.Method#LEAST_SQUARES}), the 2x2 normal equations of the core
+ * position fit, the sums for the height of the shower maximum and the sum of the predictions of
+ * all telescopes.
+ *
+ * Apart from the ids of the telescopes the state has the same size no matter how many telescopes
+ * triggered, two accumulators are merged by adding up their sums. The ids are kept to compute
+ * the impact distance of each telescope once the shower axis is known.
+ * The pairwise direction estimate cannot be accumulated like this since it needs every pair of
+ * planes.
+ */
+public final class ReconstructionAccumulator implements Serializable {
+
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    private final double altitude;
+    private final double azimuth;
+
+    private long eventID = -1;
+    private int numberOfTelescopes = 0;
+
+    // the ids of the first numberOfTelescopes telescopes in the order they were added
+    private int[] telescopeIds = new int[4];
+
+    // the matrix M = sum(w_i * n_i n_i^T) for the direction
+    private double mxx, mxy, mxz, myy, myz, mzz;
+
+    // the normal equations A^T A x = A^T d for the core position
+    private double aa, ab, bb, ad, bd;
+
+    // Q = sum(w_i * P_i) and r = sum(w_i * P_i p_i) for the shower maximum
+    private double qxx, qxy, qxz, qyy, qyz, qzz;
+    private double rx, ry, rz;
+
+    private double predictionSum = 0;
+
+    /**
+     * @param altitude the pointing altitude of the telescopes in radians
+     * @param azimuth the pointing azimuth of the telescopes in radians
+     */
+    public ReconstructionAccumulator(double altitude, double azimuth) {
+        this.altitude = altitude;
+        this.azimuth = azimuth;
+    }
+
+    /**
+     * Add the image of a single telescope.
+     *
+     * @param m the moments of the image
+     * @param prediction the prediction of the classifier for this image
+     * @return this accumulator
+     */
+    public ReconstructionAccumulator add(Moments m, double prediction) {
+        if (numberOfTelescopes == 0) {
+            eventID = m.eventID;
+        } else if (eventID != m.eventID) {
+            throw new IllegalArgumentException("Cannot add moments of event " + m.eventID + " to event " + eventID);
+        }
+
+        if (numberOfTelescopes == telescopeIds.length) {
+            telescopeIds = Arrays.copyOf(telescopeIds, 2 * numberOfTelescopes);
+        }
+        telescopeIds[numberOfTelescopes++] = m.telescopeID;
+        predictionSum += prediction;
+
+        double w = m.size * (m.length / m.width);
+
+        double[] geometry = DirectionReconstruction.planeGeometry(altitude, azimuth, m.telescopeID,
+                m.meanX, m.meanY, m.length, m.delta);
+        double x, y, z;
+        if (Double.isNaN(w)) {
+            x = y = z = Double.NaN;
+        } else {
+            x = geometry[0];
+            y = geometry[1];
+            z = geometry[2];
+        }
+
+        mxx += w * x * x;
+        mxy += w * x * y;
+        mxz += w * x * z;
+        myy += w * y * y;
+        myz += w * y * z;
+        mzz += w * z * z;
+
+        TelescopeDefinition tel = MAPPING.telescopeFromId(m.telescopeID);
+        double a = x * w;
+        double b = y * w;
+        double d = a * tel.telescopePositionX + b * tel.telescopePositionY;
+        aa += a * a;
+        ab += a * b;
+        bb += b * b;
+        ad += a * d;
+        bd += b * d;
+
+        double dx = geometry[3], dy = geometry[4], dz = geometry[5];
+        double px = tel.telescopePositionX, py = tel.telescopePositionY, pz = tel.telescopePositionZ;
+        qxx += m.size * (1 - dx * dx);
+        qxy -= m.size * dx * dy;
+        qxz -= m.size * dx * dz;
+        qyy += m.size * (1 - dy * dy);
+        qyz -= m.size * dy * dz;
+        qzz += m.size * (1 - dz * dz);
+        double dp = dx * px + dy * py + dz * pz;
+        rx += m.size * (px - dx * dp);
+        ry += m.size * (py - dy * dp);
+        rz += m.size * (pz - dz * dp);
+
+        return this;
+    }
+
+    /**
+     * Add the sums of another accumulator of the same event to this one.
+     *
+     * @param other the accumulator to add
+     * @return this accumulator
+     */
+    public ReconstructionAccumulator merge(ReconstructionAccumulator other) {
+        if (other.numberOfTelescopes == 0) {
+            return this;
+        }
+        if (numberOfTelescopes > 0 && eventID != other.eventID) {
+            throw new IllegalArgumentException("Cannot merge event " + other.eventID + " into event " + eventID);
+        }
+        if (altitude != other.altitude || azimuth != other.azimuth) {
+            throw new IllegalArgumentException("Cannot merge accumulators with different pointings.");
+        }
+
+        eventID = other.eventID;
+        int n = numberOfTelescopes + other.numberOfTelescopes;
+        if (n > telescopeIds.length) {
+            telescopeIds = Arrays.copyOf(telescopeIds, n);
+        }
+        System.arraycopy(other.telescopeIds, 0, telescopeIds, numberOfTelescopes, other.numberOfTelescopes);
+        numberOfTelescopes = n;
+        predictionSum += other.predictionSum;
+
+        mxx += other.mxx;
+        mxy += other.mxy;
+        mxz += other.mxz;
+        myy += other.myy;
+        myz += other.myz;
+        mzz += other.mzz;
+
+        aa += other.aa;
+        ab += other.ab;
+        bb += other.bb;
+        ad += other.ad;
+        bd += other.bd;
+
+        qxx += other.qxx;
+        qxy += other.qxy;
+        qxz += other.qxz;
+        qyy += other.qyy;
+        qyz += other.qyz;
+        qzz += other.qzz;
+        rx += other.rx;
+        ry += other.ry;
+        rz += other.rz;
+
+        return this;
+    }
+
+    /**
+     * @return the number of telescopes added so far
+     */
+    public int numberOfTelescopes() {
+        return numberOfTelescopes;
+    }
+
+    /**
+     * @return the mean prediction of all telescopes or 0 if none were added
+     */
+    public double averagePrediction() {
+        return numberOfTelescopes > 0 ? predictionSum / numberOfTelescopes : 0;
+    }
+
+    /**
+     * Reconstruct the event from the telescopes added so far.
+     * The result is the same as calling
+     * {@link DirectionReconstruction#fromMoments(Iterable, double, double, DirectionReconstruction.Method)}
+     * with the least squares method, up to rounding. The telescopes are listed in the order they
+     * were added.
+     *
+     * @return the reconstructed event
+     */
+    public ReconstrucedEvent reconstruct() {
+        if (numberOfTelescopes == 0) {
+            throw new IllegalStateException("Cannot reconstruct an event without any moments.");
+        }
+        double[] direction = new double[3];
+        double[] corePosition = new double[2];
+        DirectionReconstruction.leastSquaresDirection(numberOfTelescopes, mxx, mxy, mxz, myy, myz, mzz, direction);
+        DirectionReconstruction.solveCorePosition(aa, ab, bb, ad, bd, corePosition);
+        double hMax = DirectionReconstruction.showerMaximum(qxx, qxy, qxz, qyy, qyz, qzz, rx, ry, rz);
+
+        double[] impactDistances = new double[numberOfTelescopes];
+        for (int i = 0; i < numberOfTelescopes; i++) {
+            TelescopeDefinition tel = MAPPING.telescopeFromId(telescopeIds[i]);
+            impactDistances[i] = DirectionReconstruction.impactDistance(direction, corePosition,
+                    tel.telescopePositionX, tel.telescopePositionY, tel.telescopePositionZ);
+        }
+        return new ReconstrucedEvent(eventID, direction, corePosition, hMax,
+                Arrays.copyOf(telescopeIds, numberOfTelescopes), impactDistances);
+    }
+}
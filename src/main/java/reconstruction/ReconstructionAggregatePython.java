@@ -69,10 +69,14 @@ public class ReconstructionAggregatePython implements AggregateFunction
 
     @Override
     public ArrayList<Tuple2<Moments, Double>> merge(ArrayList<Tuple2<Moments, Double>> a, ArrayList<Tuple2<Moments, Double>> b) {
-        ArrayList<Tuple2<Moments, Double>> c = new ArrayList<>();
-        c.addAll(a);
-        c.addAll(b);
-        return c;
+        // the python method needs every image, so the lists cannot be folded into fixed size
+        // state like in ReconstructionAccumulator. At least avoid copying both of them.
+        if (a.size() < b.size()) {
+            b.addAll(a);
+            return b;
+        }
+        a.addAll(b);
+        return a;
     }
 
 }
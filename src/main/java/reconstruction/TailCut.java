@@ -1,5 +1,6 @@
 package reconstruction;
 
+import hexmap.TelescopeArray;
 import io.ImageReader;
 import reconstruction.containers.ShowerImage;
 
@@ -16,6 +17,8 @@ import java.util.stream.Stream;
  */
 public class TailCut{
 
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
     /**
      * Levels to use for image cleaning.
      */
@@ -37,22 +40,8 @@ public class TailCut{
     }
 
     public static ShowerImage selectShowerFromImage(long eventId, int cameraId, double[] image) {
-
-        ShowerImage showerImage = new ShowerImage(cameraId, eventId);
-
-        //add the pixels over the first threshold
-        for (int pixelId = 0; pixelId < image.length; pixelId++) {
-            double weight = image[pixelId];
-            if (weight > levels[0]) {
-                showerImage.addPixel(pixelId, weight);
-            }
-        }
-
-        // dilate the shower
-        for (int l = 1; l < levels.length; l++) {
-            showerImage.dilate(image, levels[l]);
-        }
-
-        return showerImage;
+        ImageKernel kernel = ImageKernel.get();
+        kernel.clean(image, MAPPING.cameraFromId(cameraId));
+        return kernel.toShowerImage(eventId, cameraId);
     }
 }
@@ -0,0 +1,65 @@
+package reconstruction.containers;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Moments together with additional image features calculated by
+ * {@link reconstruction.features.FeatureAccumulator}s in the same pass over the image.
+ */
+public class ExtendedMoments extends Moments {
+
+    /**
+     * The names of the additional features. Shared between all images of one kernel.
+     */
+    public final String[] featureNames;
+
+    /**
+     * The values of the additional features, aligned with featureNames.
+     */
+    public final double[] features;
+
+    public ExtendedMoments(Moments m, String[] featureNames, double[] features) {
+        super(m.eventID, m.telescopeID, m.cameraID, m.numberOfPixel, m.width, m.length, m.delta,
+                m.skewness, m.kurtosis, m.phi, m.miss, m.r, m.meanX, m.meanY, m.size);
+        this.featureNames = featureNames;
+        this.features = features;
+    }
+
+    /**
+     * Get the value of an additional feature by name.
+     *
+     * @param name the name of the feature
+     * @return the value of the feature
+     * @throws IllegalArgumentException in case no feature with that name exists
+     */
+    public double feature(String name) {
+        for (int i = 0; i < featureNames.length; i++) {
+            if (featureNames[i].equals(name)) {
+                return features[i];
+            }
+        }
+        throw new IllegalArgumentException("No feature named " + name + " in " + Arrays.toString(featureNames));
+    }
+
+    @Override
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> map = super.toMap();
+        for (int i = 0; i < featureNames.length; i++) {
+            map.put(featureNames[i], features[i]);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this)
+                .add("moments", super.toString());
+        for (int i = 0; i < featureNames.length; i++) {
+            helper.add(featureNames[i], features[i]);
+        }
+        return helper.toString();
+    }
+}
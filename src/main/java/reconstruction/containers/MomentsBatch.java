@@ -0,0 +1,356 @@
+package reconstruction.containers;
+
+import java.util.Arrays;
+
+/**
+ * Stores the Moments of many telescope images column wise in primitive arrays. Each row holds
+ * the parametrization of one image. The rows of one array event are stored next to each other
+ * and the event offsets give the first row of each event. The rows of event e are
+ * eventStart(e) until (exclusive) eventEnd(e).
+ *
+ * The pointing of the array is stored once per event since the direction reconstruction needs it.
+ * So is the number of telescopes in the event, which stays the same when rows are removed by
+ * {@link MomentsBatch#keepBestTelescopes(int)}.
+ *
+ * A batch is meant to be reused. Call {@link MomentsBatch#clear()} to start over without
+ * releasing the arrays. The arrays grow as needed.
+ *
+ * <pre>
+ *     MomentsBatch batch = new MomentsBatch();
+ *     for (ImageReader.Event event : events) {
+ *         HillasParametrization.fromImagesInEvent(event, kernel, batch);
+ *     }
+ *     for (int e = 0; e < batch.numberOfEvents(); e++) {
+ *         ReconstrucedEvent r = DirectionReconstruction.fromBatch(batch, e);
+ *     }
+ * </pre>
+ */
+public final class MomentsBatch {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private int numberOfRows = 0;
+    private int numberOfEvents = 0;
+
+    // per event columns. eventOffsets has one more entry than there are events.
+    private int[] eventOffsets;
+    private long[] eventIds;
+    private double[] altitudes;
+    private double[] azimuths;
+    private int[] numberOfTelescopes;
+
+    // scratch space for the ranking of telescopes
+    private double[] weights = new double[0];
+    private double[] sortedWeights = new double[0];
+
+    // per image columns. The arrays are replaced when the batch grows, so do not hold on to them
+    // while rows are being added.
+    public long[] eventID;
+    public int[] telescopeID;
+    public int[] numberOfPixel;
+    public double[] width;
+    public double[] length;
+    public double[] delta;
+    public double[] skewness;
+    public double[] kurtosis;
+    public double[] phi;
+    public double[] miss;
+    public double[] r;
+    public double[] meanX;
+    public double[] meanY;
+    public double[] size;
+
+    public MomentsBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a batch which can hold the given number of images before growing.
+     *
+     * @param capacity the initial number of rows
+     */
+    public MomentsBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+
+        eventOffsets = new int[capacity + 1];
+        eventIds = new long[capacity];
+        altitudes = new double[capacity];
+        azimuths = new double[capacity];
+        numberOfTelescopes = new int[capacity];
+
+        eventID = new long[capacity];
+        telescopeID = new int[capacity];
+        numberOfPixel = new int[capacity];
+        width = new double[capacity];
+        length = new double[capacity];
+        delta = new double[capacity];
+        skewness = new double[capacity];
+        kurtosis = new double[capacity];
+        phi = new double[capacity];
+        miss = new double[capacity];
+        r = new double[capacity];
+        meanX = new double[capacity];
+        meanY = new double[capacity];
+        size = new double[capacity];
+    }
+
+    /**
+     * Remove all rows and events. The arrays are kept.
+     */
+    public void clear() {
+        numberOfRows = 0;
+        numberOfEvents = 0;
+        eventOffsets[0] = 0;
+    }
+
+    /**
+     * Start a new array event. All rows added until the next call to startEvent belong to it.
+     *
+     * @param eventId  the unique id of the event
+     * @param altitude the pointing altitude of the array in radians
+     * @param azimuth  the pointing azimuth of the array in radians
+     */
+    public void startEvent(long eventId, double altitude, double azimuth) {
+        if (numberOfEvents == eventIds.length) {
+            int capacity = 2 * eventIds.length;
+            eventOffsets = Arrays.copyOf(eventOffsets, capacity + 1);
+            eventIds = Arrays.copyOf(eventIds, capacity);
+            altitudes = Arrays.copyOf(altitudes, capacity);
+            azimuths = Arrays.copyOf(azimuths, capacity);
+            numberOfTelescopes = Arrays.copyOf(numberOfTelescopes, capacity);
+        }
+        eventIds[numberOfEvents] = eventId;
+        altitudes[numberOfEvents] = altitude;
+        azimuths[numberOfEvents] = azimuth;
+        numberOfTelescopes[numberOfEvents] = 0;
+        eventOffsets[numberOfEvents] = numberOfRows;
+        numberOfEvents++;
+        eventOffsets[numberOfEvents] = numberOfRows;
+    }
+
+    /**
+     * Append the parametrization of one image to the current event. The arguments are the same
+     * as for the constructor of {@link Moments}.
+     *
+     * @return the index of the new row
+     */
+    public int add(long eventID, int telescopeID, int numberOfPixel, double width,
+                   double length, double delta, double skewness, double kurtosis, double phi,
+                   double miss, double r, double meanX, double meanY, double size) {
+        if (numberOfEvents == 0) {
+            throw new IllegalStateException("startEvent has to be called before adding rows.");
+        }
+        if (numberOfRows == this.eventID.length) {
+            grow(2 * numberOfRows);
+        }
+
+        int row = numberOfRows;
+        this.eventID[row] = eventID;
+        this.telescopeID[row] = telescopeID;
+        this.numberOfPixel[row] = numberOfPixel;
+        this.width[row] = width;
+        this.length[row] = length;
+        this.delta[row] = delta;
+        this.skewness[row] = skewness;
+        this.kurtosis[row] = kurtosis;
+        this.phi[row] = phi;
+        this.miss[row] = miss;
+        this.r[row] = r;
+        this.meanX[row] = meanX;
+        this.meanY[row] = meanY;
+        this.size[row] = size;
+
+        numberOfRows++;
+        eventOffsets[numberOfEvents] = numberOfRows;
+        numberOfTelescopes[numberOfEvents - 1]++;
+        return row;
+    }
+
+    /**
+     * Append the given Moments to the current event.
+     *
+     * @param m the moments to copy into the batch
+     * @return the index of the new row
+     */
+    public int add(Moments m) {
+        return add(m.eventID, m.telescopeID, m.numberOfPixel, m.width, m.length, m.delta,
+                m.skewness, m.kurtosis, m.phi, m.miss, m.r, m.meanX, m.meanY, m.size);
+    }
+
+    /**
+     * Append a row of another batch to the current event.
+     *
+     * @param source the batch to copy from
+     * @param row    the index of the row in the source batch
+     * @return the index of the new row
+     */
+    public int add(MomentsBatch source, int row) {
+        return add(source.eventID[row], source.telescopeID[row], source.numberOfPixel[row],
+                source.width[row], source.length[row], source.delta[row], source.skewness[row],
+                source.kurtosis[row], source.phi[row], source.miss[row], source.r[row],
+                source.meanX[row], source.meanY[row], source.size[row]);
+    }
+
+    /**
+     * Create a Moments object from a single row. This allocates, use the columns directly where
+     * possible.
+     *
+     * @param row the index of the row
+     * @return a new Moments object holding the values of that row
+     */
+    public Moments get(int row) {
+        if (row < 0 || row >= numberOfRows) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + numberOfRows);
+        }
+        return new Moments(eventID[row], telescopeID[row], telescopeID[row], numberOfPixel[row],
+                width[row], length[row], delta[row], skewness[row], kurtosis[row], phi[row],
+                miss[row], r[row], meanX[row], meanY[row], size[row]);
+    }
+
+    public int numberOfRows() {
+        return numberOfRows;
+    }
+
+    public int numberOfEvents() {
+        return numberOfEvents;
+    }
+
+    /**
+     * @param event the index of the event within this batch
+     * @return the first row belonging to the event
+     */
+    public int eventStart(int event) {
+        return eventOffsets[event];
+    }
+
+    /**
+     * @param event the index of the event within this batch
+     * @return the row after the last row belonging to the event
+     */
+    public int eventEnd(int event) {
+        return eventOffsets[event + 1];
+    }
+
+    /**
+     * @param event the index of the event within this batch
+     * @return the number of images in the event
+     */
+    public int eventMultiplicity(int event) {
+        return eventOffsets[event + 1] - eventOffsets[event];
+    }
+
+    /**
+     * @param event the index of the event within this batch
+     * @return the number of images added to the event, including those removed by
+     * {@link #keepBestTelescopes(int)}
+     */
+    public int numberOfTelescopes(int event) {
+        return numberOfTelescopes[event];
+    }
+
+    public long eventId(int event) {
+        return eventIds[event];
+    }
+
+    public double altitude(int event) {
+        return altitudes[event];
+    }
+
+    public double azimuth(int event) {
+        return azimuths[event];
+    }
+
+    /**
+     * Remove all but the k best images of each event. The images are ranked by the weight their
+     * plane gets in the direction reconstruction, size * length / width. Images with an undefined
+     * weight are ranked last. The remaining rows keep their order.
+     *
+     * This bounds the time spent on each event for the price of some accuracy. The cost of the
+     * pairwise direction estimate grows quadratically with the number of images.
+     *
+     * @param k the maximum number of images to keep per event
+     */
+    public void keepBestTelescopes(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("At least one telescope has to be kept, got " + k);
+        }
+        if (weights.length < numberOfRows) {
+            weights = new double[numberOfRows];
+            sortedWeights = new double[numberOfRows];
+        }
+        for (int row = 0; row < numberOfRows; row++) {
+            double w = size[row] * (length[row] / width[row]);
+            weights[row] = Double.isNaN(w) ? Double.NEGATIVE_INFINITY : w;
+        }
+
+        int target = 0;
+        for (int event = 0; event < numberOfEvents; event++) {
+            int start = eventOffsets[event];
+            int end = eventOffsets[event + 1];
+            eventOffsets[event] = target;
+
+            if (end - start <= k) {
+                for (int row = start; row < end; row++) {
+                    copyRow(row, target++);
+                }
+                continue;
+            }
+
+            // the k-th largest weight. Rows above it are kept, rows equal to it until k are reached.
+            System.arraycopy(weights, start, sortedWeights, 0, end - start);
+            Arrays.sort(sortedWeights, 0, end - start);
+            double threshold = sortedWeights[end - start - k];
+
+            int ties = k;
+            for (int row = start; row < end; row++) {
+                if (weights[row] > threshold) {
+                    ties--;
+                }
+            }
+            for (int row = start; row < end; row++) {
+                if (weights[row] > threshold || (weights[row] == threshold && ties-- > 0)) {
+                    copyRow(row, target++);
+                }
+            }
+        }
+        eventOffsets[numberOfEvents] = target;
+        numberOfRows = target;
+    }
+
+    private void copyRow(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        eventID[to] = eventID[from];
+        telescopeID[to] = telescopeID[from];
+        numberOfPixel[to] = numberOfPixel[from];
+        width[to] = width[from];
+        length[to] = length[from];
+        delta[to] = delta[from];
+        skewness[to] = skewness[from];
+        kurtosis[to] = kurtosis[from];
+        phi[to] = phi[from];
+        miss[to] = miss[from];
+        r[to] = r[from];
+        meanX[to] = meanX[from];
+        meanY[to] = meanY[from];
+        size[to] = size[from];
+    }
+
+    private void grow(int capacity) {
+        eventID = Arrays.copyOf(eventID, capacity);
+        telescopeID = Arrays.copyOf(telescopeID, capacity);
+        numberOfPixel = Arrays.copyOf(numberOfPixel, capacity);
+        width = Arrays.copyOf(width, capacity);
+        length = Arrays.copyOf(length, capacity);
+        delta = Arrays.copyOf(delta, capacity);
+        skewness = Arrays.copyOf(skewness, capacity);
+        kurtosis = Arrays.copyOf(kurtosis, capacity);
+        phi = Arrays.copyOf(phi, capacity);
+        miss = Arrays.copyOf(miss, capacity);
+        r = Arrays.copyOf(r, capacity);
+        meanX = Arrays.copyOf(meanX, capacity);
+        meanY = Arrays.copyOf(meanY, capacity);
+        size = Arrays.copyOf(size, capacity);
+    }
+}
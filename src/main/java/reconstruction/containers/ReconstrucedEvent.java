@@ -12,13 +12,58 @@ import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 public final class ReconstrucedEvent {
 
     public final long eventID;
+
+    /**
+     * The unit vector pointing to the origin of the shower in the horizontal frame, with x and y
+     * on the ground like the telescope positions and z pointing up.
+     */
     public final Vector3D direction;
     public final Vector2D impactPosition;
 
+    /**
+     * Height of the shower maximum above the ground in meter. NaN if not estimated.
+     */
+    public final double hMax;
+
+    /**
+     * The ids of the telescopes used for the reconstruction.
+     */
+    public final int[] telescopeIds;
+
+    /**
+     * The distance of each telescope in {@link #telescopeIds} to the shower axis through
+     * {@link #impactPosition} along {@link #direction} in meter.
+     */
+    public final double[] impactDistances;
+
     public ReconstrucedEvent(long eventID, double[] direction, double[] corePosition) {
+        this(eventID, direction, corePosition, Double.NaN, new int[0], new double[0]);
+    }
+
+    public ReconstrucedEvent(long eventID, double[] direction, double[] corePosition, double hMax,
+                             int[] telescopeIds, double[] impactDistances) {
+        if (telescopeIds.length != impactDistances.length) {
+            throw new IllegalArgumentException("Need one impact distance per telescope.");
+        }
         this.eventID = eventID;
         this.direction = new Vector3D(direction);
         this.impactPosition = new Vector2D(corePosition);
+        this.hMax = hMax;
+        this.telescopeIds = telescopeIds;
+        this.impactDistances = impactDistances;
+    }
+
+    /**
+     * @param telescopeId the id of a telescope
+     * @return the distance of that telescope to the shower axis or NaN if it was not used
+     */
+    public double impactDistance(int telescopeId) {
+        for (int i = 0; i < telescopeIds.length; i++) {
+            if (telescopeIds[i] == telescopeId) {
+                return impactDistances[i];
+            }
+        }
+        return Double.NaN;
     }
 
     @Override
@@ -27,6 +72,7 @@ public final class ReconstrucedEvent {
                 .add("eventID", eventID)
                 .add("direction", direction)
                 .add("impactPosition", impactPosition)
+                .add("hMax", hMax)
                 .toString();
     }
 }
@@ -0,0 +1,40 @@
+package reconstruction.features;
+
+import hexmap.CameraGeometry;
+import reconstruction.containers.Moments;
+
+/**
+ * Fraction of the total image size contained in the brightest pixel ("maxPixelFraction") and in
+ * the two brightest pixels ("concentration").
+ */
+public class Concentration implements FeatureAccumulator {
+
+    private double first, second;
+
+    @Override
+    public String[] names() {
+        return new String[]{"maxPixelFraction", "concentration"};
+    }
+
+    @Override
+    public void reset(CameraGeometry geometry) {
+        first = 0;
+        second = 0;
+    }
+
+    @Override
+    public void add(int pixelId, double weight) {
+        if (weight > first) {
+            second = first;
+            first = weight;
+        } else if (weight > second) {
+            second = weight;
+        }
+    }
+
+    @Override
+    public void finish(Moments moments, double[] features, int offset) {
+        features[offset] = first / moments.size;
+        features[offset + 1] = (first + second) / moments.size;
+    }
+}
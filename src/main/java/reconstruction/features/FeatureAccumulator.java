@@ -0,0 +1,48 @@
+package reconstruction.features;
+
+import hexmap.CameraGeometry;
+import reconstruction.containers.Moments;
+
+/**
+ * Calculates additional image features while the {@link reconstruction.ImageKernel} walks over
+ * the signal pixels of a cleaned image. That way new features do not require another pass over
+ * the image.
+ *
+ * For each image the kernel calls {@link #reset(CameraGeometry)} once, then
+ * {@link #add(int, double)} for every signal pixel and finally {@link #finish(Moments, double[], int)}.
+ * Implementations keep state between these calls and are therefore not thread safe.
+ */
+public interface FeatureAccumulator {
+
+    /**
+     * The names of the features this accumulator calculates, in the order they are written by
+     * {@link #finish(Moments, double[], int)}.
+     *
+     * @return the feature names
+     */
+    String[] names();
+
+    /**
+     * Prepare for a new image.
+     *
+     * @param geometry the geometry of the camera which recorded the image
+     */
+    void reset(CameraGeometry geometry);
+
+    /**
+     * Add a signal pixel.
+     *
+     * @param pixelId the id of the pixel
+     * @param weight  the weight of the pixel. (like estimated number of photons or similar)
+     */
+    void add(int pixelId, double weight);
+
+    /**
+     * Write the features of the current image into the given array.
+     *
+     * @param moments  the Hillas parameters of the image calculated in the same pass
+     * @param features the array to write into
+     * @param offset   the position in the array of the first feature of this accumulator
+     */
+    void finish(Moments moments, double[] features, int offset);
+}
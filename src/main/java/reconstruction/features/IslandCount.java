@@ -0,0 +1,79 @@
+package reconstruction.features;
+
+import hexmap.CameraGeometry;
+import reconstruction.containers.Moments;
+
+import java.util.Arrays;
+
+/**
+ * The number of separate groups of connected signal pixels ("numberOfIslands"). Hadronic
+ * showers tend to produce more islands than gamma showers.
+ *
+ * The islands are tracked with a union-find structure while the pixels are added. A pixel is
+ * joined with all of its neighbours which have been added before.
+ */
+public class IslandCount implements FeatureAccumulator {
+
+    private int[][] neighbours;
+
+    //parent of each pixel in the union-find forest. only valid for pixels with the current stamp
+    private int[] parents = new int[0];
+    private int[] stamps = new int[0];
+    private int stamp = 0;
+
+    private int numberOfIslands;
+
+    @Override
+    public String[] names() {
+        return new String[]{"numberOfIslands"};
+    }
+
+    @Override
+    public void reset(CameraGeometry geometry) {
+        neighbours = geometry.neighbours;
+        if (stamps.length < geometry.numberOfPixel) {
+            stamps = new int[geometry.numberOfPixel];
+            parents = new int[geometry.numberOfPixel];
+            stamp = 0;
+        }
+        stamp++;
+        if (stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        numberOfIslands = 0;
+    }
+
+    @Override
+    public void add(int pixelId, double weight) {
+        stamps[pixelId] = stamp;
+        parents[pixelId] = pixelId;
+        numberOfIslands++;
+
+        for (int n : neighbours[pixelId]) {
+            if (stamps[n] != stamp) {
+                continue;
+            }
+            int a = root(pixelId);
+            int b = root(n);
+            if (a != b) {
+                parents[b] = a;
+                numberOfIslands--;
+            }
+        }
+    }
+
+    @Override
+    public void finish(Moments moments, double[] features, int offset) {
+        features[offset] = numberOfIslands;
+    }
+
+    private int root(int pixelId) {
+        while (parents[pixelId] != pixelId) {
+            //path halving
+            parents[pixelId] = parents[parents[pixelId]];
+            pixelId = parents[pixelId];
+        }
+        return pixelId;
+    }
+}
@@ -0,0 +1,83 @@
+package reconstruction.features;
+
+import hexmap.CameraGeometry;
+import reconstruction.containers.Moments;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fraction of the image size contained in the outermost ring of pixels ("leakage1") and in the
+ * two outermost rings ("leakage2"). Images with a large leakage are truncated by the edge of
+ * the camera and their Hillas parameters are less reliable.
+ *
+ * The outermost ring consists of all pixels which have fewer than the maximum number of
+ * neighbours in the camera. The second ring adds the neighbours of those pixels. For cameras built from modules
+ * with gaps between them (like CHEC) this also includes the pixels next to the gaps.
+ */
+public class Leakage implements FeatureAccumulator {
+
+    /**
+     * The ring each pixel belongs to, per camera. 1 for the outermost ring, 2 for the second
+     * ring, 0 otherwise.
+     */
+    private static final Map<String, byte[]> RINGS = new ConcurrentHashMap<>();
+
+    private byte[] rings;
+    private double sumRing1, sumRing2;
+
+    @Override
+    public String[] names() {
+        return new String[]{"leakage1", "leakage2"};
+    }
+
+    @Override
+    public void reset(CameraGeometry geometry) {
+        rings = RINGS.computeIfAbsent(geometry.name, name -> borderRings(geometry));
+        sumRing1 = 0;
+        sumRing2 = 0;
+    }
+
+    @Override
+    public void add(int pixelId, double weight) {
+        byte ring = rings[pixelId];
+        if (ring == 1) {
+            sumRing1 += weight;
+        } else if (ring == 2) {
+            sumRing2 += weight;
+        }
+    }
+
+    @Override
+    public void finish(Moments moments, double[] features, int offset) {
+        features[offset] = sumRing1 / moments.size;
+        features[offset + 1] = (sumRing1 + sumRing2) / moments.size;
+    }
+
+    private static byte[] borderRings(CameraGeometry geometry) {
+        int[][] neighbours = geometry.neighbours;
+
+        int maxNeighbours = 0;
+        for (int[] n : neighbours) {
+            maxNeighbours = Math.max(maxNeighbours, n.length);
+        }
+
+        byte[] rings = new byte[geometry.numberOfPixel];
+        for (int pixelId = 0; pixelId < rings.length; pixelId++) {
+            if (neighbours[pixelId].length < maxNeighbours) {
+                rings[pixelId] = 1;
+            }
+        }
+        for (int pixelId = 0; pixelId < rings.length; pixelId++) {
+            if (rings[pixelId] != 1) {
+                continue;
+            }
+            for (int n : neighbours[pixelId]) {
+                if (rings[n] == 0) {
+                    rings[n] = 2;
+                }
+            }
+        }
+        return rings;
+    }
+}
@@ -79,6 +79,32 @@ class Reconstructor():
                 # 'h_max_prediction': reconstruction.h_max.si.value
                 }
 
+    def reconstruct_shower(self, input):
+        # Reconstruct the event including the height of the shower maximum. Unlike
+        # reconstruct_direction this takes the pointing from the input and keeps fit_h_max.
+        reco = HillasReconstructor()
+
+        params = {}
+        pointing_azimuth = {}
+        pointing_altitude = {}
+        for row in input["moments"]:
+            tel_id = row["telescopeID"]
+            params[tel_id] = SubMomentParameters(size=row["size"], cen_x=row["meanX"] * units.m,
+                                                 cen_y=row["meanY"] * units.m,
+                                                 length=row["length"] * units.m,
+                                                 width=row["width"] * units.m,
+                                                 psi=row["delta"] * units.rad)
+            pointing_azimuth[tel_id] = input["azimuth"] * units.rad
+            pointing_altitude[tel_id] = input["altitude"] * units.rad
+
+        reconstruction = reco.predict(params, self.instrument, pointing_azimuth, pointing_altitude)
+        return {'h_max': reconstruction.h_max.si.value,
+                'alt': reconstruction.alt.si.value,
+                'az': reconstruction.az.si.value,
+                'core_x': reconstruction.core_x.si.value,
+                'core_y': reconstruction.core_y.si.value,
+                }
+
     def ping(self, something):
         return something
 
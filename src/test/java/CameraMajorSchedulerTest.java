@@ -0,0 +1,70 @@
+import io.ImageReader;
+import org.junit.Test;
+import reconstruction.CameraMajorScheduler;
+import reconstruction.HillasParametrization;
+import reconstruction.ImageKernel;
+import reconstruction.containers.MomentsBatch;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Processing a block of events camera by camera has to give the same batch as processing the
+ * events one after the other.
+ */
+public class CameraMajorSchedulerTest {
+
+    @Test
+    public void testSameAsEventByEvent() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        List<ImageReader.Event> events = new ArrayList<>();
+        ImageReader.fromURL(url).forEach(events::add);
+
+        ImageKernel kernel = new ImageKernel();
+        MomentsBatch expected = new MomentsBatch();
+        for (ImageReader.Event event : events) {
+            HillasParametrization.fromImagesInEvent(event, kernel, expected);
+        }
+
+        // two blocks of different size, so the scratch space is reused
+        CameraMajorScheduler scheduler = new CameraMajorScheduler(new ImageKernel());
+        MomentsBatch actual = new MomentsBatch(2);
+        scheduler.parametrize(events.subList(0, events.size() / 3), actual);
+        scheduler.parametrize(events.subList(events.size() / 3, events.size()), actual);
+
+        assertEquals(expected.numberOfEvents(), actual.numberOfEvents());
+        assertEquals(expected.numberOfRows(), actual.numberOfRows());
+        for (int e = 0; e < expected.numberOfEvents(); e++) {
+            assertEquals(expected.eventId(e), actual.eventId(e));
+            assertEquals(expected.altitude(e), actual.altitude(e), 0);
+            assertEquals(expected.eventEnd(e), actual.eventEnd(e));
+            assertEquals(expected.numberOfTelescopes(e), actual.numberOfTelescopes(e));
+        }
+
+        int n = expected.numberOfRows();
+        assertArrayEquals(slice(expected.telescopeID, n), slice(actual.telescopeID, n));
+        assertArrayEquals(slice(expected.eventID, n), slice(actual.eventID, n));
+        for (int row = 0; row < n; row++) {
+            assertEquals(expected.numberOfPixel[row], actual.numberOfPixel[row]);
+            assertEquals(expected.size[row], actual.size[row], 0);
+            assertEquals(expected.width[row], actual.width[row], 0);
+            assertEquals(expected.length[row], actual.length[row], 0);
+            assertEquals(expected.delta[row], actual.delta[row], 0);
+            assertEquals(expected.meanX[row], actual.meanX[row], 0);
+        }
+    }
+
+    private static int[] slice(int[] column, int n) {
+        return Arrays.copyOf(column, n);
+    }
+
+    private static long[] slice(long[] column, int n) {
+        return Arrays.copyOf(column, n);
+    }
+}
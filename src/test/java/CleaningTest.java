@@ -1,12 +1,16 @@
 import io.ImageReader;
 import org.junit.Test;
+import reconstruction.HillasParametrization;
+import reconstruction.containers.Moments;
 import reconstruction.containers.ShowerImage;
 import reconstruction.TailCut;
 
 import java.io.IOException;
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -29,4 +33,50 @@ public class CleaningTest {
             assertTrue(s.signalPixels.size() >= 2);
         }
     }
+
+    @Test
+    public void testKernelSelectsSamePixelsAsDilation() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        for (ImageReader.Event e : events) {
+            for (Map.Entry<Integer, double[]> entry : e.images.entrySet()) {
+                double[] image = entry.getValue();
+
+                //the original cleaning operating on the HashSet of the ShowerImage
+                ShowerImage reference = new ShowerImage(entry.getKey(), e.eventId);
+                for (int pixelId = 0; pixelId < image.length; pixelId++) {
+                    if (image[pixelId] > TailCut.levels[0]) {
+                        reference.addPixel(pixelId, image[pixelId]);
+                    }
+                }
+                for (int l = 1; l < TailCut.levels.length; l++) {
+                    reference.dilate(image, TailCut.levels[l]);
+                }
+
+                ShowerImage showerImage = TailCut.selectShowerFromImage(e.eventId, entry.getKey(), image);
+                assertEquals(reference.signalPixels, showerImage.signalPixels);
+            }
+        }
+    }
+
+    @Test
+    public void testFusedParametrization() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        for (ImageReader.Event e : events) {
+            List<Moments> fused = HillasParametrization.fromImagesInEvent(e);
+            List<Moments> moments = HillasParametrization.fromShowerImages(TailCut.onImagesInEvent(e));
+
+            assertEquals(moments.size(), fused.size());
+            for (int i = 0; i < fused.size(); i++) {
+                assertEquals(moments.get(i).telescopeID, fused.get(i).telescopeID);
+                assertEquals(moments.get(i).numberOfPixel, fused.get(i).numberOfPixel);
+                assertEquals(moments.get(i).size, fused.get(i).size, 1e-9);
+                assertEquals(moments.get(i).length, fused.get(i).length, 1e-9);
+                assertEquals(moments.get(i).width, fused.get(i).width, 1e-9);
+            }
+        }
+    }
 }
@@ -0,0 +1,367 @@
+import hexmap.TelescopeArray;
+import hexmap.TelescopeDefinition;
+import io.ImageReader;
+import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
+import org.apache.commons.math3.geometry.euclidean.threed.RotationConvention;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.junit.Test;
+import reconstruction.CameraTransforms;
+import reconstruction.DirectionReconstruction;
+import reconstruction.HillasParametrization;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.Math.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compare the direction reconstruction to a straight forward implementation using commons-math
+ * objects.
+ */
+public class DirectionReconstructionTest {
+
+    private static final TelescopeArray MAPPING = TelescopeArray.cta();
+
+    private static void assertVectorsClose(double[] expected, double[] actual, double tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (Double.isNaN(expected[i])) {
+                assertTrue(Double.isNaN(actual[i]));
+            } else {
+                assertEquals(expected[i], actual[i], tolerance * max(1, abs(expected[i])));
+            }
+        }
+    }
+
+    @Test
+    public void testSampleEvents() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        for (ImageReader.Event event : events) {
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
+
+            ReconstrucedEvent r = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
+
+            assertVectorsClose(referenceDirection(moments, event.mc.alt, event.mc.az), r.direction.toArray(), 1e-9);
+            assertCoreClose(moments, event.mc.alt, event.mc.az, r.impactPosition.toArray());
+        }
+    }
+
+    @Test
+    public void testHighMultiplicity() {
+        Random random = new Random(0);
+        for (int multiplicity : new int[]{2, 3, 10, 50, 194}) {
+            List<Moments> moments = syntheticEvent(multiplicity, random);
+            double alt = 1.2;
+            double az = 0.1;
+
+            ReconstrucedEvent r = DirectionReconstruction.fromMoments(moments, alt, az);
+
+            assertVectorsClose(referenceDirection(moments, alt, az), r.direction.toArray(), 1e-9);
+            assertCoreClose(moments, alt, az, r.impactPosition.toArray());
+        }
+    }
+
+    @Test
+    public void testSingleTelescope() {
+        List<Moments> moments = syntheticEvent(1, new Random(1));
+        ReconstrucedEvent r = DirectionReconstruction.fromMoments(moments, 1.2, 0.1);
+        assertTrue(Double.isNaN(r.direction.getX()));
+    }
+
+    @Test
+    public void testCameraTransforms() {
+        CameraTransforms transforms = new CameraTransforms(2);
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            double alt = 1.5 * random.nextDouble();
+            double az = 6 * (random.nextDouble() - 0.5);
+            int telescopeId = 1 + random.nextInt(194);
+            double x = random.nextDouble() - 0.5;
+            double y = random.nextDouble() - 0.5;
+
+            double[] actual = new double[3];
+            transforms.forPointing(alt, az).forTelescope(telescopeId).toHorizontalDirection(x, y, actual);
+
+            double focalLength = MAPPING.telescopeFromId(telescopeId).opticalFocalLength;
+            assertVectorsClose(toDirection(x, y, alt, az, focalLength).toArray(), actual, 1e-12);
+        }
+
+        // the least recently used pointing is evicted
+        CameraTransforms.Pointing first = transforms.forPointing(1.2, 0.1);
+        transforms.forPointing(1.1, 0.1);
+        assertSame(first, transforms.forPointing(1.2, 0.1));
+        transforms.forPointing(1.0, 0.1);
+        assertEquals(2, transforms.size());
+        transforms.forPointing(1.1, 0.1);
+        assertNotSame(first, transforms.forPointing(1.2, 0.1));
+
+        double[] center = new double[3];
+        first.forTelescope(1).toHorizontalDirection(0, 0, center);
+        assertVectorsClose(horizontal(1.2, 0.1), center, 1e-15);
+    }
+
+    /**
+     * Showers with a known axis and maximum, coming from all sides of the pointing. The images
+     * are projected into the cameras here without {@link CameraTransforms}: the centroid lies
+     * at the angle between the pointing and the shower maximum seen from the telescope, in the
+     * direction of the maximum relative to the camera axes. The main axis of the image points to
+     * the projection of a lower point on the shower axis.
+     *
+     * The telescopes stand up to 16 meters above the ground, which shifts the reconstructed
+     * core and thus the impact distances by a few meters.
+     */
+    @Test
+    public void testShowerMaximum() {
+        double alt = 1.2;
+        double az = 0.1;
+        double[] core = {50, -30};
+        double hMax = 8000;
+
+        for (double angle = 0; angle < 2 * PI; angle += PI / 4) {
+            double[] axis = horizontal(alt + 0.03 * cos(angle), az + 0.03 * sin(angle) / cos(alt));
+
+            List<Moments> moments = new ArrayList<>();
+            for (int telescopeId = 1; telescopeId <= 30; telescopeId++) {
+                TelescopeDefinition tel = MAPPING.telescopeFromId(telescopeId);
+                double[] centroid = project(pointOnAxis(core, axis, hMax), tel, alt, az);
+                double[] lower = project(pointOnAxis(core, axis, hMax / 2), tel, alt, az);
+
+                double dx = lower[0] - centroid[0];
+                double dy = lower[1] - centroid[1];
+                double length = hypot(dx, dy);
+                moments.add(new Moments(1, telescopeId, telescopeId, 50, length / 5, length, atan2(dy, dx),
+                        0, 0, atan2(centroid[1], centroid[0]), 0, hypot(centroid[0], centroid[1]),
+                        centroid[0], centroid[1], 500));
+            }
+
+            ReconstrucedEvent r = DirectionReconstruction.fromMoments(moments, alt, az);
+            assertEquals(hMax, r.hMax, 1e-6 * hMax);
+            assertEquals(0, Vector3D.angle(new Vector3D(axis), r.direction), 1e-9);
+            assertEquals(core[0], r.impactPosition.getX(), 5);
+            assertEquals(core[1], r.impactPosition.getY(), 5);
+
+            assertEquals(moments.size(), r.telescopeIds.length);
+            for (int i = 0; i < moments.size(); i++) {
+                TelescopeDefinition tel = MAPPING.telescopeFromId(r.telescopeIds[i]);
+                Vector3D toCore = new Vector3D(tel.telescopePositionX - core[0], tel.telescopePositionY - core[1], tel.telescopePositionZ);
+                double expected = Vector3D.crossProduct(toCore, new Vector3D(axis)).getNorm();
+                assertEquals(expected, r.impactDistances[i], 5);
+                assertEquals(r.impactDistances[i], r.impactDistance(r.telescopeIds[i]), 0);
+            }
+        }
+    }
+
+    /**
+     * The unit vector for the given altitude and azimuth, with z pointing up.
+     */
+    private static double[] horizontal(double alt, double az) {
+        return new double[]{cos(alt) * cos(az), cos(alt) * sin(az), sin(alt)};
+    }
+
+    private static double[] pointOnAxis(double[] core, double[] axis, double height) {
+        double t = height / axis[2];
+        return new double[]{core[0] + t * axis[0], core[1] + t * axis[1], t * axis[2]};
+    }
+
+    /**
+     * The camera coordinates of a point in space. The x axis of the camera points to increasing
+     * altitude, the y axis to decreasing azimuth.
+     */
+    private static double[] project(double[] point, TelescopeDefinition tel, double alt, double az) {
+        Vector3D d = new Vector3D(point[0] - tel.telescopePositionX, point[1] - tel.telescopePositionY,
+                point[2] - tel.telescopePositionZ).normalize();
+        Vector3D pointing = new Vector3D(horizontal(alt, az));
+        Vector3D xAxis = new Vector3D(-sin(alt) * cos(az), -sin(alt) * sin(az), cos(alt));
+        Vector3D yAxis = Vector3D.crossProduct(pointing, xAxis);
+
+        double beta = Vector3D.angle(pointing, d);
+        double psi = atan2(d.dotProduct(yAxis), d.dotProduct(xAxis));
+        double rho = beta * tel.opticalFocalLength;
+        return new double[]{rho * cos(psi), rho * sin(psi)};
+    }
+
+    /**
+     * Compare the least squares estimate and the pairwise estimate to the true direction of the
+     * simulated showers. On the sample events both have a median error of about 0.2 degrees and
+     * differ from each other by less than 0.02 degrees in the median.
+     */
+    @Test
+    public void testLeastSquaresAccuracy() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        List<Double> pairwiseErrors = new ArrayList<>();
+        List<Double> leastSquaresErrors = new ArrayList<>();
+        List<Double> differences = new ArrayList<>();
+        for (ImageReader.Event event : events) {
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
+
+            Vector3D pairwise = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az).direction;
+            Vector3D leastSquares = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az,
+                    DirectionReconstruction.Method.LEAST_SQUARES).direction;
+            if (Double.isNaN(pairwise.getX())) {
+                continue;
+            }
+
+            // with two telescopes both methods intersect the same two planes. One sample event has
+            // an image of width 1.6e-9 m, which outweighs the other one by seven orders of
+            // magnitude and leaves the least squares matrix with fewer significant digits.
+            if (moments.size() == 2) {
+                assertEquals(0, Vector3D.angle(pairwise, leastSquares), 1e-5);
+            }
+
+            Vector3D truth = new Vector3D(horizontal(event.mc.alt, event.mc.az));
+            pairwiseErrors.add(toDegrees(Vector3D.angle(pairwise, truth)));
+            leastSquaresErrors.add(toDegrees(Vector3D.angle(leastSquares, truth)));
+            differences.add(toDegrees(Vector3D.angle(pairwise, leastSquares)));
+        }
+
+        double pairwiseMedian = median(pairwiseErrors);
+        double leastSquaresMedian = median(leastSquaresErrors);
+        assertTrue(leastSquaresMedian < 1.25 * pairwiseMedian);
+        assertTrue(median(differences) < 0.05);
+        assertTrue(Collections.max(differences) < 1);
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    /**
+     * The core position is the solution of the normal equations A^T A x = A^T d. Images with a
+     * width close to zero get huge weights which makes A^T A badly conditioned. Rounding
+     * differences in the plane normals are then amplified by its condition number. If it is too
+     * badly conditioned NaN is returned instead.
+     */
+    private static void assertCoreClose(List<Moments> moments, double alt, double az, double[] actual) {
+        double a = 0, b = 0, c = 0;
+        for (Moments p : moments) {
+            Vector3D norm = normal(p, az, alt);
+            double x = norm.getX() * weight(p);
+            double y = norm.getY() * weight(p);
+            a += x * x;
+            b += x * y;
+            c += y * y;
+        }
+
+        double[] expected = referenceCore(moments, alt, az);
+        if (Double.isNaN(actual[0]) && !Double.isNaN(expected[0])) {
+            assertTrue(a * c - b * b < 1e-12 * a * c);
+            return;
+        }
+
+        double root = sqrt((a - c) * (a - c) + 4 * b * b);
+        double condition = (a + c + root) / (a + c - root);
+        assertVectorsClose(expected, actual, max(1e-6, 1e-14 * abs(condition)));
+    }
+
+    /**
+     * Random image parameters for the given number of telescopes. The images do not belong to a
+     * real shower but the math is the same.
+     */
+    static List<Moments> syntheticEvent(int multiplicity, Random random) {
+        List<Moments> moments = new ArrayList<>();
+        for (int telescopeId = 1; telescopeId <= multiplicity; telescopeId++) {
+            double meanX = random.nextDouble() - 0.5;
+            double meanY = random.nextDouble() - 0.5;
+            double delta = (random.nextDouble() - 0.5) * PI;
+            double length = 0.05 + 0.05 * random.nextDouble();
+            double width = 0.01 + 0.02 * random.nextDouble();
+            double size = 100 + 900 * random.nextDouble();
+            moments.add(new Moments(1, telescopeId, telescopeId, 50, width, length, delta,
+                    0, 0, atan2(meanY, meanX), 0, hypot(meanX, meanY), meanX, meanY, size));
+        }
+        return moments;
+    }
+
+    // A reference implementation with Rotation and Vector3D objects.
+
+    /**
+     * Rotate the pointing by the angle of the point from the center of the camera towards the
+     * direction of the point in the camera. The x axis of the camera points to increasing
+     * altitude, the y axis to decreasing azimuth.
+     */
+    private static Vector3D toDirection(double x, double y, double alt, double az, double focalLength) {
+        Vector3D pointing = new Vector3D(horizontal(alt, az));
+        double beta = sqrt(pow(x, 2) + pow(y, 2)) / focalLength;
+        if (beta == 0) {
+            return pointing;
+        }
+        Vector3D xAxis = new Vector3D(-sin(alt) * cos(az), -sin(alt) * sin(az), cos(alt));
+        Vector3D yAxis = Vector3D.crossProduct(pointing, xAxis);
+        Vector3D offset = new Vector3D(x, xAxis, y, yAxis);
+        Rotation rotation = new Rotation(Vector3D.crossProduct(pointing, offset), beta, RotationConvention.VECTOR_OPERATOR);
+        return rotation.applyTo(pointing);
+    }
+
+    private static Vector3D normal(Moments p, double az, double alt) {
+        TelescopeDefinition tel = MAPPING.telescopeFromId(p.telescopeID);
+        double pX = p.meanX + p.length * cos(p.delta);
+        double pY = p.meanY + p.length * sin(p.delta);
+        Vector3D v1 = toDirection(p.meanX, p.meanY, alt, az, tel.opticalFocalLength);
+        Vector3D v2 = toDirection(pX, pY, alt, az, tel.opticalFocalLength);
+        Vector3D c = Vector3D.crossProduct(Vector3D.crossProduct(v1, v2), v1);
+        return Vector3D.crossProduct(v1, c).normalize();
+    }
+
+    private static double weight(Moments p) {
+        return p.size * (p.length / p.width);
+    }
+
+    static double[] referenceDirection(List<Moments> moments, double alt, double az) {
+        Vector3D sum = Vector3D.ZERO;
+        for (Moments p1 : moments) {
+            for (Moments p2 : moments) {
+                if (p1 == p2) {
+                    continue;
+                }
+                Vector3D product = Vector3D.crossProduct(normal(p1, az, alt), normal(p2, az, alt));
+                if (product.getZ() < 0) {
+                    product = product.scalarMultiply(-1);
+                }
+                sum = sum.add(product.scalarMultiply(weight(p1) * weight(p2)));
+            }
+        }
+        if (moments.size() < 2 || !(sum.getNorm() > 0)) {
+            return new double[]{Double.NaN, Double.NaN, Double.NaN};
+        }
+        return sum.normalize().toArray();
+    }
+
+    static double[] referenceCore(List<Moments> moments, double alt, double az) {
+        int n = moments.size();
+        double[][] mat = new double[n][2];
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) {
+            Moments p = moments.get(i);
+            Vector3D norm = normal(p, az, alt);
+            TelescopeDefinition tel = MAPPING.telescopeFromId(p.telescopeID);
+            mat[i][0] = norm.getX() * weight(p);
+            mat[i][1] = norm.getY() * weight(p);
+            d[i] = mat[i][0] * tel.telescopePositionX + mat[i][1] * tel.telescopePositionY;
+        }
+        RealMatrix A = MatrixUtils.createRealMatrix(mat);
+        try {
+            return MatrixUtils.inverse(A.transpose().multiply(A)).multiply(A.transpose()).operate(d);
+        } catch (SingularMatrixException e) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import io.ImageReader;
+import org.junit.Test;
+import reconstruction.DirectionReconstruction;
+import reconstruction.EventProcessor;
+import reconstruction.HillasParametrization;
+import reconstruction.ImageKernel;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Processing the images of an event in parallel has to give the same results in the same order
+ * as processing them one after the other.
+ */
+public class EventProcessorTest {
+
+    private static void assertSameMoments(List<Moments> expected, List<Moments> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).telescopeID, actual.get(i).telescopeID);
+            assertEquals(expected.get(i).numberOfPixel, actual.get(i).numberOfPixel);
+            assertEquals(expected.get(i).size, actual.get(i).size, 0);
+            assertEquals(expected.get(i).width, actual.get(i).width, 0);
+            assertEquals(expected.get(i).kurtosis, actual.get(i).kurtosis, 0);
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        EventProcessor parallel = new EventProcessor(pool, 1, ImageKernel::new);
+        EventProcessor sequential = new EventProcessor(pool, Integer.MAX_VALUE, ImageKernel::new);
+
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        MomentsBatch parallelBatch = new MomentsBatch();
+        MomentsBatch sequentialBatch = new MomentsBatch();
+        for (ImageReader.Event event : ImageReader.fromURL(url)) {
+            List<Moments> expected = HillasParametrization.fromImagesInEvent(event);
+            assertSameMoments(expected, parallel.parametrize(event));
+            assertSameMoments(expected, sequential.parametrize(event));
+
+            parallel.parametrize(event, parallelBatch);
+            sequential.parametrize(event, sequentialBatch);
+
+            ReconstrucedEvent r = parallel.reconstruct(event, DirectionReconstruction.Method.PAIRWISE);
+            ReconstrucedEvent s = DirectionReconstruction.fromMoments(expected, event.mc.alt, event.mc.az);
+            assertArrayEquals(s.direction.toArray(), r.direction.toArray(), 0);
+        }
+
+        assertEquals(sequentialBatch.numberOfRows(), parallelBatch.numberOfRows());
+        assertArrayEquals(sequentialBatch.telescopeID, parallelBatch.telescopeID);
+        assertArrayEquals(sequentialBatch.length, parallelBatch.length, 0);
+        for (int e = 0; e < sequentialBatch.numberOfEvents(); e++) {
+            assertEquals(sequentialBatch.eventId(e), parallelBatch.eventId(e));
+            assertEquals(sequentialBatch.eventEnd(e), parallelBatch.eventEnd(e));
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,110 @@
+import hexmap.CameraGeometry;
+import hexmap.TelescopeArray;
+import io.ImageReader;
+import org.junit.Test;
+import reconstruction.ImageKernel;
+import reconstruction.TailCut;
+import reconstruction.containers.ExtendedMoments;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ShowerImage;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the additional image features calculated in the ImageKernel.
+ */
+public class FeaturesTest {
+
+    @Test
+    public void testFeaturesOnSampleData() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        ImageKernel kernel = ImageKernel.withDefaultFeatures();
+
+        for (ImageReader.Event e : events) {
+            for (Map.Entry<Integer, double[]> entry : e.images.entrySet()) {
+                Moments moments = kernel.parametrize(e.eventId, entry.getKey(), entry.getValue());
+                ShowerImage showerImage = TailCut.selectShowerFromImage(e.eventId, entry.getKey(), entry.getValue());
+                if (showerImage.signalPixels.isEmpty()) {
+                    continue;
+                }
+
+                ExtendedMoments m = (ExtendedMoments) moments;
+
+                double max = showerImage.signalPixels.stream().mapToDouble(p -> p.weight).max().orElse(0);
+                assertEquals(max / m.size, m.feature("maxPixelFraction"), 1e-12);
+                assertTrue(m.feature("concentration") >= m.feature("maxPixelFraction"));
+
+                assertTrue(m.feature("leakage1") >= 0);
+                assertTrue(m.feature("leakage2") >= m.feature("leakage1"));
+                assertTrue(m.feature("leakage2") <= 1 + 1e-12);
+
+                assertEquals(countIslands(entry.getKey(), entry.getValue()), m.feature("numberOfIslands"), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testLeakageAtCameraEdge() {
+        int telescopeId = 1;
+        CameraGeometry geometry = TelescopeArray.cta().cameraFromId(telescopeId);
+
+        //find a pixel at the edge and light it together with its neighbours
+        int border = 0;
+        while (geometry.neighbours[border].length == 6) {
+            border++;
+        }
+        double[] image = new double[geometry.numberOfPixel];
+        image[border] = 100;
+        for (int n : geometry.neighbours[border]) {
+            image[n] = 50;
+        }
+
+        ExtendedMoments m = (ExtendedMoments) ImageKernel.withDefaultFeatures().parametrize(1, telescopeId, image);
+        assertTrue(m.feature("leakage1") >= 100 / m.size);
+        assertEquals(1.0, m.feature("leakage2"), 1e-12);
+        assertEquals(1.0, m.feature("numberOfIslands"), 0);
+    }
+
+    /**
+     * Count islands of the cleaned image with a breadth first search.
+     */
+    private static int countIslands(int telescopeId, double[] image) {
+        CameraGeometry geometry = TelescopeArray.cta().cameraFromId(telescopeId);
+        ImageKernel kernel = ImageKernel.get();
+        kernel.clean(image, geometry);
+
+        Set<Integer> pixels = new HashSet<>();
+        for (int i = 0; i < kernel.getNumberOfSelectedPixels(); i++) {
+            pixels.add(kernel.getSelectedPixels()[i]);
+        }
+
+        int islands = 0;
+        Set<Integer> visited = new HashSet<>();
+        for (int start : pixels) {
+            if (!visited.add(start)) {
+                continue;
+            }
+            islands++;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                for (int n : geometry.neighbours[queue.poll()]) {
+                    if (pixels.contains(n) && visited.add(n)) {
+                        queue.add(n);
+                    }
+                }
+            }
+        }
+        return islands;
+    }
+}
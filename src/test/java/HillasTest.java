@@ -0,0 +1,166 @@
+import io.ImageReader;
+import org.junit.Test;
+import reconstruction.HillasParametrization;
+import reconstruction.ImageKernel;
+import reconstruction.TailCut;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ShowerImage;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.Math.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compare the single pass Hillas kernel to a straight forward multi pass calculation.
+ */
+public class HillasTest {
+
+    private static void assertClose(double expected, double actual) {
+        assertEquals(expected, actual, 1e-7 * max(1, abs(expected)));
+    }
+
+    @Test
+    public void testSinglePassAgainstMultiPass() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        for (ImageReader.Event event : events) {
+            List<ShowerImage> showerImages = TailCut.onImagesInEvent(event);
+            for (ShowerImage showerImage : showerImages) {
+                if (showerImage.signalPixels.size() < 3) {
+                    continue;
+                }
+
+                Moments m = HillasParametrization.fromShowerImage(showerImage);
+                double[] reference = multiPass(showerImage);
+
+                assertClose(reference[0], m.size);
+                assertClose(reference[1], m.meanX);
+                assertClose(reference[2], m.meanY);
+                assertClose(reference[3], m.width);
+                assertClose(reference[4], m.length);
+                // for images aligned with one of the axes delta might jump between -pi/2 and pi/2.
+                // which also flips the sign of the skewness
+                assertClose(0, sin(m.delta - reference[5]));
+                double flip = signum(cos(m.delta - reference[5]));
+                assertClose(reference[6], flip * m.skewness);
+                assertClose(reference[7], m.kurtosis);
+                assertClose(reference[8], m.miss);
+                assertEquals(showerImage.signalPixels.size(), m.numberOfPixel);
+            }
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader.Event event;
+        try (ImageReader reader = ImageReader.fromURL(url)) {
+            event = reader.iterator().next();
+        }
+
+        for (ShowerImage showerImage : TailCut.onImagesInEvent(event)) {
+            int n = showerImage.signalPixels.size();
+            int[] pixelIds = new int[n];
+            double[] weights = new double[n];
+            double[] cleaned = (double[]) showerImage.toMap().get("image");
+
+            int i = 0;
+            for (int pixelId = 0; pixelId < cleaned.length; pixelId++) {
+                if (cleaned[pixelId] > 0) {
+                    pixelIds[i] = pixelId;
+                    weights[i] = cleaned[pixelId];
+                    i++;
+                }
+            }
+
+            Moments fromArrays = HillasParametrization.fromPixels(event.eventId, showerImage.cameraId, pixelIds, weights, i);
+            Moments fromImage = HillasParametrization.fromShowerImage(showerImage);
+
+            assertClose(fromImage.size, fromArrays.size);
+            assertClose(fromImage.width, fromArrays.width);
+            assertClose(fromImage.length, fromArrays.length);
+            assertClose(fromImage.meanX, fromArrays.meanX);
+            assertClose(fromImage.meanY, fromArrays.meanY);
+        }
+    }
+
+    /**
+     * The textbook calculation visiting the pixels once per order of the moments.
+     */
+    private static double[] multiPass(ShowerImage showerImage) {
+        double size = 0, sumX = 0, sumY = 0;
+        for (ShowerImage.SignalPixel p : showerImage.signalPixels) {
+            size += p.weight;
+            sumX += p.xPositionInMM * p.weight;
+            sumY += p.yPositionInMM * p.weight;
+        }
+        double meanX = sumX / size;
+        double meanY = sumY / size;
+
+        double sxx = 0, syy = 0, sxy = 0;
+        for (ShowerImage.SignalPixel p : showerImage.signalPixels) {
+            sxx += p.weight * pow(p.xPositionInMM - meanX, 2);
+            syy += p.weight * pow(p.yPositionInMM - meanY, 2);
+            sxy += p.weight * (p.xPositionInMM - meanX) * (p.yPositionInMM - meanY);
+        }
+        sxx /= size;
+        syy /= size;
+        sxy /= size;
+
+        double d0 = syy - sxx;
+        double d1 = 2 * sxy;
+        double d2 = d0 + sqrt(d0 * d0 + d1 * d1);
+        double a = d2 / d1;
+
+        double width = sqrt(max((syy + a * a * sxx - 2 * a * sxy) / (1 + a * a), 0));
+        double length = sqrt(max((sxx + a * a * syy + 2 * a * sxy) / (1 + a * a), 0));
+        double delta = atan(a);
+        double cos_delta = 1 / sqrt(1 + a * a);
+        double sin_delta = a * cos_delta;
+        double miss = abs((meanY - a * meanX) / (sqrt(1 + a * a)));
+
+        double s2 = 0, s3 = 0, s4 = 0;
+        for (ShowerImage.SignalPixel p : showerImage.signalPixels) {
+            double sk = cos_delta * (p.xPositionInMM - meanX) + sin_delta * (p.yPositionInMM - meanY);
+            s2 += p.weight * pow(sk, 2);
+            s3 += p.weight * pow(sk, 3);
+            s4 += p.weight * pow(sk, 4);
+        }
+        double skewness = (s3 / size) / pow(s2 / size, 3.0 / 2.0);
+        double kurtosis = (s4 / size) / pow(s2 / size, 2);
+
+        return new double[]{size, meanX, meanY, width, length, delta, skewness, kurtosis, miss};
+    }
+
+    @Test
+    public void testLowerOrderKernel() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader.Event event;
+        try (ImageReader reader = ImageReader.fromURL(url)) {
+            event = reader.iterator().next();
+        }
+
+        ImageKernel secondOrder = new ImageKernel(2);
+        ImageKernel thirdOrder = new ImageKernel(3);
+        for (Map.Entry<Integer, double[]> entry : event.images.entrySet()) {
+            Moments full = ImageKernel.get().parametrize(event.eventId, entry.getKey(), entry.getValue());
+            Moments lean = secondOrder.parametrize(event.eventId, entry.getKey(), entry.getValue());
+            Moments skew = thirdOrder.parametrize(event.eventId, entry.getKey(), entry.getValue());
+
+            assertEquals(full.width, lean.width, 0);
+            assertEquals(full.length, lean.length, 0);
+            assertEquals(full.miss, lean.miss, 0);
+            assertTrue(Double.isNaN(lean.skewness));
+            assertTrue(Double.isNaN(lean.kurtosis));
+
+            assertEquals(full.skewness, skew.skewness, 0);
+            assertTrue(Double.isNaN(skew.kurtosis));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import ml.ModelRegistry;
+import ml.ModelWatcher;
+import ml.TreeEnsemblePredictor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * All operators of a JVM acquiring the same model file share one predictor, which is evicted
+ * once all of them released it.
+ */
+public class ModelRegistryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Copy the iris model into a new file of the given folder.
+     */
+    static Path copyModel(TemporaryFolder folder) throws Exception {
+        Path file = folder.newFile().toPath();
+        try (InputStream in = ModelRegistryTest.class.getResourceAsStream("/iris_rf.json")) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    @Test
+    public void testSharedAndEvicted() throws Exception {
+        Path file = copyModel(tempFolder);
+        int before = ModelRegistry.size();
+
+        TreeEnsemblePredictor first = ModelRegistry.acquire(file);
+        TreeEnsemblePredictor second = ModelRegistry.acquire(file.getParent().resolve(".").resolve(file.getFileName()));
+        assertSame(first, second);
+        assertEquals(before + 1, ModelRegistry.size());
+
+        ModelRegistry.release(first);
+        assertEquals(before + 1, ModelRegistry.size());
+        ModelRegistry.release(second);
+        assertEquals(before, ModelRegistry.size());
+
+        TreeEnsemblePredictor third = ModelRegistry.acquire(file);
+        assertNotSame(first, third);
+        ModelRegistry.release(third);
+        assertEquals(before, ModelRegistry.size());
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain() throws Exception {
+        Path file = copyModel(tempFolder);
+        TreeEnsemblePredictor old = ModelRegistry.acquire(file);
+
+        new TreeEnsemblePredictor(file).write(file);
+        TreeEnsemblePredictor changed = ModelRegistry.acquire(file);
+        assertNotSame(old, changed);
+
+        ModelRegistry.release(old);
+        ModelRegistry.release(changed);
+    }
+
+    /**
+     * Models of one to four trees are moved over the file over and over while it is loaded. The
+     * tag of each loaded version is a prefix of the checksum, so it has to belong to a file with
+     * as many trees as the model.
+     */
+    @Test
+    public void testReplacedWhileLoading() throws Exception {
+        Path file = copyModel(tempFolder);
+        byte[][] contents = new byte[4][];
+        Map<String, Integer> numberOfTrees = new HashMap<>();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < contents.length; i++) {
+            String tree = "{\"thresholds\": [0.5, -2, -2], \"attributes\": [2, -2, -2], "
+                    + "\"children_left\": [1, -1, -1], \"children_right\": [2, -1, -1], "
+                    + "\"node_distributions\": [[0, 0, 0], [1, 0, 0], [0, 0, 1]]}";
+            contents[i] = ("[" + String.join(", ", Collections.nCopies(i + 1, tree)) + "]").getBytes(StandardCharsets.UTF_8);
+            String checksum = String.format("%064x", new BigInteger(1, digest.digest(contents[i])));
+            numberOfTrees.put(checksum.substring(0, 12), i + 1);
+        }
+        Files.write(file, contents[0]);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> swapper = executor.submit(() -> {
+                for (int i = 0; running.get(); i++) {
+                    Path next = tempFolder.newFile().toPath();
+                    Files.write(next, contents[i % contents.length]);
+                    Files.move(next, file, StandardCopyOption.ATOMIC_MOVE);
+                }
+                return null;
+            });
+            for (int i = 0; i < 500; i++) {
+                try (ModelWatcher watcher = new ModelWatcher(file, 4, 0, TimeUnit.SECONDS)) {
+                    ModelWatcher.Version version = watcher.current();
+                    assertEquals(numberOfTrees.get(version.tag), (Integer) version.model.getNumberOfTrees());
+                }
+            }
+            running.set(false);
+            swapper.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        Path file = copyModel(tempFolder);
+        int before = ModelRegistry.size();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<TreeEnsemblePredictor>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> ModelRegistry.acquire(file)));
+            }
+            TreeEnsemblePredictor model = futures.get(0).get();
+            for (Future<TreeEnsemblePredictor> future : futures) {
+                assertSame(model, future.get());
+            }
+            for (Future<TreeEnsemblePredictor> future : futures) {
+                ModelRegistry.release(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(before, ModelRegistry.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseUnknownModel() throws Exception {
+        ModelRegistry.release(new TreeEnsemblePredictor(copyModel(tempFolder)));
+    }
+}
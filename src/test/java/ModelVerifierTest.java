@@ -0,0 +1,24 @@
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The quantized iris model has to predict the same probabilities for all samples of the test set.
+ */
+public class ModelVerifierTest {
+
+    @Test
+    public void testIris() throws Exception {
+        URL model = ModelVerifierTest.class.getResource("/iris_rf.json");
+        URL dataset = ModelVerifierTest.class.getResource("/python_predictions_iris.csv");
+
+        ModelVerifier verifier = new ModelVerifier();
+        verifier.modelFile = model.getPath();
+        verifier.datasetFile = dataset.getPath();
+        verifier.call();
+
+        assertEquals(0, verifier.mismatches);
+    }
+}
@@ -0,0 +1,123 @@
+import ml.ModelRegistry;
+import ml.ModelWatcher;
+import ml.TreeEnsemblePredictor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A running operator picks up a new model once it is moved over the model file, unless the new
+ * model cannot be used in place of the old one.
+ */
+public class ModelWatcherTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * A model of a single split on the given feature.
+     */
+    private static String stump(int feature, int numberOfClasses) {
+        float[] left = new float[numberOfClasses];
+        float[] right = new float[numberOfClasses];
+        left[0] = 1;
+        right[numberOfClasses - 1] = 1;
+        return "[{\"thresholds\": [0.5, -2, -2], \"attributes\": [" + feature + ", -2, -2], "
+                + "\"children_left\": [1, -1, -1], \"children_right\": [2, -1, -1], "
+                + "\"node_distributions\": [" + Arrays.toString(new float[numberOfClasses]) + ", "
+                + Arrays.toString(left) + ", " + Arrays.toString(right) + "]}]";
+    }
+
+    private void replace(Path file, byte[] content) throws Exception {
+        Path next = tempFolder.newFile().toPath();
+        Files.write(next, content);
+        Files.move(next, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    public void testSwap() throws Exception {
+        Path file = ModelRegistryTest.copyModel(tempFolder);
+        int before = ModelRegistry.size();
+        float[] sample = {5.1f, 3.5f, 1.4f, 0.2f};
+
+        try (ModelWatcher watcher = new ModelWatcher(file, 4, 0, TimeUnit.SECONDS)) {
+            ModelWatcher.Version first = watcher.current();
+            assertFalse(watcher.update());
+
+            replace(file, stump(2, 3).getBytes(StandardCharsets.UTF_8));
+            assertTrue(watcher.update());
+            ModelWatcher.Version second = watcher.current();
+            assertNotEquals(first.tag, second.tag);
+            assertEquals(1, second.model.getNumberOfTrees());
+            assertEquals(before + 1, ModelRegistry.size());
+
+            // records still holding the previous version can use it
+            assertEquals(0, first.model.predict(sample));
+            assertEquals(2, second.model.predict(sample));
+        }
+        assertEquals(before, ModelRegistry.size());
+    }
+
+    @Test
+    public void testInvalidModelIsRejected() throws Exception {
+        Path file = ModelRegistryTest.copyModel(tempFolder);
+        int before = ModelRegistry.size();
+
+        try (ModelWatcher watcher = new ModelWatcher(file, 4, 0, TimeUnit.SECONDS)) {
+            ModelWatcher.Version first = watcher.current();
+
+            replace(file, stump(2, 2).getBytes(StandardCharsets.UTF_8));
+            assertFalse(watcher.update());
+            replace(file, stump(4, 3).getBytes(StandardCharsets.UTF_8));
+            assertFalse(watcher.update());
+            replace(file, "[{\"thresholds\": ".getBytes(StandardCharsets.UTF_8));
+            assertFalse(watcher.update());
+
+            assertSame(first, watcher.current());
+            assertEquals(before + 1, ModelRegistry.size());
+        }
+        assertEquals(before, ModelRegistry.size());
+    }
+
+    @Test
+    public void testSameContentIsNoSwap() throws Exception {
+        Path file = ModelRegistryTest.copyModel(tempFolder);
+        try (ModelWatcher watcher = new ModelWatcher(file, 4, 0, TimeUnit.SECONDS)) {
+            ModelWatcher.Version first = watcher.current();
+            replace(file, Files.readAllBytes(file));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+            assertFalse(watcher.update());
+            assertSame(first, watcher.current());
+        }
+    }
+
+    @Test
+    public void testBackgroundSwap() throws Exception {
+        Path file = ModelRegistryTest.copyModel(tempFolder);
+        try (ModelWatcher watcher = new ModelWatcher(file, 4, 10, TimeUnit.MILLISECONDS)) {
+            ModelWatcher.Version first = watcher.current();
+            new TreeEnsemblePredictor(file).write(tempFolder.getRoot().toPath().resolve("model.bin"));
+            Files.move(tempFolder.getRoot().toPath().resolve("model.bin"), file, StandardCopyOption.REPLACE_EXISTING);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (watcher.current() == first && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(watcher.current().model.isMapped());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import hexmap.TelescopeArray;
+import io.ImageReader;
+import ml.MomentsBatchPredictor;
+import ml.TreeEnsemblePredictor;
+import ml.Vectorizer;
+import org.junit.Test;
+import reconstruction.DirectionReconstruction;
+import reconstruction.HillasParametrization;
+import reconstruction.ImageKernel;
+import reconstruction.containers.Moments;
+import reconstruction.containers.MomentsBatch;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the column wise batch gives the same results as the object per image path.
+ */
+public class MomentsBatchTest {
+
+    @Test
+    public void testBatchMatchesMoments() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader events = ImageReader.fromURL(url);
+
+        // start small to make sure growing works
+        MomentsBatch batch = new MomentsBatch(2);
+        ImageKernel kernel = new ImageKernel();
+
+        int numberOfEvents = 0;
+        for (ImageReader.Event event : events) {
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
+            HillasParametrization.fromImagesInEvent(event, kernel, batch);
+
+            int e = batch.numberOfEvents() - 1;
+            assertEquals(numberOfEvents++, e);
+            assertEquals(event.eventId, batch.eventId(e));
+            assertEquals(moments.size(), batch.eventMultiplicity(e));
+
+            for (int i = 0; i < moments.size(); i++) {
+                Moments expected = moments.get(i);
+                Moments actual = batch.get(batch.eventStart(e) + i);
+                assertEquals(expected.telescopeID, actual.telescopeID);
+                assertEquals(expected.numberOfPixel, actual.numberOfPixel);
+                assertEquals(expected.width, actual.width, 0);
+                assertEquals(expected.length, actual.length, 0);
+                assertEquals(expected.size, actual.size, 0);
+                assertEquals(expected.kurtosis, actual.kurtosis, 0);
+            }
+
+            ReconstrucedEvent fromMoments = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
+            ReconstrucedEvent fromBatch = DirectionReconstruction.fromBatch(batch, e);
+            assertArrayEquals(fromMoments.direction.toArray(), fromBatch.direction.toArray(), 0);
+            assertArrayEquals(fromMoments.impactPosition.toArray(), fromBatch.impactPosition.toArray(), 0);
+        }
+
+        batch.clear();
+        assertEquals(0, batch.numberOfEvents());
+        assertEquals(0, batch.numberOfRows());
+    }
+
+    @Test
+    public void testKeepBestTelescopes() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        MomentsBatch batch = new MomentsBatch();
+        List<List<Moments>> events = new ArrayList<>();
+        for (ImageReader.Event event : ImageReader.fromURL(url)) {
+            events.add(HillasParametrization.fromImagesInEvent(event));
+            HillasParametrization.fromImagesInEvent(event, ImageKernel.get(), batch);
+        }
+
+        int k = 3;
+        batch.keepBestTelescopes(k);
+
+        assertEquals(events.size(), batch.numberOfEvents());
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            List<Moments> moments = events.get(e);
+            assertEquals(moments.size(), batch.numberOfTelescopes(e));
+            assertEquals(Math.min(k, moments.size()), batch.eventMultiplicity(e));
+
+            // the k largest weights in their original order
+            List<Moments> best = new ArrayList<>(moments);
+            best.sort(Comparator.comparingDouble((Moments m) -> m.size * (m.length / m.width)).reversed());
+            best = best.subList(0, Math.min(k, best.size()));
+            List<Moments> expected = moments.stream().filter(best::contains).collect(Collectors.toList());
+
+            for (int i = 0; i < expected.size(); i++) {
+                Moments actual = batch.get(batch.eventStart(e) + i);
+                assertEquals(expected.get(i).telescopeID, actual.telescopeID);
+                assertEquals(expected.get(i).size, actual.size, 0);
+                assertEquals(expected.get(i).meanX, actual.meanX, 0);
+            }
+
+            ReconstrucedEvent fromMoments = DirectionReconstruction.fromMoments(expected, batch.altitude(e), batch.azimuth(e));
+            ReconstrucedEvent fromBatch = DirectionReconstruction.fromBatch(batch, e);
+            assertArrayEquals(fromMoments.direction.toArray(), fromBatch.direction.toArray(), 0);
+        }
+        assertEquals(batch.eventEnd(batch.numberOfEvents() - 1), batch.numberOfRows());
+    }
+
+    @Test
+    public void testBatchPrediction() throws IOException, URISyntaxException {
+        // the iris model only looks at the first four entries of the feature vector.
+        URL modelUrl = MomentsBatchTest.class.getResource("/iris_rf.json");
+        TreeEnsemblePredictor model = new TreeEnsemblePredictor(Paths.get(modelUrl.toURI()));
+        MomentsBatchPredictor predictor = new MomentsBatchPredictor(model);
+
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        MomentsBatch batch = new MomentsBatch();
+        for (ImageReader.Event event : ImageReader.fromURL(url)) {
+            HillasParametrization.fromImagesInEvent(event, ImageKernel.get(), batch);
+        }
+
+        double[] predictions = predictor.predictParticleType(batch);
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            int n = batch.eventMultiplicity(e);
+            double sum = 0;
+            for (int row = batch.eventStart(e); row < batch.eventEnd(e); row++) {
+                Moments m = batch.get(row);
+                float[] vector = new Vectorizer().of(
+                        n,
+                        m.numberOfPixel,
+                        m.width,
+                        m.length,
+                        m.skewness,
+                        m.kurtosis,
+                        m.phi,
+                        m.miss,
+                        m.size,
+                        TelescopeArray.cta().telescopeFromId(m.telescopeID).telescopeType.ordinal()
+                ).createFloatVector();
+                sum += model.predictProba(vector)[0];
+            }
+            assertEquals(sum / n, predictions[e], 1e-12);
+
+            // the iris model does not look at the features of the reconstruction
+            ReconstrucedEvent reconstructed = DirectionReconstruction.fromBatch(batch, e);
+            assertEquals(predictions[e], predictor.predictParticleType(batch, e, reconstructed), 0);
+        }
+
+        ReconstrucedEvent[] reconstructed = new ReconstrucedEvent[batch.numberOfEvents()];
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            reconstructed[e] = DirectionReconstruction.fromBatch(batch, e);
+        }
+        double[] blockPredictions = new double[batch.numberOfEvents()];
+        predictor.predictParticleType(batch, reconstructed, blockPredictions);
+        assertArrayEquals(predictions, blockPredictions, 0);
+        for (int e = 0; e < batch.numberOfEvents(); e++) {
+            assertEquals(predictor.predictParticleType(batch, e), predictions[e], 0);
+        }
+    }
+}
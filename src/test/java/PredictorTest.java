@@ -1,18 +1,43 @@
 import com.google.common.base.Splitter;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.sun.management.ThreadMXBean;
 import io.ImageReader;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ml.Feature;
+import ml.FeaturePlan;
 import ml.TreeEnsemblePredictor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Random;
+
+import javax.tools.ToolProvider;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Test the tree predictor by comparing to sklearn prediction.
@@ -20,6 +45,9 @@ import static org.junit.Assert.assertThat;
  */
 public class PredictorTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void testPrediction() throws URISyntaxException, IOException {
         URL url = PredictorTest.class.getResource("/iris_rf.json");
@@ -88,4 +116,433 @@ public class PredictorTest {
         assertArrayEquals(p2, prediction, 0.0f);
     }
 
+    @Test
+    public void testFeaturePlan() throws URISyntaxException, IOException {
+        URL url = PredictorTest.class.getResource("/iris_rf.json");
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(Paths.get(url.toURI()));
+
+        assertArrayEquals(new int[]{0, 1, 2, 3}, predictor.getUsedFeatures());
+
+        FeaturePlan plan = FeaturePlan.of(predictor);
+        assertThat(plan.features, is(EnumSet.of(Feature.NUMBER_OF_TELESCOPES, Feature.NUMBER_OF_PIXEL, Feature.WIDTH, Feature.LENGTH)));
+        assertThat(plan.momentOrder(), is(2));
+        assertThat(FeaturePlan.all().momentOrder(), is(4));
+    }
+
+    /**
+     * Walk the trees as they are stored in the json file and compare the votes to the packed
+     * forest. Samples are drawn around the iris ranges and include NaN.
+     */
+    @Test
+    public void testPackedForest() throws URISyntaxException, IOException {
+        URL url = PredictorTest.class.getResource("/iris_rf.json");
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(Paths.get(url.toURI()));
+        JsonArray trees = new Gson().fromJson(new String(Files.readAllBytes(Paths.get(url.toURI()))), JsonArray.class);
+
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            float[] sample = new float[4];
+            for (int f = 0; f < 4; f++) {
+                sample[f] = random.nextInt(50) == 0 ? Float.NaN : 8 * random.nextFloat();
+            }
+
+            float[] expected = new float[3];
+            for (int t = 0; t < trees.size(); t++) {
+                expected[walk(trees.get(t).getAsJsonObject(), sample)] += 1;
+            }
+            for (int c = 0; c < expected.length; c++) {
+                expected[c] /= trees.size();
+            }
+
+            assertArrayEquals(expected, predictor.predictProba(sample), 0);
+        }
+        assertEquals(trees.size(), predictor.getNumberOfTrees());
+    }
+
+    @Test
+    public void testBlockPrediction() throws URISyntaxException, IOException {
+        URL url = PredictorTest.class.getResource("/iris_rf.json");
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(Paths.get(url.toURI()));
+
+        // rows of 5 features, the last one is not used by the model
+        Random random = new Random(1);
+        int n = 300;
+        float[] samples = new float[n * 5];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 8 * random.nextFloat();
+        }
+        float[] probabilities = new float[n * 3];
+        Arrays.fill(probabilities, 42);
+        predictor.predictProba(samples, n, 5, probabilities);
+
+        for (int i = 0; i < n; i++) {
+            float[] expected = predictor.predictProba(Arrays.copyOfRange(samples, 5 * i, 5 * i + 4));
+            assertArrayEquals(expected, Arrays.copyOfRange(probabilities, 3 * i, 3 * i + 3), 0);
+        }
+    }
+
+    @Test
+    public void testAllocationFreeOverloads() throws URISyntaxException, IOException {
+        URL url = PredictorTest.class.getResource("/iris_rf.json");
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(Paths.get(url.toURI()));
+
+        Random random = new Random(2);
+        float[] probabilities = new float[3];
+        for (int i = 0; i < 1000; i++) {
+            double[] sample = new double[4];
+            float[] rounded = new float[4];
+            for (int f = 0; f < 4; f++) {
+                sample[f] = 8 * random.nextDouble();
+                rounded[f] = (float) sample[f];
+            }
+            float[] expected = predictor.predictProba(rounded);
+
+            predictor.predictProba(rounded, probabilities);
+            assertArrayEquals(expected, probabilities, 0);
+            predictor.predictProba(sample, probabilities);
+            assertArrayEquals(expected, probabilities, 0);
+
+            for (int c = 0; c < 3; c++) {
+                assertEquals(expected[c], predictor.predictProbability(rounded, c), 0);
+                assertEquals(expected[c], predictor.predictProbability(sample, c), 0);
+            }
+            assertEquals(predictor.predict(rounded), predictor.predict(sample));
+        }
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        float[] sample = {5.1f, 3.5f, 1.4f, 0.2f};
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        float sum = 0;
+        for (int i = 0; i < 100000; i++) {
+            sum += predictor.predictProbability(sample, 0) + predictor.predict(sample);
+            predictor.predictProba(sample, probabilities);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertEquals(100000, sum, 0);
+        assertThat("allocated " + allocated + " bytes", allocated < 100000, is(true));
+    }
+
+    /**
+     * Complete trees of depth 10 are too large for a single generated method, so this also
+     * covers splitting trees into several methods.
+     */
+    @Test
+    public void testCompiledForest() throws IOException, ClassNotFoundException {
+        Assume.assumeTrue(ToolProvider.getSystemJavaCompiler() != null);
+
+        Random random = new Random(3);
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(
+                new ByteArrayInputStream(completeTrees(5, 10, 6, random).getBytes(StandardCharsets.UTF_8)));
+        TreeEnsemblePredictor compiled = predictor.compiled();
+        assertThat(compiled.isCompiled(), is(true));
+        assertThat(predictor.isCompiled(), is(false));
+
+        TreeEnsemblePredictor deserialized = roundTrip(compiled);
+        assertThat(deserialized.isCompiled(), is(true));
+
+        float[] probabilities = new float[3];
+        float[] block = new float[100 * 6];
+        for (int i = 0; i < 1000; i++) {
+            float[] sample = new float[6];
+            for (int f = 0; f < 6; f++) {
+                sample[f] = random.nextInt(50) == 0 ? Float.NaN : random.nextFloat();
+            }
+            System.arraycopy(sample, 0, block, 6 * (i % 100), 6);
+
+            float[] expected = predictor.predictProba(sample);
+            assertArrayEquals(expected, compiled.predictProba(sample), 0);
+            deserialized.predictProba(sample, probabilities);
+            assertArrayEquals(expected, probabilities, 0);
+            assertEquals(expected[1], compiled.predictProbability(sample, 1), 0);
+            assertEquals(predictor.predict(sample), compiled.predict(sample));
+        }
+
+        float[] expected = new float[100 * 3];
+        float[] actual = new float[100 * 3];
+        predictor.predictProba(block, 100, 6, expected);
+        compiled.predictProba(block, 100, 6, actual);
+        assertArrayEquals(expected, actual, 0);
+    }
+
+    /**
+     * Forty trees with 64 leaves each are evaluated by the QuickScorer. Sample values equal to
+     * thresholds and NaN have to take the same paths as when walking the trees.
+     */
+    @Test
+    public void testQuickScorer() throws IOException {
+        Random random = new Random(5);
+        JsonArray trees = new Gson().fromJson(completeTrees(40, 6, 5, random), JsonArray.class);
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(
+                new ByteArrayInputStream(trees.toString().getBytes(StandardCharsets.UTF_8)));
+        JsonArray thresholds = trees.get(0).getAsJsonObject().getAsJsonArray("thresholds");
+
+        float[] block = new float[100 * 5];
+        float[] expectedBlock = new float[100 * 3];
+        for (int i = 0; i < 1000; i++) {
+            float[] sample = new float[5];
+            for (int f = 0; f < 5; f++) {
+                int choice = random.nextInt(10);
+                if (choice == 0) {
+                    sample[f] = Float.NaN;
+                } else if (choice < 4) {
+                    sample[f] = thresholds.get(random.nextInt(63)).getAsFloat();
+                } else {
+                    sample[f] = random.nextFloat();
+                }
+            }
+            float[] expected = new float[3];
+            for (int t = 0; t < trees.size(); t++) {
+                expected[walk(trees.get(t).getAsJsonObject(), sample)] += 1;
+            }
+            for (int c = 0; c < 3; c++) {
+                expected[c] /= trees.size();
+            }
+            System.arraycopy(sample, 0, block, 5 * (i % 100), 5);
+            System.arraycopy(expected, 0, expectedBlock, 3 * (i % 100), 3);
+
+            assertArrayEquals(expected, predictor.predictProba(sample), 0);
+            assertEquals(expected[2], predictor.predictProbability(sample, 2), 0);
+        }
+
+        float[] actual = new float[100 * 3];
+        predictor.predictProba(block, 100, 5, actual);
+        assertArrayEquals(expectedBlock, actual, 0);
+    }
+
+    /**
+     * Stopping once the vote is decided has to give the same class as counting all votes. Few
+     * trees and three classes lead to many ties.
+     */
+    @Test
+    public void testEarlyExit() throws IOException {
+        Random random = new Random(7);
+        for (int numberOfTrees : new int[]{1, 4, 7, 20}) {
+            TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(new ByteArrayInputStream(
+                    completeTrees(numberOfTrees, 4, 3, random).getBytes(StandardCharsets.UTF_8)));
+            TreeEnsemblePredictor quantized = predictor.quantized();
+            float[] probabilities = new float[3];
+            float[] quantizedProbabilities = new float[3];
+            for (int i = 0; i < 1000; i++) {
+                float[] sample = {random.nextFloat(), random.nextFloat(), random.nextFloat()};
+                double[] row = {sample[0], sample[1], sample[2]};
+                float[] exact = predictor.predictProba(sample);
+                int expected = 0;
+                for (int c = 0; c < 3; c++) {
+                    expected = exact[c] > exact[expected] ? c : expected;
+                }
+                assertEquals(expected, predictor.predict(sample));
+                assertEquals(expected, predictor.predict(row));
+
+                for (float confidence : new float[]{0.3f, 0.5f, 0.8f, 1f}) {
+                    int evaluated = predictor.predictProba(sample, probabilities, confidence);
+                    boolean reached = false;
+                    for (int c = 0; c < 3; c++) {
+                        reached |= probabilities[c] >= confidence;
+                        assertThat(probabilities[c] <= exact[c], is(true));
+                    }
+                    if (!reached) {
+                        assertEquals(numberOfTrees, evaluated);
+                        assertArrayEquals(exact, probabilities, 0);
+                    }
+                    assertEquals(evaluated, quantized.predictProba(sample, quantizedProbabilities, confidence));
+                    assertArrayEquals(probabilities, quantizedProbabilities, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * The quantized forest has to take the same paths for values equal to thresholds, between
+     * thresholds, outside of all thresholds and NaN. The first tree has a split at -0.0 and one
+     * at 0.0 which are merged into one threshold.
+     */
+    @Test
+    public void testQuantizedForest() throws IOException, ClassNotFoundException {
+        Random random = new Random(11);
+        JsonArray trees = new Gson().fromJson(completeTrees(8, 7, 4, random), JsonArray.class);
+        JsonObject first = trees.get(0).getAsJsonObject();
+        first.getAsJsonArray("attributes").set(0, new JsonPrimitive(2));
+        first.getAsJsonArray("thresholds").set(0, new JsonPrimitive(-0.0f));
+        first.getAsJsonArray("attributes").set(1, new JsonPrimitive(2));
+        first.getAsJsonArray("thresholds").set(1, new JsonPrimitive(0.0f));
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(
+                new ByteArrayInputStream(trees.toString().getBytes(StandardCharsets.UTF_8)));
+        TreeEnsemblePredictor quantized = predictor.quantized();
+        assertThat(quantized.isQuantized(), is(true));
+        assertThat(predictor.isQuantized(), is(false));
+
+        TreeEnsemblePredictor deserialized = roundTrip(quantized);
+        assertThat(deserialized.isQuantized(), is(true));
+
+        JsonArray thresholds = trees.get(3).getAsJsonObject().getAsJsonArray("thresholds");
+        float[] special = {Float.NaN, -0.0f, 0.0f, -1, 2, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] block = new float[100 * 4];
+        for (int i = 0; i < 1000; i++) {
+            float[] sample = new float[4];
+            for (int f = 0; f < 4; f++) {
+                int choice = random.nextInt(10);
+                if (choice < 2) {
+                    sample[f] = special[random.nextInt(special.length)];
+                } else if (choice < 5) {
+                    sample[f] = thresholds.get(random.nextInt(127)).getAsFloat();
+                } else {
+                    sample[f] = random.nextFloat();
+                }
+            }
+            System.arraycopy(sample, 0, block, 4 * (i % 100), 4);
+
+            float[] expected = predictor.predictProba(sample);
+            assertArrayEquals(expected, quantized.predictProba(sample), 0);
+            assertArrayEquals(expected, deserialized.predictProba(sample), 0);
+            assertEquals(predictor.predict(sample), quantized.predict(sample));
+        }
+
+        float[] expected = new float[100 * 3];
+        float[] actual = new float[100 * 3];
+        predictor.predictProba(block, 100, 4, expected);
+        quantized.predictProba(block, 100, 4, actual);
+        assertArrayEquals(expected, actual, 0);
+    }
+
+    /**
+     * A model written in the binary format and mapped again has to predict the same as the parsed
+     * one, also after serialization and when turned into the other engines. Corrupt files have to
+     * be rejected when opening them.
+     */
+    @Test
+    public void testBinaryModel() throws IOException, ClassNotFoundException {
+        Random random = new Random(13);
+        TreeEnsemblePredictor predictor = new TreeEnsemblePredictor(new ByteArrayInputStream(
+                completeTrees(6, 8, 5, random).getBytes(StandardCharsets.UTF_8)));
+        Path file = tempFolder.newFile().toPath();
+        predictor.write(file);
+
+        TreeEnsemblePredictor mapped = new TreeEnsemblePredictor(file);
+        assertThat(mapped.isMapped(), is(true));
+        assertThat(predictor.isMapped(), is(false));
+        assertEquals(predictor.getNumberOfTrees(), mapped.getNumberOfTrees());
+        assertEquals(predictor.getNumberOfClasses(), mapped.getNumberOfClasses());
+        assertArrayEquals(predictor.getUsedFeatures(), mapped.getUsedFeatures());
+
+        TreeEnsemblePredictor deserialized = roundTrip(mapped);
+        assertThat(deserialized.isMapped(), is(false));
+        TreeEnsemblePredictor quantized = mapped.quantized();
+
+        float[] block = new float[100 * 5];
+        for (int i = 0; i < 1000; i++) {
+            float[] sample = new float[5];
+            double[] row = new double[5];
+            for (int f = 0; f < 5; f++) {
+                sample[f] = random.nextInt(50) == 0 ? Float.NaN : random.nextFloat();
+                row[f] = sample[f];
+            }
+            System.arraycopy(sample, 0, block, 5 * (i % 100), 5);
+
+            float[] expected = predictor.predictProba(sample);
+            assertArrayEquals(expected, mapped.predictProba(sample), 0);
+            assertArrayEquals(expected, deserialized.predictProba(sample), 0);
+            assertArrayEquals(expected, quantized.predictProba(sample), 0);
+            assertEquals(expected[1], mapped.predictProbability(row, 1), 0);
+            assertEquals(predictor.predict(sample), mapped.predict(sample));
+            assertEquals(predictor.predict(row), mapped.predict(row));
+        }
+        float[] expected = new float[100 * 3];
+        float[] actual = new float[100 * 3];
+        predictor.predictProba(block, 100, 5, expected);
+        mapped.predictProba(block, 100, 5, actual);
+        assertArrayEquals(expected, actual, 0);
+
+        byte[] content = Files.readAllBytes(file);
+        // the right child of the root of the first tree, after the header and the six roots
+        int rightChild = 4 * (5 + 6 + 2);
+        content[rightChild] += 3;
+        assertRejected(content);
+        content[rightChild] -= 3;
+        assertRejected(Arrays.copyOf(content, content.length - 4));
+        content[0] = '{';
+        Path json = tempFolder.newFile().toPath();
+        Files.write(json, content);
+        try {
+            new TreeEnsemblePredictor(json);
+            fail("A file not starting with the magic number is parsed as json");
+        } catch (JsonParseException e) {
+            // expected
+        }
+    }
+
+    private void assertRejected(byte[] content) throws IOException {
+        Path file = tempFolder.newFile().toPath();
+        Files.write(file, content);
+        try {
+            new TreeEnsemblePredictor(file);
+            fail("Corrupt forest file was mapped");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Random complete trees in the json format of convert_tree.py. Node i has the children
+     * 2i + 1 and 2i + 2.
+     */
+    static String completeTrees(int numberOfTrees, int depth, int numberOfFeatures, Random random) {
+        JsonArray trees = new JsonArray();
+        int numberOfNodes = (1 << (depth + 1)) - 1;
+        for (int t = 0; t < numberOfTrees; t++) {
+            JsonArray thresholds = new JsonArray();
+            JsonArray attributes = new JsonArray();
+            JsonArray left = new JsonArray();
+            JsonArray right = new JsonArray();
+            JsonArray distributions = new JsonArray();
+            for (int node = 0; node < numberOfNodes; node++) {
+                boolean leaf = 2 * node + 1 >= numberOfNodes;
+                thresholds.add(leaf ? -2 : random.nextFloat());
+                attributes.add(leaf ? -2 : random.nextInt(numberOfFeatures));
+                left.add(leaf ? -1 : 2 * node + 1);
+                right.add(leaf ? -1 : 2 * node + 2);
+                JsonArray distribution = new JsonArray();
+                for (int c = 0; c < 3; c++) {
+                    distribution.add(random.nextInt(10));
+                }
+                distributions.add(distribution);
+            }
+            JsonObject tree = new JsonObject();
+            tree.add("thresholds", thresholds);
+            tree.add("attributes", attributes);
+            tree.add("children_left", left);
+            tree.add("children_right", right);
+            tree.add("node_distributions", distributions);
+            trees.add(tree);
+        }
+        return trees.toString();
+    }
+
+    private static TreeEnsemblePredictor roundTrip(TreeEnsemblePredictor predictor)
+            throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(predictor);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (TreeEnsemblePredictor) in.readObject();
+        }
+    }
+
+    private static int walk(JsonObject tree, float[] sample) {
+        int node = 0;
+        while (tree.getAsJsonArray("attributes").get(node).getAsInt() >= 0) {
+            int attribute = tree.getAsJsonArray("attributes").get(node).getAsInt();
+            float threshold = tree.getAsJsonArray("thresholds").get(node).getAsFloat();
+            String child = sample[attribute] <= threshold ? "children_left" : "children_right";
+            node = tree.getAsJsonArray(child).get(node).getAsInt();
+        }
+        JsonArray distribution = tree.getAsJsonArray("node_distributions").get(node).getAsJsonArray();
+        int best = 0;
+        for (int c = 0; c < distribution.size(); c++) {
+            best = distribution.get(c).getAsFloat() > distribution.get(best).getAsFloat() ? c : best;
+        }
+        return best;
+    }
 }
@@ -5,12 +5,28 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.Serializable;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
 
+import hexmap.TelescopeArray;
+import hexmap.TelescopeDefinition;
+import io.ImageReader;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import pythonbridge.PythonBridge;
+import reconstruction.DirectionReconstruction;
+import reconstruction.HillasParametrization;
+import reconstruction.TailCut;
 import reconstruction.containers.Moments;
+import reconstruction.containers.ReconstrucedEvent;
+import reconstruction.containers.ShowerImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class PythonTest {
     static PythonBridge bridge;
@@ -70,6 +86,72 @@ public class PythonTest {
         assert m.kurtosis == o.get("kurtosis");
     }
 
+    @Test
+    public void testHillasAgainstJava() throws Exception {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        ImageReader.Event event;
+        try (ImageReader reader = ImageReader.fromURL(url)) {
+            event = reader.iterator().next();
+        }
+
+        for (ShowerImage showerImage : TailCut.onImagesInEvent(event)) {
+            Moments m = HillasParametrization.fromShowerImage(showerImage);
+
+            @SuppressWarnings("unchecked")
+            HashMap<String, Double> o = (HashMap<String, Double>) bridge.callMethod("hillas", showerImage.toMap());
+
+            assertEquals(o.get("size"), m.size, 1e-6 * m.size);
+            assertEquals(o.get("cen_x"), m.meanX, 1e-6);
+            assertEquals(o.get("cen_y"), m.meanY, 1e-6);
+            assertEquals(o.get("width"), m.width, 1e-6);
+            assertEquals(o.get("length"), m.length, 1e-6);
+        }
+    }
+
+    /**
+     * The height of the shower maximum and the impact distances of the sample events against
+     * ctapipe, which finds the shower maximum the same way but weights the images differently.
+     * The impact distances are compared to the distances to the axis and core found by ctapipe.
+     */
+    @Test
+    public void testShowerMaximumAgainstCtapipe() throws Exception {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        List<Double> hMaxDifferences = new ArrayList<>();
+        List<Double> impactDifferences = new ArrayList<>();
+        try (ImageReader reader = ImageReader.fromURL(url)) {
+            for (ImageReader.Event event : reader) {
+                List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
+                if (moments.size() < 3) {
+                    continue;
+                }
+                ReconstrucedEvent r = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az);
+
+                HashMap<String, Object> input = new HashMap<>();
+                input.put("moments", moments.stream().map(Moments::toMap).collect(Collectors.toCollection(ArrayList::new)));
+                input.put("altitude", event.mc.alt);
+                input.put("azimuth", event.mc.az);
+                @SuppressWarnings("unchecked")
+                HashMap<String, Double> o = (HashMap<String, Double>) bridge.callMethod("reconstruct_shower", input);
+
+                hMaxDifferences.add(Math.abs(r.hMax - o.get("h_max")) / o.get("h_max"));
+
+                // ctapipe returns the direction in the same alt/az convention as the pointing
+                double alt = o.get("alt"), az = o.get("az");
+                Vector3D axis = new Vector3D(Math.cos(alt) * Math.cos(az), Math.cos(alt) * Math.sin(az), Math.sin(alt));
+                for (int i = 0; i < r.telescopeIds.length; i++) {
+                    TelescopeDefinition tel = TelescopeArray.cta().telescopeFromId(r.telescopeIds[i]);
+                    Vector3D toCore = new Vector3D(tel.telescopePositionX - o.get("core_x"),
+                            tel.telescopePositionY - o.get("core_y"), tel.telescopePositionZ);
+                    impactDifferences.add(Math.abs(r.impactDistances[i] - Vector3D.crossProduct(toCore, axis).getNorm()));
+                }
+            }
+        }
+        Collections.sort(hMaxDifferences);
+        Collections.sort(impactDifferences);
+        assertTrue(hMaxDifferences.get(hMaxDifferences.size() / 2) < 0.1);
+        assertTrue(impactDifferences.get(impactDifferences.size() / 2) < 50);
+    }
+
     @Test
     public void testTailCut() throws Exception {
         Random r = new Random();
@@ -0,0 +1,101 @@
+import io.ImageReader;
+import org.junit.Test;
+import reconstruction.DirectionReconstruction;
+import reconstruction.HillasParametrization;
+import reconstruction.ReconstructionAccumulator;
+import reconstruction.containers.Moments;
+import reconstruction.containers.ReconstrucedEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that folding the telescopes into the accumulator one by one gives the same result as
+ * reconstructing all of them at once.
+ */
+public class ReconstructionAccumulatorTest {
+
+    @Test
+    public void testSampleEvents() throws IOException {
+        URL url = ImageReader.class.getResource("/data/images.json.gz");
+        for (ImageReader.Event event : ImageReader.fromURL(url)) {
+            List<Moments> moments = HillasParametrization.fromImagesInEvent(event);
+
+            ReconstructionAccumulator accumulator = new ReconstructionAccumulator(event.mc.alt, event.mc.az);
+            double sum = 0;
+            for (int i = 0; i < moments.size(); i++) {
+                accumulator.add(moments.get(i), i);
+                sum += i;
+            }
+
+            ReconstrucedEvent expected = DirectionReconstruction.fromMoments(moments, event.mc.alt, event.mc.az,
+                    DirectionReconstruction.Method.LEAST_SQUARES);
+            ReconstrucedEvent actual = accumulator.reconstruct();
+
+            assertEquals(expected.eventID, actual.eventID);
+            assertArrayEquals(expected.direction.toArray(), actual.direction.toArray(), 0);
+            assertArrayEquals(expected.impactPosition.toArray(), actual.impactPosition.toArray(), 0);
+            assertEquals(expected.hMax, actual.hMax, 0);
+            assertArrayEquals(expected.telescopeIds, actual.telescopeIds);
+            assertArrayEquals(expected.impactDistances, actual.impactDistances, 0);
+            assertEquals(moments.size(), accumulator.numberOfTelescopes());
+            assertEquals(sum / moments.size(), accumulator.averagePrediction(), 1e-12);
+        }
+    }
+
+    @Test
+    public void testMerge() throws IOException, ClassNotFoundException {
+        List<Moments> moments = DirectionReconstructionTest.syntheticEvent(50, new Random(3));
+
+        ReconstructionAccumulator first = new ReconstructionAccumulator(1.2, 0.1);
+        ReconstructionAccumulator second = new ReconstructionAccumulator(1.2, 0.1);
+        for (int i = 0; i < moments.size(); i++) {
+            (i % 2 == 0 ? first : second).add(moments.get(i), 0.5);
+        }
+
+        // accumulators are shipped between flink operators
+        ReconstructionAccumulator merged = roundTrip(first).merge(roundTrip(second));
+        merged = new ReconstructionAccumulator(1.2, 0.1).merge(merged);
+
+        ReconstrucedEvent expected = DirectionReconstruction.fromMoments(moments, 1.2, 0.1,
+                DirectionReconstruction.Method.LEAST_SQUARES);
+        ReconstrucedEvent actual = merged.reconstruct();
+
+        assertArrayEquals(expected.direction.toArray(), actual.direction.toArray(), 1e-12);
+        assertArrayEquals(expected.impactPosition.toArray(), actual.impactPosition.toArray(), 1e-6);
+        assertEquals(expected.hMax, actual.hMax, 1e-6 * Math.abs(expected.hMax));
+        for (Moments m : moments) {
+            assertEquals(expected.impactDistance(m.telescopeID), actual.impactDistance(m.telescopeID), 1e-6);
+        }
+        assertEquals(50, merged.numberOfTelescopes());
+        assertEquals(0.5, merged.averagePrediction(), 1e-12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentEvents() {
+        Moments m = DirectionReconstructionTest.syntheticEvent(1, new Random(4)).get(0);
+        Moments other = new Moments(2, m.telescopeID, m.cameraID, m.numberOfPixel, m.width, m.length, m.delta,
+                m.skewness, m.kurtosis, m.phi, m.miss, m.r, m.meanX, m.meanY, m.size);
+        new ReconstructionAccumulator(1.2, 0.1).add(m, 0).add(other, 0);
+    }
+
+    private static ReconstructionAccumulator roundTrip(ReconstructionAccumulator accumulator)
+            throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(accumulator);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ReconstructionAccumulator) in.readObject();
+        }
+    }
+}